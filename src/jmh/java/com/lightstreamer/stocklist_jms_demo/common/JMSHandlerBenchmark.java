@@ -0,0 +1,94 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+import javax.naming.NamingException;
+
+import org.apache.logging.log4j.LogManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures JMSHandler.publishMessage against the stubbed JMS layer.
+ * The handler is shared by all the benchmark threads (as it is in the
+ * Generator), so running with -t N shows the cost of its locking;
+ * add -prof gc for the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JMSHandlerBenchmark {
+
+    /**
+     * Whether the stub serializes the published objects, as a real provider would.
+     */
+    @Param({"false", "true"})
+    public boolean serialize;
+
+    private JMSHandler jmsHandler;
+    private FeedMessage feedMessage;
+    private HeartbeatMessage heartbeatMessage;
+
+    @Setup(Level.Trial)
+    public void setup() throws JMSException, NamingException {
+        StubJMS.serializePayloads = serialize;
+
+        jmsHandler = new JMSHandler(LogManager.getLogger("SLGenerator"), StubJMS.CONTEXT_FACTORY, "stub://",
+                "queueFactory", "queue", "topicFactory", "topic");
+        jmsHandler.initTopicPublisher(15);
+
+        HashMap<String,String> values = new HashMap<String,String>();
+        values.put("time", "12:00:00");
+        values.put("last_price", "16.09");
+        values.put("ask", "16.1");
+        values.put("bid", "16.09");
+        values.put("bid_quantity", "12500");
+        values.put("ask_quantity", "40000");
+        values.put("pct_change", "0.62");
+        feedMessage = new FeedMessage("item2", values, false, "2", 500);
+        heartbeatMessage = new HeartbeatMessage(500);
+    }
+
+    @Benchmark
+    public void publishFeedMessage() throws JMSException {
+        jmsHandler.publishMessage(feedMessage);
+    }
+
+    @Benchmark
+    public void publishHeartbeat() throws JMSException {
+        jmsHandler.publishMessage(heartbeatMessage);
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.JMSException;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.QueueConnection;
+import javax.jms.QueueConnectionFactory;
+import javax.jms.QueueReceiver;
+import javax.jms.QueueSender;
+import javax.jms.QueueSession;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import javax.jms.TopicConnection;
+import javax.jms.TopicConnectionFactory;
+import javax.jms.TopicPublisher;
+import javax.jms.TopicSession;
+import javax.jms.TopicSubscriber;
+import javax.naming.Context;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * A do-nothing JMS layer for the benchmarks.
+ * Pass StubJMS.ContextFactory as initialContextFactory to a JMSHandler:
+ * every lookup succeeds and every publish/send is just counted, so that
+ * the benchmarks measure our own code and not a broker.
+ * All the JMS objects are dynamic proxies, as only a handful of methods
+ * is ever called by JMSHandler.
+ */
+public class StubJMS {
+
+    public static final String CONTEXT_FACTORY = ContextFactory.class.getName();
+
+    /**
+     * Number of messages published or sent through the stub.
+     */
+    public static final AtomicLong published = new AtomicLong();
+
+    /**
+     * If true, published ObjectMessage payloads are serialized as a real
+     * provider would do, so that the serialization cost is measured too.
+     */
+    public static volatile boolean serializePayloads = false;
+
+    //released each time a connection is started (i.e. a ConnectionLoop completed)
+    private static volatile CountDownLatch started = new CountDownLatch(1);
+
+    /**
+     * Waits until a connection has been started through the stub.
+     */
+    public static void awaitStarted() throws InterruptedException {
+        started.await();
+    }
+
+    public static void resetStarted() {
+        started = new CountDownLatch(1);
+    }
+
+    /**
+     * Builds a TextMessage, e.g. to feed a subscription request to a Generator.
+     */
+    public static TextMessage textMessage(String text) throws JMSException {
+        TextMessage message = (TextMessage) proxy(new MessageHandler(), TextMessage.class);
+        message.setText(text);
+        return message;
+    }
+
+    public static class ContextFactory implements InitialContextFactory {
+
+        public Context getInitialContext(Hashtable<?,?> environment) {
+            return (Context) proxy(new Handler(), Context.class);
+        }
+
+    }
+
+    private static Object proxy(InvocationHandler handler, Class<?>... interfaces) {
+        return Proxy.newProxyInstance(StubJMS.class.getClassLoader(), interfaces, handler);
+    }
+
+    private static class Handler implements InvocationHandler {
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("lookup")) {
+                //one object will do for any factory and destination
+                return proxy(this, TopicConnectionFactory.class, QueueConnectionFactory.class, Topic.class, Queue.class);
+            } else if (name.equals("createTopicConnection") || name.equals("createQueueConnection")) {
+                return proxy(this, TopicConnection.class, QueueConnection.class);
+            } else if (name.equals("createTopicSession") || name.equals("createQueueSession")) {
+                return proxy(this, TopicSession.class, QueueSession.class);
+            } else if (name.equals("createPublisher") || name.equals("createSubscriber")
+                    || name.equals("createSender") || name.equals("createReceiver")) {
+                return proxy(this, TopicPublisher.class, TopicSubscriber.class, QueueSender.class, QueueReceiver.class);
+            } else if (name.equals("createObjectMessage")) {
+                return proxy(new MessageHandler(), ObjectMessage.class);
+            } else if (name.equals("createTextMessage")) {
+                return proxy(new MessageHandler(), TextMessage.class);
+            } else if (name.equals("publish") || name.equals("send")) {
+                published.incrementAndGet();
+                return null;
+            } else if (name.equals("start")) {
+                started.countDown();
+                return null;
+            } else if (name.equals("getEnvironment")) {
+                return new Hashtable<Object,Object>();
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            } else if (name.equals("toString")) {
+                return "StubJMS";
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+    }
+
+    private static class MessageHandler implements InvocationHandler {
+
+        private Object body;
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("setObject") || name.equals("setText")) {
+                body = args[0];
+                if (serializePayloads && body instanceof Serializable) {
+                    serialize((Serializable) body);
+                }
+                return null;
+            } else if (name.equals("getObject") || name.equals("getText")) {
+                return body;
+            } else if (name.equals("hashCode")) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("equals")) {
+                return proxy == args[0];
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private void serialize(Serializable obj) throws JMSException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            try {
+                ObjectOutputStream out = new ObjectOutputStream(bytes);
+                out.writeObject(obj);
+                out.close();
+            } catch (IOException e) {
+                throw new JMSException("Serialization failed: " + e.getMessage());
+            }
+        }
+
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        } else if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        } else if (type == float.class) {
+            return 0f;
+        }
+        return 0d;
+    }
+
+}
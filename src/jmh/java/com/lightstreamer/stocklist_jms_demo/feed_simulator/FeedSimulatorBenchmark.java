@@ -0,0 +1,115 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.feed_simulator;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import stocklist_jms_demo.common.QuoteRecord;
+
+/**
+ * Measures the per-tick cost of the simulated producers, i.e. what
+ * each TimerTask scheduled by ExternalFeedSimulator does.
+ * Each benchmark thread owns its producers, each with its own Random,
+ * so running with -t N shows how the ticks scale; add -prof gc for the
+ * allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeedSimulatorBenchmark {
+
+    /**
+     * Number of producers ticked in round robin by each thread.
+     */
+    @Param({"1", "30", "1000"})
+    public int producers;
+
+    private ExternalFeedSimulator.MyProducer[] stocks;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        //the simulator is never started: we drive its producers by hand
+        ExternalFeedSimulator simulator = new ExternalFeedSimulator();
+        stocks = new ExternalFeedSimulator.MyProducer[producers];
+        for (int i = 0; i < producers; i++) {
+            stocks[i] = simulator.new MyProducer("item" + (i % 30 + 1), i % 30);
+        }
+    }
+
+    private ExternalFeedSimulator.MyProducer nextProducer() {
+        ExternalFeedSimulator.MyProducer producer = stocks[next];
+        next = (next + 1) % stocks.length;
+        return producer;
+    }
+
+    @Benchmark
+    public void computeNewValues() {
+        nextProducer().computeNewValues();
+    }
+
+    @Benchmark
+    public QuoteRecord getCurrentQuote() {
+        return nextProducer().getCurrentQuote(false);
+    }
+
+    @Benchmark
+    public QuoteRecord getSnapshotQuote() {
+        return nextProducer().getCurrentQuote(true);
+    }
+
+    /**
+     * The strings, as built for the adapters that don't know the records.
+     */
+    @Benchmark
+    public HashMap<String,String> getCurrentValues() {
+        return nextProducer().getCurrentQuote(false).toMap();
+    }
+
+    /**
+     * A complete tick, as done by the simulator's TimerTask.
+     */
+    @Benchmark
+    public QuoteRecord tick() {
+        ExternalFeedSimulator.MyProducer producer = nextProducer();
+        synchronized (producer) {
+            producer.computeNewValues();
+            QuoteRecord quote = producer.getCurrentQuote(false);
+            producer.computeNextGap(0);
+            return quote;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.feed_simulator;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import stocklist_jms_demo.common.QuoteRecord;
+import stocklist_jms_demo.common.StubJMS;
+
+/**
+ * Measures Generator.onEvent, i.e. the subscription filtering, the
+ * FeedMessage creation and the publication through JMSHandler, over
+ * the stubbed JMS layer.
+ * The Generator is shared by all the benchmark threads, so running
+ * with -t N shows the cost of its locking; add -prof gc for the
+ * allocation rate.
+ * Note that the Generator's own simulator and heartbeat keep running
+ * in background, though at a negligible rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeneratorBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SharedGenerator {
+
+        /**
+         * Number of subscribed items (the Generator accepts item1..item30).
+         */
+        @Param({"1", "30"})
+        public int items;
+
+        Generator generator;
+        String[] itemNames;
+        QuoteRecord[] values;
+
+        @Setup(Level.Trial)
+        public void setup() throws InterruptedException, JMSException {
+            StubJMS.resetStarted();
+            generator = new Generator("stub://", StubJMS.CONTEXT_FACTORY, "topicFactory", "queueFactory", "topic", "queue", 15, 2000);
+            //wait for the ConnectionLoop to complete
+            StubJMS.awaitStarted();
+
+            itemNames = new String[items];
+            values = new QuoteRecord[items];
+            ExternalFeedSimulator simulator = new ExternalFeedSimulator();
+            for (int i = 0; i < items; i++) {
+                itemNames[i] = "item" + (i + 1);
+                generator.onMessage(StubJMS.textMessage("subscribe" + itemNames[i] + "_" + (i + 1)));
+                ExternalFeedSimulator.MyProducer producer = simulator.new MyProducer(itemNames[i], i);
+                producer.computeNewValues();
+                values[i] = producer.getCurrentQuote(false);
+                //the snapshot enables the updates for the item
+                generator.onEvent(itemNames[i], producer.getCurrentQuote(true), true);
+            }
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next = 0;
+    }
+
+    @Benchmark
+    public void onEvent(SharedGenerator shared, Cursor cursor) {
+        int i = cursor.next;
+        cursor.next = (i + 1) % shared.items;
+        shared.generator.onEvent(shared.itemNames[i], shared.values[i], false);
+    }
+
+    /**
+     * Updates for items nobody subscribed are filtered by onEvent.
+     */
+    @Benchmark
+    public void onEventUnsubscribed(SharedGenerator shared) {
+        shared.generator.onEvent("item31", shared.values[0], false);
+    }
+
+}
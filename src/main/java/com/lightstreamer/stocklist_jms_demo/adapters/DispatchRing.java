@@ -0,0 +1,228 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.adapters;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.Message;
+
+/**
+ * A preallocated ring of slots between the thread of our JMS session,
+ * which only stores each message (and its arrival time) in the next
+ * slot, and a dispatch thread, which decodes the messages and sends the
+ * updates to the kernel; so a slow kernel call doesn't hold the
+ * consumption from the broker, as long as the ring has room.
+ * Single producer and single consumer: the producer owns the slots up to
+ * the consumed sequence plus the size, the consumer those up to the
+ * published sequence; the sequences are the only shared state.
+ * When there is nothing to do (consumer) or no room (producer), the
+ * thread waits according to the strategy:
+ *   spin   keeps checking: lowest latency, burns a core; only for
+ *          platform threads
+ *   yield  keeps checking, yielding the CPU in between
+ *   park   sleeps: the consumer is woken by the producer, the producer
+ *          checks again after PRODUCER_PARK_NANOS
+ */
+public class DispatchRing {
+
+    public static final String SPIN = "spin";
+    public static final String YIELD = "yield";
+    public static final String PARK = "park";
+
+    private static final long PRODUCER_PARK_NANOS = 50000;
+
+    /**
+     * Handles the messages taken from the ring.
+     */
+    public interface Handler {
+        void onMessage(Message message, long arrivalNanos);
+    }
+
+    private final Message[] messages;
+    private final long[] arrivals;
+    private final int mask;
+    private final String waitStrategy;
+    private final boolean parking;
+    private final boolean yielding;
+
+    //the last sequence stored by the producer and the last one taken by the consumer
+    private final AtomicLong published = new AtomicLong(-1);
+    private final AtomicLong consumed = new AtomicLong(-1);
+    //producer side only: the last sequence claimed and the consumed one, as last read
+    private long claimed = -1;
+    private long consumedCache = -1;
+
+    //the consumer, while parked
+    private volatile Thread waitingConsumer = null;
+    private volatile boolean closed = false;
+
+    //gauges
+    private volatile long peakDepth = 0;
+    private volatile long producerWaits = 0;
+
+    /**
+     * @param size the slots, rounded up to a power of 2.
+     * @param waitStrategy SPIN, YIELD or PARK (null or unknown ones mean PARK).
+     */
+    public DispatchRing(int size, String waitStrategy) {
+        int slots = 1;
+        while (slots < size) {
+            slots <<= 1;
+        }
+        this.messages = new Message[slots];
+        this.arrivals = new long[slots];
+        this.mask = slots - 1;
+        this.waitStrategy = SPIN.equals(waitStrategy) || YIELD.equals(waitStrategy) ? waitStrategy : PARK;
+        this.parking = PARK.equals(this.waitStrategy);
+        this.yielding = YIELD.equals(this.waitStrategy);
+    }
+
+    public int getSize() {
+        return messages.length;
+    }
+
+    public String getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Stores a message in the next slot, waiting for room if the ring is
+     * full. Producer thread only.
+     * @return false if the ring was closed, in which case the message was
+     * not stored.
+     */
+    public boolean publish(Message message, long arrivalNanos) {
+        if (closed) {
+            //nobody would take it
+            return false;
+        }
+        long sequence = claimed + 1;
+        if (sequence - consumedCache > messages.length) {
+            consumedCache = consumed.get();
+            if (sequence - consumedCache > messages.length) {
+                producerWaits++;
+                do {
+                    if (closed) {
+                        return false;
+                    }
+                    if (parking) {
+                        LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+                    } else if (yielding) {
+                        Thread.yield();
+                    }
+                    consumedCache = consumed.get();
+                } while (sequence - consumedCache > messages.length);
+            }
+        }
+        int slot = (int) sequence & mask;
+        messages[slot] = message;
+        arrivals[slot] = arrivalNanos;
+        claimed = sequence;
+        if (parking) {
+            //a full barrier, so that a consumer going to sleep either sees the
+            //message or is seen by us
+            published.set(sequence);
+            Thread consumer = waitingConsumer;
+            if (consumer != null) {
+                LockSupport.unpark(consumer);
+            }
+        } else {
+            published.lazySet(sequence);
+        }
+        return true;
+    }
+
+    /**
+     * Hands all the messages available to the handler, in order.
+     * Consumer thread only.
+     * @return how many messages were handled.
+     */
+    public int consume(Handler handler) {
+        long next = consumed.get() + 1;
+        long available = published.get();
+        if (available < next) {
+            return 0;
+        }
+        long depth = available - next + 1;
+        if (depth > peakDepth) {
+            peakDepth = depth;
+        }
+        for (long sequence = next; sequence <= available; sequence++) {
+            int slot = (int) sequence & mask;
+            Message message = messages[slot];
+            long arrivalNanos = arrivals[slot];
+            messages[slot] = null;
+            //the slot can be reused as soon as it is copied
+            consumed.lazySet(sequence);
+            handler.onMessage(message, arrivalNanos);
+        }
+        return (int) depth;
+    }
+
+    /**
+     * Waits until a message is available. Consumer thread only.
+     */
+    public void await() throws InterruptedException {
+        long next = consumed.get() + 1;
+        while (published.get() < next) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (parking) {
+                waitingConsumer = Thread.currentThread();
+                if (published.get() < next) {
+                    LockSupport.park(this);
+                }
+                waitingConsumer = null;
+            } else if (yielding) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Makes the following (and the waiting) publish calls fail, once the
+     * consumer has stopped.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * The messages stored and not yet taken by the consumer.
+     */
+    public long getDepth() {
+        return Math.max(0, published.get() - consumed.get());
+    }
+
+    /**
+     * The highest depth seen by the consumer.
+     */
+    public long getPeakDepth() {
+        return peakDepth;
+    }
+
+    /**
+     * How many times the producer found the ring full and had to wait.
+     */
+    public long getProducerWaits() {
+        return producerWaits;
+    }
+
+}
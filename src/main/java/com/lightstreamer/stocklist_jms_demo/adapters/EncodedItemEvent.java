@@ -0,0 +1,89 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.adapters;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import stocklist_jms_demo.common.EncodedValues;
+
+import com.lightstreamer.interfaces.data.IndexedItemEvent;
+import com.lightstreamer.interfaces.data.ItemEvent;
+
+/**
+ * Hands the values of a received FeedMessage to the Kernel as they are:
+ * no map is built and each value is only decoded if the Kernel reads it.
+ * The indexes are the positions of the fields in the message.
+ * The underlying values are immutable, so the Kernel may read the event
+ * from any thread, even after smartUpdate has returned.
+ */
+public class EncodedItemEvent implements IndexedItemEvent, ItemEvent {
+
+    private final EncodedValues values;
+
+    public EncodedItemEvent(EncodedValues values) {
+        this.values = values;
+    }
+
+    /////// IndexedItemEvent
+
+    public int getMaximumIndex() {
+        return values.size() - 1;
+    }
+
+    public int getIndex(String name) {
+        return values.indexOf(name);
+    }
+
+    public String getName(int index) {
+        return values.getName(index);
+    }
+
+    public Object getValue(int index) {
+        return values.getValue(index);
+    }
+
+    /////// ItemEvent
+
+    public Iterator getNames() {
+        return new Iterator<String>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < values.size();
+            }
+
+            public String next() {
+                if (next >= values.size()) {
+                    throw new NoSuchElementException();
+                }
+                return values.getName(next++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public Object getValue(String name) {
+        int index = values.indexOf(name);
+        return index < 0 ? null : values.getValue(index);
+    }
+
+}
@@ -0,0 +1,287 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.adapters;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Streaming hot spot analytics: finds the items with the highest update
+ * rate, byte rate and discarded update rate over a sliding window,
+ * without keeping a counter per item.
+ * Each metric has a count-min sketch (DEPTH rows of width counters; an
+ * item adds to one counter per row and its estimate is the smallest of
+ * them, which can only exceed the true count) for each of the BUCKETS
+ * slices of the window, plus the window totals; when a slice expires its
+ * counters are subtracted from the totals and cleared.
+ * Next to the sketch, a small set of candidates holds the items with the
+ * highest estimates seen so far: an item enters the set by replacing the
+ * smallest candidate, when its estimate is higher.
+ * The methods are synchronized: the counts come from the JMS session,
+ * the queries from the monitoring.
+ */
+public class HotItemTracker {
+
+    public static final int UPDATES = 0;
+    public static final int BYTES = 1;
+    public static final int DISCARDS = 2;
+    private static final String[] METRIC_NAMES = { "updates", "bytes", "discarded" };
+
+    private static final int DEPTH = 4;
+    private static final int BUCKETS = 6;
+
+    private final int width;
+    private final int mask;
+    private final int tracked;
+    private final long bucketNanos;
+    private final long startNanos;
+
+    private final Metric[] metrics = new Metric[METRIC_NAMES.length];
+    //the slice of the window being counted, as a number of slices since startNanos
+    private long currentBucket = 0;
+
+    /**
+     * @param windowSeconds the span of the sliding window.
+     * @param width the counters per sketch row, rounded up to a power of 2;
+     * the estimates exceed the true counts by about 3/width of the window
+     * total, at most.
+     * @param tracked the size of the candidate sets, i.e. how many items
+     * can be reported.
+     */
+    public HotItemTracker(int windowSeconds, int width, int tracked) {
+        int w = 1;
+        while (w < width) {
+            w <<= 1;
+        }
+        this.width = w;
+        this.mask = w - 1;
+        this.tracked = Math.max(1, tracked);
+        this.bucketNanos = Math.max(1, windowSeconds) * 1000000000L / BUCKETS;
+        this.startNanos = System.nanoTime();
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i] = new Metric();
+        }
+    }
+
+    public static String getMetricName(int metric) {
+        return METRIC_NAMES[metric];
+    }
+
+    /**
+     * Counts amount (an update, its bytes, a discarded update) for the item.
+     */
+    public synchronized void add(int metric, String item, long amount, long nowNanos) {
+        rotate(nowNanos);
+        metrics[metric].add(item, amount, (int) (currentBucket % BUCKETS));
+    }
+
+    /**
+     * Counts an update received for the item, and its bytes.
+     */
+    public synchronized void addUpdate(String item, int bytes, long nowNanos) {
+        rotate(nowNanos);
+        int bucket = (int) (currentBucket % BUCKETS);
+        metrics[UPDATES].add(item, 1, bucket);
+        metrics[BYTES].add(item, bytes, bucket);
+    }
+
+    /**
+     * The n hottest items for the metric, in the current window.
+     */
+    public synchronized List<HotItem> getTop(int metric, int n) {
+        long now = System.nanoTime();
+        rotate(now);
+        //the window is shorter at the beginning
+        long spanNanos = Math.min(now - startNanos, (BUCKETS - 1) * bucketNanos + (now - startNanos) % bucketNanos);
+        double seconds = Math.max(spanNanos, 1) / 1000000000.0;
+
+        Metric m = metrics[metric];
+        List<Candidate> sorted = new ArrayList<Candidate>(m.candidates.values());
+        Collections.sort(sorted, BY_ESTIMATE);
+        List<HotItem> top = new ArrayList<HotItem>();
+        for (int i = 0; i < sorted.size() && i < n; i++) {
+            Candidate c = sorted.get(i);
+            top.add(new HotItem(c.item, c.estimate, c.estimate / seconds));
+        }
+        return top;
+    }
+
+    /**
+     * A readable report of the n hottest items for each metric.
+     */
+    public String report(int n) {
+        StringBuilder sb = new StringBuilder("Hot items:");
+        for (int metric = 0; metric < metrics.length; metric++) {
+            sb.append("\n  by ").append(METRIC_NAMES[metric]).append(':');
+            List<HotItem> top = getTop(metric, n);
+            if (top.isEmpty()) {
+                sb.append(" none");
+            }
+            for (HotItem hot : top) {
+                sb.append(' ').append(hot.item).append(String.format(Locale.ROOT, " (%.1f/s)", hot.rate));
+            }
+        }
+        return sb.toString();
+    }
+
+    //expires the slices older than the window
+    private void rotate(long nowNanos) {
+        long bucket = (nowNanos - startNanos) / bucketNanos;
+        if (bucket <= currentBucket) {
+            return;
+        }
+        //past a whole window, all the slices are cleared
+        long from = Math.max(currentBucket + 1, bucket - BUCKETS + 1);
+        for (long b = from; b <= bucket; b++) {
+            for (Metric m : metrics) {
+                m.expire((int) (b % BUCKETS));
+            }
+        }
+        currentBucket = bucket;
+        for (Metric m : metrics) {
+            m.refreshCandidates();
+        }
+    }
+
+    //the counter of the row for a hash code: two derived hashes give the DEPTH indexes
+    private int index(int h, int row) {
+        int h1 = h * 0x9E3779B9;
+        int h2 = ((h ^ (h >>> 16)) * 0x85EBCA6B) | 1;
+        return row * width + ((h1 + row * h2) >>> 7 & mask);
+    }
+
+    private class Metric {
+
+        final long[][] buckets = new long[BUCKETS][DEPTH * width];
+        final long[] totals = new long[DEPTH * width];
+        final HashMap<String,Candidate> candidates = new HashMap<String,Candidate>();
+        //not above the smallest candidate estimate, when the set is full
+        long minEstimate = 0;
+
+        void add(String item, long amount, int bucket) {
+            long[] counters = buckets[bucket];
+            int h = item.hashCode();
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                int index = index(h, row);
+                counters[index] += amount;
+                estimate = Math.min(estimate, totals[index] += amount);
+            }
+
+            Candidate c = candidates.get(item);
+            if (c != null) {
+                c.estimate = estimate;
+            } else if (candidates.size() < tracked) {
+                candidates.put(item, new Candidate(item, estimate));
+                if (candidates.size() == tracked) {
+                    minEstimate = smallest().estimate;
+                }
+            } else if (estimate > minEstimate) {
+                Candidate smallest = smallest();
+                if (estimate > smallest.estimate) {
+                    candidates.remove(smallest.item);
+                    smallest.item = item;
+                    smallest.estimate = estimate;
+                    candidates.put(item, smallest);
+                    minEstimate = smallest().estimate;
+                } else {
+                    minEstimate = smallest.estimate;
+                }
+            }
+        }
+
+        void expire(int bucket) {
+            long[] counters = buckets[bucket];
+            for (int i = 0; i < counters.length; i++) {
+                totals[i] -= counters[i];
+                counters[i] = 0;
+            }
+        }
+
+        //the estimates only decrease on expiration: they are computed again
+        void refreshCandidates() {
+            List<Candidate> all = new ArrayList<Candidate>(candidates.values());
+            for (Candidate c : all) {
+                int h = c.item.hashCode();
+                long estimate = Long.MAX_VALUE;
+                for (int row = 0; row < DEPTH; row++) {
+                    estimate = Math.min(estimate, totals[index(h, row)]);
+                }
+                if (estimate == 0) {
+                    candidates.remove(c.item);
+                } else {
+                    c.estimate = estimate;
+                }
+            }
+            minEstimate = candidates.size() < tracked ? 0 : smallest().estimate;
+        }
+
+        Candidate smallest() {
+            Candidate smallest = null;
+            for (Candidate c : candidates.values()) {
+                if (smallest == null || c.estimate < smallest.estimate) {
+                    smallest = c;
+                }
+            }
+            return smallest;
+        }
+    }
+
+    private static class Candidate {
+
+        String item;
+        long estimate;
+
+        Candidate(String item, long estimate) {
+            this.item = item;
+            this.estimate = estimate;
+        }
+    }
+
+    private static final Comparator<Candidate> BY_ESTIMATE = new Comparator<Candidate>() {
+        public int compare(Candidate a, Candidate b) {
+            return Long.compare(b.estimate, a.estimate);
+        }
+    };
+
+    /**
+     * An item in a top list: its estimated count in the window and the
+     * corresponding rate per second.
+     */
+    public static class HotItem {
+
+        public final String item;
+        public final long count;
+        public final double rate;
+
+        HotItem(String item, long count, double rate) {
+            this.item = item;
+            this.count = count;
+            this.rate = rate;
+        }
+
+        public String toString() {
+            return item + " " + count;
+        }
+    }
+
+}
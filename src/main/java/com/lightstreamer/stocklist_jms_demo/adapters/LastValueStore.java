@@ -0,0 +1,196 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.adapters;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import stocklist_jms_demo.common.ExposedOutputStream;
+import stocklist_jms_demo.common.QuoteRecord;
+
+/**
+ * Keeps the last complete values of each item, in memory and in a
+ * memory-mapped file, so that after a restart the adapter can serve
+ * them (flagged as stale) before the Generator is back.
+ * The file has a header and a fixed-size slot per item; each slot holds
+ * the length of the serialized QuoteRecord, the time it was saved, a
+ * CRC32 of the record and the record itself. A slot is rewritten in
+ * place on each update; a slot left half-written by a crash fails its
+ * CRC check and is ignored.
+ * The methods are synchronized: updates come from the JMS session,
+ * lookups from the subscriptions.
+ */
+public class LastValueStore {
+
+    private static final int MAGIC = 0x4C565331; //"LVS1"
+    private static final int HEADER_SIZE = 64;
+    public static final int SLOT_SIZE = 256;
+    //length, saved time, crc
+    private static final int SLOT_HEADER_SIZE = 4 + 8 + 4;
+
+    private final int slots;
+    private final MappedByteBuffer buffer;
+    //the complete values, as far as we know
+    private final QuoteRecord[] values;
+    //the time of the values read from the file, 0 when updated since
+    private final long[] savedTimes;
+
+    private final ExposedOutputStream serialized = new ExposedOutputStream(SLOT_SIZE);
+    private final DataOutputStream out = new DataOutputStream(serialized);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Opens (or creates) the file; its slots are loaded, unless the file
+     * was made with a different layout, in which case it is cleared.
+     */
+    public LastValueStore(File file, int slots) throws IOException {
+        this.slots = slots;
+        this.values = new QuoteRecord[slots];
+        this.savedTimes = new long[slots];
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = HEADER_SIZE + (long) slots * SLOT_SIZE;
+            boolean matching = channel.size() == size;
+            //the mapping stays valid after the file is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (matching && buffer.getInt(0) == MAGIC && buffer.getInt(4) == SLOT_SIZE && buffer.getInt(8) == slots) {
+                load();
+            } else {
+                for (int i = 0; i < size; i++) {
+                    buffer.put(i, (byte) 0);
+                }
+                buffer.putInt(4, SLOT_SIZE);
+                buffer.putInt(8, slots);
+                buffer.putInt(0, MAGIC);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void load() {
+        byte[] record = new byte[SLOT_SIZE];
+        for (int slot = 0; slot < slots; slot++) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            int length = buffer.getInt(pos);
+            if (length <= 0 || length > SLOT_SIZE - SLOT_HEADER_SIZE) {
+                continue;
+            }
+            long savedTime = buffer.getLong(pos + 4);
+            int checksum = buffer.getInt(pos + 12);
+            for (int i = 0; i < length; i++) {
+                record[i] = buffer.get(pos + SLOT_HEADER_SIZE + i);
+            }
+            crc.reset();
+            crc.update(record, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                continue;
+            }
+            try {
+                values[slot] = QuoteRecord.readFrom(new DataInputStream(new ByteArrayInputStream(record, 0, length)));
+                savedTimes[slot] = savedTime;
+            } catch (IOException e) {
+                //from an incompatible version: just ignore it
+            }
+        }
+    }
+
+    /**
+     * Merges an update into the values of a slot and saves them; while
+     * there are no values for the slot, only a snapshot is taken, as the
+     * other updates wouldn't make a complete record.
+     */
+    public synchronized void update(int slot, QuoteRecord quote, boolean isSnapshot) {
+        if (slot < 0 || slot >= slots) {
+            return;
+        }
+        QuoteRecord current = values[slot];
+        if (isSnapshot) {
+            current = quote.copy();
+            values[slot] = current;
+        } else if (current != null) {
+            current.mergeFrom(quote);
+        } else {
+            return;
+        }
+        savedTimes[slot] = 0;
+        save(slot, current);
+    }
+
+    private void save(int slot, QuoteRecord quote) {
+        serialized.reset();
+        try {
+            quote.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            //can't happen on a memory stream
+            return;
+        }
+        int length = serialized.size();
+        if (length > SLOT_SIZE - SLOT_HEADER_SIZE) {
+            //too big to be saved: better none than an old one
+            length = 0;
+        }
+        byte[] record = serialized.buffer();
+        crc.reset();
+        crc.update(record, 0, length);
+
+        int pos = HEADER_SIZE + slot * SLOT_SIZE;
+        buffer.putInt(pos, length);
+        buffer.putLong(pos + 4, System.currentTimeMillis());
+        buffer.putInt(pos + 12, (int) crc.getValue());
+        for (int i = 0; i < length; i++) {
+            buffer.put(pos + SLOT_HEADER_SIZE + i, record[i]);
+        }
+    }
+
+    /**
+     * Gets a copy of the known values of a slot, or null.
+     */
+    public synchronized QuoteRecord get(int slot) {
+        if (slot < 0 || slot >= slots || values[slot] == null) {
+            return null;
+        }
+        return values[slot].copy();
+    }
+
+    /**
+     * Tells whether the values of a slot come from the file, rather
+     * than from the live data.
+     */
+    public synchronized boolean isStale(int slot) {
+        return slot >= 0 && slot < slots && savedTimes[slot] != 0;
+    }
+
+    /**
+     * Writes the changes to the disk now (the OS would do it anyway).
+     */
+    public synchronized void force() {
+        buffer.force();
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.adapters;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import stocklist_jms_demo.common.QuoteRecord;
+
+import com.lightstreamer.interfaces.data.IndexedItemEvent;
+import com.lightstreamer.interfaces.data.ItemEvent;
+
+/**
+ * Hands a received QuoteRecord to the Kernel: the numbers become strings
+ * (through the QuoteFormat caches) only for the fields the Kernel reads.
+ * The indexes are the QuoteRecord field constants.
+ * The record is not changed after being received, so the Kernel may read
+ * the event from any thread, even after smartUpdate has returned.
+ */
+public class QuoteItemEvent implements IndexedItemEvent, ItemEvent {
+
+    private final QuoteRecord quote;
+
+    public QuoteItemEvent(QuoteRecord quote) {
+        this.quote = quote;
+    }
+
+    public QuoteRecord getQuote() {
+        return quote;
+    }
+
+    /////// IndexedItemEvent
+
+    public int getMaximumIndex() {
+        return QuoteRecord.FIELDS - 1;
+    }
+
+    public int getIndex(String name) {
+        for (int field = 0; field < QuoteRecord.FIELDS; field++) {
+            if (QuoteRecord.getName(field).equals(name)) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    public String getName(int index) {
+        //the fields not in the update are not there at all
+        return quote.has(index) ? QuoteRecord.getName(index) : null;
+    }
+
+    public Object getValue(int index) {
+        return quote.format(index);
+    }
+
+    /////// ItemEvent
+
+    public Iterator getNames() {
+        return new Iterator<String>() {
+            private int next = nextField(0);
+
+            private int nextField(int from) {
+                while (from < QuoteRecord.FIELDS && !quote.has(from)) {
+                    from++;
+                }
+                return from;
+            }
+
+            public boolean hasNext() {
+                return next < QuoteRecord.FIELDS;
+            }
+
+            public String next() {
+                if (next >= QuoteRecord.FIELDS) {
+                    throw new NoSuchElementException();
+                }
+                String name = QuoteRecord.getName(next);
+                next = nextField(next + 1);
+                return name;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public Object getValue(String name) {
+        int index = getIndex(name);
+        return index < 0 ? null : quote.format(index);
+    }
+
+}
@@ -18,30 +18,43 @@
 package stocklist_jms_demo.adapters;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
-import javax.jms.ObjectMessage;
+import javax.jms.MessageListener;
 import javax.naming.NamingException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import stocklist_jms_demo.common.Activities;
 import stocklist_jms_demo.common.ConnectionLoop;
 import stocklist_jms_demo.common.ExtendedMessageListener;
+import stocklist_jms_demo.common.FeedEvents;
+import stocklist_jms_demo.common.FeedJournal;
 import stocklist_jms_demo.common.FeedMessage;
+import stocklist_jms_demo.common.FieldSchema;
 import stocklist_jms_demo.common.HeartbeatMessage;
 import stocklist_jms_demo.common.JMSHandler;
+import stocklist_jms_demo.common.PayloadCodec;
+import stocklist_jms_demo.common.QuoteRecord;
 import stocklist_jms_demo.common.SubscribedItemAttributes;
 
 import com.lightstreamer.interfaces.data.DataProviderException;
 import com.lightstreamer.interfaces.data.FailureException;
+import com.lightstreamer.interfaces.data.IndexedItemEvent;
 import com.lightstreamer.interfaces.data.ItemEventListener;
 import com.lightstreamer.interfaces.data.SmartDataProvider;
 import com.lightstreamer.interfaces.data.SubscriptionException;
@@ -54,10 +67,25 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
      */
     private Logger logger;
 
-    private JMSHandler jmsHandler;
+    private volatile JMSHandler jmsHandler;
+
+    /**
+     * An optional handler towards a secondary JMS provider, kept connected
+     * (but without any TopicSubscriber) while the primary one is in use,
+     * so that a failover just needs to create the subscriber and start
+     * the connection. Swapped with jmsHandler on failover.
+     * Both fields are changed only while holding the write lock.
+     */
+    private volatile JMSHandler standbyHandler;
 
     private ItemEventListener listener;
 
+    /**
+     * Decodes the received messages, compressed or not; only used by the
+     * dispatching thread, so its buffers are reused.
+     */
+    private PayloadCodec codec = new PayloadCodec();
+
     private ConcurrentHashMap<String,SubscribedItemAttributes> subscribedItems = new ConcurrentHashMap<String,SubscribedItemAttributes>();
 
     private volatile int nextHandleId = 1;
@@ -65,6 +93,51 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
 
     private int msgPoolSize;
     private int recoveryPause;
+    private int maxRecoveryPause;
+
+    /**
+     * Flow control: when the updates reach us (and the kernel) later than
+     * this, we ask the Generator to conflate them; 0 disables the feature.
+     */
+    private int maxLagMillis;
+    private static final long LAG_WINDOW_MILLIS = 60000;
+    //the conflation interval currently requested to the Generator
+    private volatile long throttleMillis = 0;
+    //the lowest transit times seen in the current and in the previous window
+    //(started at minTransitSince), taken as the clock offset with the Generator;
+    //by the dispatching thread
+    private long minTransit = Long.MAX_VALUE;
+    private long prevMinTransit = Long.MAX_VALUE;
+    private long minTransitSince = 0;
+    //set to start the estimate over, as the clock of the Generator may change
+    private volatile boolean lagReset = false;
+    //the highest lag seen since the last check
+    private volatile long maxLag = 0;
+    //the sequence gaps seen, by the dispatching thread: some updates were lost
+    //(e.g. expired in the broker) which also means we can't keep up
+    private volatile long gapCount = 0;
+
+    /**
+     * After a gap, the flow of an item is restarted (with a new snapshot
+     * from the Generator) at most once in this time: when the gaps come
+     * from an overload (e.g. from the expiry of the updates in the broker)
+     * the snapshots would only make it worse; the updates go on anyway.
+     */
+    private static final long GAP_RESYNC_MILLIS = 5000;
+
+    /**
+     * Freshness: the updates later than this (measured as the lag, see
+     * measureLag) are not forwarded; 0 disables the check. If conflateStale,
+     * the stale quotes are merged and sent along with the next fresh update
+     * of the item, otherwise (and for the messages without a QuoteRecord)
+     * they are dropped. The snapshots always go through.
+     * The counters are only changed by the dispatching thread.
+     */
+    private int maxAgeMillis;
+    private boolean conflateStale;
+    private volatile long staleDropped = 0;
+    private volatile long staleConflated = 0;
+    private long lastStaleLog = 0;
 
     //a read/write lock is used
     private ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock(false);
@@ -74,6 +147,22 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
      */
     private ConcurrentLinkedQueue<String> toSendRequests = new ConcurrentLinkedQueue<String>();
 
+    /**
+     * Subscription coalescing: if coalesceWindowMillis is not 0, the
+     * subscription changes are collected for that long and only the net
+     * change of each item is then queued, in one batch: a subscription
+     * and its unsubscription within the window cancel out, and an
+     * unsubscription followed by a new subscription just becomes the
+     * latter (the Generator replaces the old handle).
+     * Under the write lock.
+     */
+    private int coalesceWindowMillis;
+    private LinkedHashMap<String,PendingChange> pendingChanges = new LinkedHashMap<String,PendingChange>();
+    private boolean flushScheduled = false;
+    //the subscription requests received and those actually queued
+    private volatile long requestedChanges = 0;
+    private volatile long sentChanges = 0;
+
     /*
      * Status variables. This adapter has 3 possible states:
      * 1) jmsOk=false and lastHeartbeatRandom=-1:
@@ -85,13 +174,70 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
      *    heartbeats (and/or data) by the Generator.
      */
     private volatile boolean jmsOk = false;
-    private int lastHeartbeatRandom = -1;
+    //changed under the write lock, but read without it to count the beats
+    private volatile int lastHeartbeatRandom = -1;
 
     /**
      * A simple counter to know if any updates/heratbeats
-     * were received since the last check.
+     * were received since the last check; incremented without locks,
+     * so that the beats are counted even while the lock is held (e.g.
+     * during a slow dispatch).
      */
-    private int heartbeatCount = 0;
+    private final AtomicInteger heartbeatCount = new AtomicInteger();
+
+    /**
+     * The time without heartbeats after which the Generator is considered
+     * down; a longer one lets a Generator restart (and resume its life
+     * from a checkpoint) without the clients noticing.
+     */
+    private int heartbeatTimeoutMillis = 2000;
+
+    /**
+     * If the heartbeats have their own topic (heartbeatTopicName), they are
+     * received by a HeartbeatLaneListener, on its own JMS session, hence
+     * not delayed by a backlog of updates; only they can then start a new
+     * life of the feed, while the updates (and any heartbeat found among
+     * them) of a different life are discarded as leftovers.
+     */
+    private boolean heartbeatLane = false;
+
+    /**
+     * The inactive status is sent to the items, when the feed is lost, by a
+     * StatusSweepThread, this many items at a time; each feed loss starts a
+     * new sweep and the previous one, if still running, stops.
+     */
+    private int statusChunkSize = 64;
+    private volatile int feedLossCount = 0;
+
+    /**
+     * The last values of the items, kept across restarts (null if not
+     * configured); one slot per item, item1 in slot 0.
+     */
+    private LastValueStore lastValues = null;
+
+    /**
+     * If configured, the messages received are just stored in this ring
+     * by the thread of our JMS session and handled by a DispatchThread.
+     * Either way, a single thread handles the messages (handleMessage):
+     * the one of our JMS session or the DispatchThread; it is called the
+     * dispatching thread elsewhere.
+     */
+    private DispatchRing dispatchRing = null;
+
+    /**
+     * The hottest items by update rate, bytes and discarded updates (null
+     * if not configured); the hotItemsTop first ones are logged each
+     * hotItemsLogSeconds, if not 0.
+     */
+    private HotItemTracker hotItems = null;
+    private int hotItemsTop;
+    private int hotItemsLogSeconds;
+
+    /**
+     * Where the received messages are recorded, for later replays (null
+     * if not configured, or after a write error or the shutdown).
+     */
+    private volatile FeedJournal journal = null;
 
     /**
      * This map will update every subscribed item setting
@@ -145,6 +291,8 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
 
         //load JMS connections parameters
         String providerURL = getParam(params,"jmsUrl",true,null);
+        //the optional secondary provider (same names are looked up there)
+        String standbyProviderURL = (String) params.get("standbyJmsUrl");
         String initialContextFactory = getParam(params,"initialContextFactory",true,null);
         String topicConnectionFactory = getParam(params,"topicConnectionFactory",true,null);
         String queueConnectionFactory = getParam(params,"queueConnectionFactory",true,null);
@@ -155,17 +303,132 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
         //in case of disconnection/failed_connection from/to JMS this is
         //the pause between each reconnection attempt
         this.recoveryPause = getParam(params,"recoveryPauseMillis",false,2000);
+        //the pause doubles on each failed attempt (with some jitter), up to this limit
+        this.maxRecoveryPause = getParam(params,"maxRecoveryPauseMillis",false,ConnectionLoop.DEFAULT_MAX_RECOVERY_PAUSE);
+        //the Generator is considered down after this time without heartbeats
+        this.heartbeatTimeoutMillis = getParam(params,"heartbeatTimeoutMillis",false,2000);
+        //subscriptions and unsubscriptions are collected for this long, so that the opposite ones cancel out
+        this.coalesceWindowMillis = getParam(params,"coalesceWindowMillis",false,0);
+        //the heartbeats can have a topic of their own, not to queue behind the updates
+        String heartbeatTopic = (String) params.get("heartbeatTopicName");
+        this.heartbeatLane = heartbeatTopic != null;
+        //how many items get the inactive status at a time when the feed is lost
+        this.statusChunkSize = Math.max(1, getParam(params,"statusChunkSize",false,64));
+        //above this delay in receiving the updates, we ask the Generator to slow down
+        this.maxLagMillis = getParam(params,"maxLagMillis",false,0);
+        //updates later than this are dropped or conflated, as they would only show old prices
+        this.maxAgeMillis = getParam(params,"maxAgeMillis",false,0);
+        this.conflateStale = !"drop".equals(getParam(params,"staleUpdates",false,"conflate"));
+
+        //how our background activities are run: platform, virtual or pooled threads
+        Activities.configure(getParam(params,"threadMode",false,Activities.PLATFORM));
+
+        //where the last values of the items are kept across restarts, if anywhere
+        String lastValueFile = (String) params.get("lastValueFile");
+        if (lastValueFile != null) {
+            File file = new File(lastValueFile);
+            if (!file.isAbsolute() && configDir != null) {
+                file = new File(configDir, lastValueFile);
+            }
+            try {
+                lastValues = new LastValueStore(file, 30);
+                logger.info("Last values kept in " + file.getAbsolutePath());
+                final LastValueStore store = lastValues;
+                //on a clean stop, make sure the last values reach the disk
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        store.force();
+                    }
+                });
+            } catch (IOException e) {
+                throw new DataProviderException("Can't open lastValueFile " + file.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
+
+        //the slots of the ring between the JMS session and the dispatch thread, 0 = no ring
+        int dispatchRingSize = getParam(params,"dispatchRingSize",false,0);
+        if (dispatchRingSize > 0) {
+            dispatchRing = new DispatchRing(dispatchRingSize, getParam(params,"dispatchWait",false,DispatchRing.PARK));
+            logger.info("Dispatching through a ring of " + dispatchRing.getSize() + " slots, " + dispatchRing.getWaitStrategy() + " wait");
+        }
+
+        //how many of the hottest items are tracked and reported, 0 = none
+        this.hotItemsTop = getParam(params,"hotItemsTop",false,0);
+        if (hotItemsTop > 0) {
+            //the candidates are more than the reported items, for some accuracy at the bottom of the list
+            hotItems = new HotItemTracker(getParam(params,"hotItemsWindowSeconds",false,60),
+                    getParam(params,"hotItemsSketchWidth",false,1024), hotItemsTop * 4);
+            this.hotItemsLogSeconds = getParam(params,"hotItemsLogSeconds",false,60);
+        }
+
+        //where the received messages are recorded, if anywhere
+        String journalDir = (String) params.get("journalDir");
+        if (journalDir != null) {
+            File dir = new File(journalDir);
+            if (!dir.isAbsolute() && configDir != null) {
+                dir = new File(configDir, journalDir);
+            }
+            try {
+                journal = new FeedJournal(dir, getParam(params,"journalSegmentMB",false,64) * 1024L * 1024L);
+                logger.info("Recording the feed in " + dir.getAbsolutePath());
+                //on a clean stop, make sure the buffered records reach the disk
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        closeJournal();
+                    }
+                });
+            } catch (IOException e) {
+                throw new DataProviderException("Can't open journalDir " + dir.getAbsolutePath() + ": " + e.getMessage());
+            }
+        }
 
         logger.debug("Configuration read.");
 
         //create the JMS handler. The object will handle the instantiation of JMS-related objects
         jmsHandler = new JMSHandler(logger,initialContextFactory, providerURL,queueConnectionFactory, queue, topicConnectionFactory, topic);
-        //the message listener that will receive JMS messages will be the StockQuotesJMSDataAdapter instance (this)
-        jmsHandler.setListener(this);
+        if (standbyProviderURL == null) {
+            //the message listener that will receive JMS messages will be the StockQuotesJMSDataAdapter instance (this)
+            jmsHandler.setListener(this);
+        } else {
+            logger.info("Standby JMS provider: " + standbyProviderURL);
+            standbyHandler = new JMSHandler(logger,initialContextFactory, standbyProviderURL,queueConnectionFactory, queue, topicConnectionFactory, topic);
+            standbyHandler.setStandby(true);
+            //each handler gets its own listener, so that we know which provider failed
+            jmsHandler.setListener(new ProviderListener(jmsHandler));
+            standbyHandler.setListener(new ProviderListener(standbyHandler));
+        }
+        if (heartbeatLane) {
+            logger.info("Heartbeats expected on " + heartbeatTopic);
+            //one listener for both providers, as only one is subscribed at a time
+            HeartbeatLaneListener laneListener = new HeartbeatLaneListener();
+            jmsHandler.setPriorityTopic(heartbeatTopic, laneListener);
+            if (standbyHandler != null) {
+                standbyHandler.setPriorityTopic(heartbeatTopic, laneListener);
+            }
+        }
+
+        if (dispatchRing != null) {
+            //ready before the first message
+            Activities.start(new DispatchThread());
+        }
 
         //this thread keeps on trying to connect to JMS until succedes. When connected
         //calls the onConnection method
-        new ConnectionLoopTSQS(jmsHandler, recoveryPause, logger).start();
+        Activities.start(new ConnectionLoopTSQS(jmsHandler, false));
+        if (standbyHandler != null) {
+            //this one just prepares the standby connections
+            Activities.start(new ConnectionLoopTSQS(standbyHandler, true));
+        }
+
+        if (maxLagMillis > 0) {
+            Activities.start(new FlowControlThread());
+        }
+        if (hotItems != null && hotItemsLogSeconds > 0) {
+            Activities.start(new HotItemsLogThread());
+        }
+        if (journal != null) {
+            Activities.start(new JournalFlushThread());
+        }
 
         logger.info("StockQuotesJMSDataAdapter ready.");
     }
@@ -227,18 +490,22 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
             handles.put(uniqueId,itemHandle);
 
             boolean dispatchThread = false;
+            //the last known values, if any, are better than nothing while we wait
+            //for the live ones (since this call is non-blocking we can issue it here)
+            boolean staleSent = dispatchStaleValues(itemAttrs, uniqueId);
             if (lastHeartbeatRandom == -1) {
-                //JMS is not available now, send the inactive flag to the clients
-                //since this call is non-blocking we can issue it here
-                dispatchInactiveFlag(itemAttrs);
+                if (!staleSent) {
+                    //JMS is not available now, send the inactive flag to the clients
+                    //since this call is non-blocking we can issue it here
+                    dispatchInactiveFlag(itemAttrs);
+                }
             } else {
                 //insert the subscription request to be dispatched to the Generator via JMS.
                 //This request asks the Simulator to start dispatching the data flow
                 //for this item. Note that it "enables" Generator to send data for this item
                 //and not to "generate" values for this item. In fact, Generator begins the
                 //production of values for all the items on startup.
-                toSendRequests.offer("subscribe"+itemName+"_"+uniqueId);
-                dispatchThread = true;
+                dispatchThread = queueSubscribe(itemName, uniqueId);
             }
 
         //release the lock
@@ -251,7 +518,7 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
             //Start a thread to send the subscribe request to the Generator.
             //We should use something better like a pool of threads here, but for simplicity we start a new
             //thread each time we place some new request to be sent to the Generator inside the queue
-            new SenderThread().start();
+            Activities.start(new SenderThread());
         }
    }
 
@@ -295,8 +562,7 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
                 //This request asks the Simulator to stop dispatching the data flow
                 //for this item (while the Generator keeps on producing the updates without
                 //publishing them over JMS)
-                toSendRequests.offer("unsubscribe"+itemName+"_"+item.handleId);
-                dispatchThread = true;
+                dispatchThread = queueUnsubscribe(itemName, item.handleId);
             }
 
         //release the lock
@@ -309,8 +575,94 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
             //Start a thread to send the unsubscribe request to the Generator.
             //We should use something better like a pool of threads here, but for simplicity we start a new
             //thread each time we place some new request to be sent to the Generator inside the queue
-            new SenderThread().start();
+            Activities.start(new SenderThread());
+        }
+    }
+
+    /**
+     * Queues (or, with coalescing, collects) a subscription request for the
+     * Generator. Must be called while holding the write lock.
+     * @return true if a SenderThread has to be started.
+     */
+    private boolean queueSubscribe(String itemName, String handleId) {
+        requestedChanges++;
+        if (coalesceWindowMillis <= 0) {
+            toSendRequests.offer("subscribe"+itemName+"_"+handleId);
+            sentChanges++;
+            return true;
         }
+        pendingChange(itemName).subscribeHandle = handleId;
+        return false;
+    }
+
+    /**
+     * Queues (or, with coalescing, collects) an unsubscription request for
+     * the Generator. Must be called while holding the write lock.
+     * @return true if a SenderThread has to be started.
+     */
+    private boolean queueUnsubscribe(String itemName, String handleId) {
+        requestedChanges++;
+        if (coalesceWindowMillis <= 0) {
+            toSendRequests.offer("unsubscribe"+itemName+"_"+handleId);
+            sentChanges++;
+            return true;
+        }
+        PendingChange change = pendingChange(itemName);
+        if (!handleId.equals(change.subscribeHandle)) {
+            //the Generator knows this one
+            change.unsubscribeHandle = handleId;
+        }
+        //else it never got the subscription: the unsubscription this
+        //window started with, if any, is still what it needs
+        change.subscribeHandle = null;
+        return false;
+    }
+
+    private PendingChange pendingChange(String itemName) {
+        PendingChange change = pendingChanges.get(itemName);
+        if (change == null) {
+            change = new PendingChange();
+            pendingChanges.put(itemName, change);
+        }
+        if (!flushScheduled) {
+            flushScheduled = true;
+            Activities.start(new CoalescingThread());
+        }
+        return change;
+    }
+
+    /**
+     * Queues the net changes collected in the window.
+     * Must be called while holding the write lock.
+     * @return true if something was queued.
+     */
+    private boolean flushChanges() {
+        boolean queued = false;
+        for (Map.Entry<String,PendingChange> entry : pendingChanges.entrySet()) {
+            PendingChange change = entry.getValue();
+            if (change.subscribeHandle != null) {
+                //it replaces the old subscription, if any
+                toSendRequests.offer("subscribe"+entry.getKey()+"_"+change.subscribeHandle);
+            } else if (change.unsubscribeHandle != null) {
+                toSendRequests.offer("unsubscribe"+entry.getKey()+"_"+change.unsubscribeHandle);
+            } else {
+                //subscribed and unsubscribed within the window
+                continue;
+            }
+            sentChanges++;
+            queued = true;
+        }
+        pendingChanges.clear();
+        flushScheduled = false;
+        return queued;
+    }
+
+    /**
+     * How many subscription and unsubscription requests were not sent to
+     * the Generator, as they cancelled out within the coalescing window.
+     */
+    public long getCoalescedRequests() {
+        return requestedChanges - sentChanges;
     }
 
     /**
@@ -336,8 +688,9 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
      *   it). In that case, also the updates received from the onMessage
      *   event should be queued in the same way.
      * 2-As this method is always called by a method that already owns the
-     *   write lock, we don't get any lock here, (it would be better if there
-     *   was a test here that gets a lock if the running thread doesn't own one).
+     *   write lock, or by the StatusSweepThread with the read lock while the
+     *   feed is down (when no message can update the item), we don't get
+     *   any lock here.
      */
     private void dispatchInactiveFlag(SubscribedItemAttributes item) {
         //get the information about the snapshot status of the item (i.e. whether was already sent or not)
@@ -362,6 +715,97 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
 
     }
 
+    /**
+     * Sends the stored values of an item, if any, as its snapshot; the live
+     * values will then overwrite them. Only the values loaded from the file
+     * get item_status set to "stale"; those received in this run keep
+     * their status, unless the feed is lost now ("inactive").
+     * Called with the write lock.
+     */
+    private boolean dispatchStaleValues(SubscribedItemAttributes item, String handleId) {
+        if (lastValues == null || item.isSnapshotSent) {
+            return false;
+        }
+        int slot = itemSlot(item.itemName);
+        QuoteRecord stored = lastValues.get(slot);
+        if (stored == null) {
+            return false;
+        }
+        HashMap<String,String> storedMap = stored.toMap();
+        if (lastValues.isStale(slot)) {
+            storedMap.put("item_status","stale");
+        } else if (lastHeartbeatRandom == -1) {
+            storedMap.put("item_status","inactive");
+        }
+        item.isSnapshotSent = true;
+        listener.smartUpdate(handles.get(handleId),storedMap,true);
+        logger.debug("Stored values dispatched: " + item.itemName + " (" + handleId + ")");
+        return true;
+    }
+
+    /**
+     * Appends a received payload to the journal; on a write error the
+     * recording stops, the feed goes on.
+     */
+    private synchronized void record(long arrivalNanos, Object payload) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.append(arrivalNanos, payload);
+        } catch (IOException e) {
+            stopRecording(e);
+        }
+    }
+
+    /**
+     * Flushes the journal, if the records waited in its buffer for a
+     * second; the appends do the same, but not while the feed is idle.
+     */
+    private synchronized void flushJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.flushIfDue(System.nanoTime());
+        } catch (IOException e) {
+            stopRecording(e);
+        }
+    }
+
+    /**
+     * Closes the journal, writing out the buffered records; no more
+     * records are taken.
+     */
+    private synchronized void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.error("Can't close the journal in " + journal.getDir() + ": " + e.getMessage());
+        }
+        journal = null;
+    }
+
+    private void stopRecording(IOException e) {
+        logger.error("Can't write the journal in " + journal.getDir() + ", recording stopped: " + e.getMessage());
+        try {
+            journal.close();
+        } catch (IOException ce) {
+            //nothing more to do
+        }
+        journal = null;
+    }
+
+    /**
+     * The slot of a valid item in the LastValueStore.
+     */
+    private static int itemSlot(String itemName) {
+        return Integer.parseInt(itemName.substring(4)) - 1;
+    }
+
     ///////////MessageListener
 
     private static final String noCompMex = "Message received was not compatible with this adapter. Maybe someone else sending messages?";
@@ -376,6 +820,12 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
             logger.info("JMS is now up");
             //JMS connection is now up
             jmsOk = true;
+            if (lastHeartbeatRandom != -1) {
+                //the feed stayed available (only the queue side was lost) or a heartbeat
+                //arrived before the queue side was ready: the requests sent in the meantime
+                //may have been lost, so we issue them again
+                this.subscribeAll();
+            }
         //release the lock
         logger.debug("------------------>Write UNLOCK 3");
         rwLock.writeLock().unlock();
@@ -397,8 +847,15 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
         //Any previous request will be reissued so we have to clear the queue in order to avoid
         //duplicate requests.
         toSendRequests.clear();
+        pendingChanges.clear();
         //send a reset message to shut down all possible old subscription
         toSendRequests.offer("reset");
+        //let the Generator send field ids in place of the field names
+        toSendRequests.offer("schema"+FieldSchema.CURRENT_VERSION);
+        if (throttleMillis > 0) {
+            //the reset also stops the conflation
+            toSendRequests.offer("throttle"+throttleMillis);
+        }
         //iterate through the subscribedItem to issue one subscription request per each subscribed item
         Enumeration<SubscribedItemAttributes> subItems = subscribedItems.elements();
         while(subItems.hasMoreElements()) {
@@ -410,30 +867,115 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
         //Start a thread to send the subscribe request to the Generator.
         //We should use something better like a pool of threads here, but for simplicity we start a new
         //thread each time we place some new request to be sent to the Generator inside the queue
-        new SenderThread().start();
+        Activities.start(new SenderThread());
     }
 
     /**
      * Called whenever the connection to JMS is lost.
      */
      public void onException(JMSException je) {
+         onException(jmsHandler, je);
+     }
+
+    /**
+     * Called whenever the connection to one of the JMS providers is lost.
+     */
+    private void onException(JMSHandler source, JMSException je) {
         logger.error("onException: JMSException -> " + je.getMessage());
 
+        boolean standbyLost = false;
+        boolean failedOver = false;
+
         //get the write lock in order to set the jmsOk flag and to call the onFeedDisconnection method
         rwLock.writeLock().lock();
         logger.debug("------------------>Write LOCK 4");
-            logger.info("JMS is now down");
-            //when the JMS connection is lost, obviously also the connection with the Generator is
-            this.onFeedDisconnection();
-            //set jmsOk to false, we are no more connected with JMS
-            jmsOk = false;
+            if (source == standbyHandler) {
+                //nothing changes for the clients, we just have to prepare the standby again
+                standbyLost = true;
+            } else if (jmsHandler.isTopicReady()) {
+                logger.info("JMS is now down");
+                //only the queue side was lost: updates keep flowing through the topic,
+                //so the feed is still available (the heartbeats will tell otherwise)
+                logger.info("Topic connection still available");
+            } else if (this.failover()) {
+                //the items stay active: if the Generator moves to the same provider
+                //its heartbeats will keep arriving, otherwise the HeartbeatThread
+                //will declare the feed lost as usual
+                failedOver = true;
+            } else {
+                logger.info("JMS is now down");
+                if (jmsOk || lastHeartbeatRandom != -1) {
+                    //when the JMS connection is lost, obviously also the connection with the Generator is
+                    this.onFeedDisconnection();
+                }
+            }
+            if (failedOver) {
+                //both sides of the new provider are up, even if the queue side of the
+                //failed one had already been lost
+                jmsOk = true;
+            } else if (!standbyLost) {
+                //set jmsOk to false, we are no more connected with JMS
+                jmsOk = false;
+            }
         logger.debug("------------------>Write UNLOCK 4");
         //release the lock
         rwLock.writeLock().unlock();
 
-        //start loop to try to reconnect
-        new ConnectionLoopTSQS(jmsHandler, recoveryPause, logger).start();
+        if (standbyLost) {
+            logger.warn("Standby JMS provider lost");
+            //start loop to prepare the standby connections again
+            Activities.start(new ConnectionLoopTSQS(source, true));
+        } else if (failedOver) {
+            //the failed provider becomes the standby one
+            Activities.start(new ConnectionLoopTSQS(standbyHandler, true));
+        } else {
+            //start loop to try to reconnect
+            Activities.start(new ConnectionLoopTSQS(jmsHandler, false));
+        }
+
+    }
+
+    /**
+     * Switches to the standby provider, if it is ready.
+     * As this method is always called by a method that already owns the
+     * write lock, we don't get any lock here.
+     */
+    private boolean failover() {
+        if (standbyHandler == null || !standbyHandler.isTopicReady() || !standbyHandler.isQueueReady()) {
+            return false;
+        }
+        JMSHandler failed = jmsHandler;
+        JMSHandler standby = standbyHandler;
+        //from now on, a connection loop still running for the failed provider
+        //can't create the subscribers there: we must get the messages from a
+        //single session (the dispatch ring, if any, takes a single producer)
+        failed.setStandby(true);
+        try {
+            //the session is already there: this just creates the subscriber
+            //and starts the connection
+            standby.setStandby(false);
+            standby.initTopicSubscriber();
+        } catch (Exception e) {
+            logger.error("Failover to the standby JMS provider failed: " + e.getMessage());
+            standby.setStandby(true);
+            failed.setStandby(false);
+            return false;
+        }
+        jmsHandler = standby;
+        standbyHandler = failed;
+        //the timestamps may now come from another broker clock
+        resetLag();
+        //close what survived on the failed provider, it will be prepared again as standby
+        failed.reset();
+        logger.info("Switched to the standby JMS provider");
+        return true;
+    }
 
+    /**
+     * Called by ConnectionLoop once the standby connections are ready.
+     */
+    public void onStandbyConnection() {
+        logger.info("Standby JMS provider ready");
     }
 
     /**
@@ -442,17 +984,19 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
      * As this method is always called by a method that already owns the
      * write lock, we don't get any lock here, (it would be better if there
      * was a test here that gets a lock if the running thread doesn't own one).
+     * The "inactive" updates are sent by a StatusSweepThread, so that the
+     * lock is not kept for the whole sweep.
      */
     public void onFeedDisconnection() {
         logger.info("Feed no more available");
         //set lastHeartbeatRandom to -1, ie we are no more connected with the Generator
         lastHeartbeatRandom = -1;
-        //we iterates through the subscribedItem to send the "incative" field per each subscribed item
-        Enumeration<SubscribedItemAttributes> subItems = subscribedItems.elements();
-        while(subItems.hasMoreElements()) {
-            SubscribedItemAttributes sia = subItems.nextElement();
-            this.dispatchInactiveFlag(sia);
+        if (FeedEvents.FEED_STATE.isEnabled()) {
+            FeedEvents.FEED_STATE.emit("lost", -1);
         }
+        //a sweep of a previous loss, if still running, stops at its next item
+        feedLossCount++;
+        Activities.start(new StatusSweepThread(feedLossCount));
     }
 
     /**
@@ -463,29 +1007,60 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
             logger.warn(noCompMex + " (null)");
             return;
         }
+        long arrivalNanos = System.nanoTime();
+        if (dispatchRing != null && dispatchRing.publish(message, arrivalNanos)) {
+            //the DispatchThread does the rest
+            return;
+        }
+        handleMessage(message, arrivalNanos);
+    }
+
+    /**
+     * Decodes a message and dispatches its update, if any.
+     */
+    private void handleMessage(Message message, long arrivalNanos) {
         logger.debug("Received message");
+        long lag = -1;
+        if (maxLagMillis > 0 || maxAgeMillis > 0) {
+            lag = measureLag(message);
+        }
         //we have to extract data from the Message object
         FeedMessage feedMsg = null;
         SubscribedItemAttributes item = null;
+        //null unless the event is enabled
+        Object received = FeedEvents.MESSAGE_RECEIVED.begin();
         try {
-            //cast Message to ObjectMessage.
-            ObjectMessage objectMessage = (ObjectMessage) message;
-            //Obtain the contained Serializable object
+            //obtain the contained Serializable object (from an ObjectMessage
+            //or, if it was encoded by a PayloadCodec, from a BytesMessage)
+            Object payload = codec.decode(message);
+            if (received != null) {
+                messageReceived(received, message, payload);
+            }
+            if (journal != null) {
+                record(arrivalNanos, payload);
+            }
             //try to cast it to HeartbeatMessage
             try {
-                HeartbeatMessage beat = (HeartbeatMessage) objectMessage.getObject();
-                handleHeartbeat(beat.random);
+                HeartbeatMessage beat = (HeartbeatMessage) payload;
+                if (FeedEvents.HEARTBEAT.isEnabled()) {
+                    FeedEvents.HEARTBEAT.emit(beat.random, "received");
+                }
+                handleHeartbeat(beat.random, !heartbeatLane);
                 return;
             } catch(ClassCastException jmse) {
                 //not an Heartbeat, try to cast it to FeedMessage
-                feedMsg = (FeedMessage) objectMessage.getObject();
+                feedMsg = (FeedMessage) payload;
                 //test the contained heartbeat (the Generator could avoid to send the HeartbeatMessage if in
                 //the last second a FeedMessage was sent)
-                if (!handleHeartbeat(feedMsg.random)) {
+                if (!handleHeartbeat(feedMsg.random, !heartbeatLane)) {
+                    discarded(feedMsg.itemName, heartbeatLane ? "other feed life" : "new feed life");
                     return;
                 }
             }
             logger.debug("Valid message");
+            if (hotItems != null) {
+                hotItems.addUpdate(feedMsg.itemName, messageBytes(message, feedMsg), arrivalNanos);
+            }
         } catch (ClassCastException jmse) {
             //if message isn't an ObjectMessage or message.getObject() isn't a FeedMessage
             //then this update is not "correct"
@@ -511,11 +1086,15 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
                 logger.debug("------------------>Read UNLOCK 5");
                 rwLock.readLock().unlock();
                 logger.debug("Received update for not subscribed item: "+ feedMsg.itemName);
+                discarded(feedMsg.itemName, "not subscribed");
                 return;
             }
 
             Object handle = null;
             boolean isSnapshot = false;
+            boolean gap = false;
+            boolean resync = false;
+            boolean stale = false;
 
             //get the object that represents the item
             item = subscribedItems.get(feedMsg.itemName);
@@ -532,9 +1111,39 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
                     logger.debug("------------------>Read UNLOCK 5");
                     rwLock.readLock().unlock();
                     logger.debug("Received update for unsubscribed handle: " + feedMsg.itemName + "(" + feedMsg.handleId + ")");
+                    discarded(feedMsg.itemName, "old handle");
                     return;
                 }
 
+                //check the sequence number, if any (only the dispatching thread gets here)
+                if (feedMsg.seq > 0) {
+                    if (feedMsg.isSnapshot && feedMsg.seq == 1) {
+                        //the Generator (re)started the flow for this handle
+                        item.lastSeq = 1;
+                    } else if (feedMsg.seq <= item.lastSeq) {
+                        //a late or duplicated update: a newer one was already forwarded
+
+                        //release the lock and exit
+                        logger.debug("------------------>Read UNLOCK 5");
+                        rwLock.readLock().unlock();
+                        logger.debug("Discarded late update for item " + feedMsg.itemName + ": " + feedMsg.seq + " <= " + item.lastSeq);
+                        discarded(feedMsg.itemName, "late");
+                        return;
+                    } else {
+                        //as the updates are complete, this one can be forwarded even after a gap;
+                        //still, the Generator can't tell us what we missed, so we ask it
+                        //to restart the flow for this item
+                        gap = feedMsg.seq != item.lastSeq + 1;
+                        item.lastSeq = feedMsg.seq;
+                    }
+                    if (gap) {
+                        gapCount++;
+                        item.resyncPending = true;
+                    }
+                    //not too often: see GAP_RESYNC_MILLIS
+                    resync = item.resyncPending && System.currentTimeMillis() - item.lastResyncTime >= GAP_RESYNC_MILLIS;
+                }
+
                 //Since the generator always sends a complete update (i.e. it does not filter unchanged values)
                 //we can handle the snapshot flag on the adapter side:
                 //the feedMessage carries a isSnapshot flag but we ignore that flag and set the isSnapshot flag
@@ -543,51 +1152,507 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
                     item.isSnapshotSent = true;
                     isSnapshot = true;
                 }
+
+                stale = maxAgeMillis > 0 && lag > maxAgeMillis && !isSnapshot && !feedMsg.isSnapshot;
             }
             logger.debug("Received update for item " + feedMsg.itemName);
 
             // forward the update to Lightstreamer kernel
-            listener.smartUpdate(handle,feedMsg.currentValues,isSnapshot);
+            Object dispatched = stale ? null : FeedEvents.UPDATE_DISPATCHED.begin();
+            if (stale) {
+                holdStale(item, feedMsg, lag);
+            } else if (feedMsg.quote != null) {
+                QuoteRecord quote = feedMsg.quote;
+                if (item != null && item.pendingQuote != null) {
+                    //the stale values held back go along with these (a snapshot has them all)
+                    if (!feedMsg.isSnapshot) {
+                        item.pendingQuote.mergeFrom(quote);
+                        quote = item.pendingQuote;
+                    }
+                    item.pendingQuote = null;
+                }
+                //numbers: the kernel gets the strings of the fields it reads
+                listener.smartUpdate(handle,(IndexedItemEvent) new QuoteItemEvent(quote),isSnapshot);
+                if (lastValues != null) {
+                    lastValues.update(itemSlot(feedMsg.itemName), feedMsg.quote, feedMsg.isSnapshot);
+                }
+            } else if (feedMsg.encodedValues != null) {
+                //no map: the kernel decodes only the values it needs
+                listener.smartUpdate(handle,(IndexedItemEvent) new EncodedItemEvent(feedMsg.encodedValues),isSnapshot);
+            } else {
+                listener.smartUpdate(handle,feedMsg.currentValues,isSnapshot);
+            }
+            if (dispatched != null) {
+                FeedEvents.UPDATE_DISPATCHED.commit(dispatched, feedMsg.itemName, isSnapshot);
+            }
         //release the lock
         logger.debug("------------------>Read UNLOCK 5");
         rwLock.readLock().unlock();
 
+        if (resync) {
+            logger.warn("Gap detected for item " + feedMsg.itemName + " (" + feedMsg.handleId + "): got " + feedMsg.seq);
+            resubscribe(item, feedMsg.handleId);
+        } else if (gap) {
+            logger.debug("Gap detected for item " + feedMsg.itemName + " (" + feedMsg.handleId + "): got " + feedMsg.seq + ", resync postponed");
+        }
+
      }
 
     /**
-     * Called on each message received from JMS.
+     * Keeps back (or drops) a stale update, see maxAgeMillis.
+     * Called with the read lock, by the dispatching thread.
      */
-    private boolean handleHeartbeat(int beat) {
+    private void holdStale(SubscribedItemAttributes item, FeedMessage feedMsg, long lag) {
+        if (conflateStale && feedMsg.quote != null) {
+            if (item.pendingQuote == null) {
+                item.pendingQuote = feedMsg.quote.copy();
+            } else {
+                item.pendingQuote.mergeFrom(feedMsg.quote);
+            }
+            staleConflated++;
+            discarded(feedMsg.itemName, "stale conflated");
+        } else {
+            staleDropped++;
+            discarded(feedMsg.itemName, "stale dropped");
+        }
+        if (lastValues != null && feedMsg.quote != null) {
+            //still the latest values we know
+            lastValues.update(itemSlot(feedMsg.itemName), feedMsg.quote, false);
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastStaleLog >= 10000) {
+            lastStaleLog = now;
+            logger.warn("Updates " + lag + "ms late, above maxAgeMillis: " + staleDropped + " dropped and "
+                    + staleConflated + " conflated so far");
+        }
+    }
+
+    private void messageReceived(Object event, Message message, Object payload) throws JMSException {
+        boolean compressed = PayloadCodec.DEFLATE.equals(message.getStringProperty(PayloadCodec.CODEC_PROPERTY));
+        //the size of an ObjectMessage is known to the broker only
+        int size = message instanceof BytesMessage ? (int) ((BytesMessage) message).getBodyLength() : -1;
+        String type = payload == null ? "null" : payload.getClass().getSimpleName();
+        FeedEvents.MESSAGE_RECEIVED.commit(event, type, size, compressed);
+    }
+
+    private void discarded(String itemName, String reason) {
+        if (FeedEvents.UPDATE_DISCARDED.isEnabled()) {
+            FeedEvents.UPDATE_DISCARDED.emit(itemName, reason);
+        }
+        if (hotItems != null) {
+            hotItems.add(HotItemTracker.DISCARDS, itemName, 1, System.nanoTime());
+        }
+    }
+
+    //the size of an encoded (maybe compressed) message, or else of the values it carries
+    private static int messageBytes(Message message, FeedMessage feedMsg) throws JMSException {
+        if (message instanceof BytesMessage) {
+            return (int) ((BytesMessage) message).getBodyLength();
+        } else if (feedMsg.quote != null) {
+            return feedMsg.quote.encodedSize();
+        } else if (feedMsg.encodedValues != null) {
+            return feedMsg.encodedValues.length();
+        } else if (feedMsg.currentValues != null) {
+            int size = 0;
+            for (Object entry : feedMsg.currentValues.entrySet()) {
+                Map.Entry<?,?> field = (Map.Entry<?,?>) entry;
+                size += String.valueOf(field.getKey()).length() + String.valueOf(field.getValue()).length();
+            }
+            return size;
+        }
+        return 0;
+    }
+
+    /**
+     * How many times the feed was lost (no heartbeats in time, or no JMS).
+     */
+    public int getFeedLossCount() {
+        return feedLossCount;
+    }
+
+    /**
+     * The messages waiting in the dispatch ring (0 without a ring).
+     */
+    public long getDispatchDepth() {
+        return dispatchRing == null ? 0 : dispatchRing.getDepth();
+    }
+
+    /**
+     * The highest number of messages seen waiting in the dispatch ring.
+     */
+    public long getDispatchPeakDepth() {
+        return dispatchRing == null ? 0 : dispatchRing.getPeakDepth();
+    }
+
+    /**
+     * How many times the JMS session found the dispatch ring full.
+     */
+    public long getDispatchProducerWaits() {
+        return dispatchRing == null ? 0 : dispatchRing.getProducerWaits();
+    }
+
+    /**
+     * The n hottest items by the given HotItemTracker metric, in its
+     * window; empty if hotItemsTop is not configured.
+     */
+    public List<HotItemTracker.HotItem> getHotItems(int metric, int n) {
+        if (hotItems == null) {
+            return Collections.emptyList();
+        }
+        return hotItems.getTop(metric, n);
+    }
+
+    /**
+     * The stale updates dropped so far (see maxAgeMillis).
+     */
+    public long getStaleDropped() {
+        return staleDropped;
+    }
+
+    /**
+     * The stale updates held back so far and sent merged with a later one.
+     */
+    public long getStaleConflated() {
+        return staleConflated;
+    }
+
+    /**
+     * Asks the Generator to restart the flow of a single item, under a new
+     * handle id: the updates of the old flow still in transit will then be
+     * discarded, as the old id is no longer in the handles map.
+     * The first update of the new flow carries the complete item state;
+     * since the clients already got their snapshot, it is forwarded as a
+     * normal update.
+     */
+    private void resubscribe(SubscribedItemAttributes item, String oldHandleId) {
+        boolean dispatchThread = false;
+        rwLock.writeLock().lock();
+        logger.debug("------------------>Write LOCK 9");
+            //a new flow (or the end of this one) is coming anyway
+            item.resyncPending = false;
+            item.lastResyncTime = System.currentTimeMillis();
+            //check that nothing changed in the meantime
+            if (lastHeartbeatRandom != -1 && subscribedItems.get(item.itemName) == item && item.handleId.equals(oldHandleId)) {
+                Object handle = handles.remove(oldHandleId);
+                if (handle != null) {
+                    String uniqueId = String.valueOf(nextHandleId++);
+                    handles.put(uniqueId, handle);
+                    item.handleId = uniqueId;
+                    item.lastSeq = 0;
+                    dispatchThread = queueSubscribe(item.itemName, uniqueId);
+                }
+            }
+        logger.debug("------------------>Write UNLOCK 9");
+        rwLock.writeLock().unlock();
+
+        if (dispatchThread) {
+            logger.info("Resubscribing " + item.itemName + " (" + item.handleId + ")");
+            Activities.start(new SenderThread());
+        }
+    }
+
+    /**
+     * Measures how late the message is, i.e. how long it stayed in the
+     * broker and in our session, net of the difference between the clocks
+     * (estimated as the lowest transit time seen in the last one or two
+     * LAG_WINDOW_MILLIS, so that a clock moved back is eventually
+     * forgotten; a lag lasting longer is forgotten as well). The estimate
+     * starts over with each life of the feed and on failover.
+     * Only the dispatching thread gets here.
+     * Returns the lag, or -1 if the message has no timestamp.
+     */
+    private long measureLag(Message message) {
+        long sent;
+        try {
+            sent = message.getJMSTimestamp();
+        } catch (JMSException e) {
+            return -1;
+        }
+        if (sent <= 0) {
+            //timestamps disabled by the producer
+            return -1;
+        }
+        long now = System.currentTimeMillis();
+        long transit = now - sent;
+        if (lagReset) {
+            lagReset = false;
+            minTransit = Long.MAX_VALUE;
+            prevMinTransit = Long.MAX_VALUE;
+            minTransitSince = now;
+        } else if (now - minTransitSince >= LAG_WINDOW_MILLIS) {
+            prevMinTransit = minTransit;
+            minTransit = Long.MAX_VALUE;
+            minTransitSince = now;
+        }
+        if (transit < minTransit) {
+            minTransit = transit;
+        }
+        long lag = transit - Math.min(minTransit, prevMinTransit);
+        if (lag > maxLag) {
+            maxLag = lag;
+        }
+        return lag;
+    }
+
+    /**
+     * Makes measureLag start its estimate over.
+     */
+    private void resetLag() {
+        lagReset = true;
+        maxLag = 0;
+    }
+
+    /**
+     * Every second checks the lag: while it is above maxLagMillis the
+     * conflation interval requested to the Generator is doubled, then,
+     * once the lag is back well below, it is halved until turned off.
+     * As the effect of a request can only be seen after the backlog that
+     * was already there is consumed, after each increase we wait for as
+     * long as the lag was before increasing again.
+     * The sequence gaps count as an overload too: if the updates expire in
+     * the broker (see timeToLiveMillis on the Generator) the lag stays
+     * bounded, but the updates lost show that we can't keep up; nor can we
+     * tell when we could, so the conflation is only relaxed after
+     * GAP_QUIET_MILLIS without gaps.
+     */
+    private class FlowControlThread extends Thread {
+
+        private static final long MIN_THROTTLE = 100;
+        private static final long MAX_THROTTLE = 5000;
+        private static final long GAP_HOLD_MILLIS = 2000;
+        private static final long GAP_QUIET_MILLIS = 10000;
+
+        public FlowControlThread() {
+            setDaemon(true);
+        }
+
+        public void run() {
+            long holdUntil = 0;
+            long lastGaps = gapCount;
+            long lastGapTime = 0;
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    //shutting down
+                    return;
+                }
+                long lag = maxLag;
+                maxLag = 0;
+                long gaps = gapCount - lastGaps;
+                lastGaps += gaps;
+                long now = System.currentTimeMillis();
+                if (gaps > 0) {
+                    lastGapTime = now;
+                }
+
+                long throttle = throttleMillis;
+                if (lag > maxLagMillis || gaps > 0) {
+                    if (now < holdUntil) {
+                        //the last request has not taken effect yet
+                        continue;
+                    }
+                    //after a gap, a few more updates that were already in transit may be lost
+                    holdUntil = now + (gaps > 0 ? Math.max(lag, GAP_HOLD_MILLIS) : lag);
+                    throttle = throttle == 0 ? MIN_THROTTLE : Math.min(throttle * 2, MAX_THROTTLE);
+                } else if (lag < maxLagMillis / 2 && now - lastGapTime >= GAP_QUIET_MILLIS && throttle > 0) {
+                    throttle = throttle / 2 < MIN_THROTTLE ? 0 : throttle / 2;
+                }
+                if (throttle == throttleMillis) {
+                    continue;
+                }
+
+                boolean dispatchThread = false;
+                rwLock.writeLock().lock();
+                logger.debug("------------------>Write LOCK 10");
+                    throttleMillis = throttle;
+                    if (lastHeartbeatRandom != -1) {
+                        toSendRequests.offer("throttle"+throttle);
+                        dispatchThread = true;
+                    }
+                logger.debug("------------------>Write UNLOCK 10");
+                rwLock.writeLock().unlock();
+
+                logger.info("Lag " + lag + "ms" + (gaps > 0 ? ", " + gaps + " gaps" : "") + ": asking the Generator for a conflation interval of " + throttle + "ms");
+                if (dispatchThread) {
+                    Activities.start(new SenderThread());
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Called on each message received from JMS; a beat of a new life of
+     * the feed is only taken if canStartLife, otherwise it is ignored.
+     */
+    private boolean handleHeartbeat(int beat, boolean canStartLife) {
+        if (lastHeartbeatRandom == beat) {
+            //the heartbeat is correct, we increase a counter (if the feed is being
+            //declared lost right now, the count is simply ignored)
+            heartbeatCount.incrementAndGet();
+            logger.debug("Received heartbeat: " + beat);
+            return true;
+        }
         rwLock.writeLock().lock();
         logger.debug("------------------>Write LOCK 6");
             if (lastHeartbeatRandom == beat) {
-                //the heartbeat is correct, we increase a counter
-                heartbeatCount = (heartbeatCount+1)%1000;
-                logger.debug("Received heartbeat: " + beat);
-                //release the lock
+                //another thread got here first
+                heartbeatCount.incrementAndGet();
                 logger.debug("------------------>Write UNLOCK 6");
                 rwLock.writeLock().unlock();
                 return true;
+            } else if (!canStartLife) {
+                //a leftover of a previous life (or an early message of the next one)
+                logger.debug("------------------>Write UNLOCK 6");
+                rwLock.writeLock().unlock();
+                return false;
             } else {
                 //this is the first heartbeat received from this Generator's life (or the first one
                 //after a Generator's connectivity problem)
                 logger.debug("Received NEW heartbeat: " + beat +", feed is now available" );
                 //sets the new Heartbeat ID
                 lastHeartbeatRandom = beat;
+                //maybe a Generator on another host, with another clock
+                resetLag();
+                if (FeedEvents.FEED_STATE.isEnabled()) {
+                    FeedEvents.FEED_STATE.emit("available", beat);
+                }
                 //subscribe to all the subscribedItems towards the Generator
                 this.subscribeAll();
                 //reset the heartbeat counter
-                heartbeatCount = 0;
+                heartbeatCount.set(0);
                 //release the lock
                 logger.debug("------------------>Write UNLOCK 6");
                 rwLock.writeLock().unlock();
                 //start the new HeartbeatThread that will control that at least an heartbeat
                 //was received in the last 2 seconds.
-                new HeartbeatThread(beat).start();
+                Activities.start(new HeartbeatThread(beat));
                 return false;
             }
     }
 
+    /**
+     * Takes the messages from the dispatch ring and handles them, until
+     * shut down; the messages still in the ring are then lost and the
+     * following ones are handled by the thread of our JMS session.
+     */
+    private class DispatchThread extends Thread implements DispatchRing.Handler {
+
+        public DispatchThread() {
+            setName("Dispatch thread");
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    dispatchRing.await();
+                    try {
+                        dispatchRing.consume(this);
+                    } catch (RuntimeException e) {
+                        //the message is lost, not the thread
+                        logger.error("Error dispatching an update: " + e.getMessage(), e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                //shutting down
+            } finally {
+                dispatchRing.close();
+            }
+        }
+
+        public void onMessage(Message message, long arrivalNanos) {
+            handleMessage(message, arrivalNanos);
+        }
+
+    }
+
+    private class HotItemsLogThread extends Thread {
+
+        public HotItemsLogThread() {
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(hotItemsLogSeconds * 1000L);
+                } catch (InterruptedException e) {
+                    //shutting down
+                    return;
+                }
+                logger.info(hotItems.report(hotItemsTop));
+            }
+        }
+
+    }
+
+    private class JournalFlushThread extends Thread {
+
+        public JournalFlushThread() {
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (journal != null) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    //shutting down
+                    return;
+                }
+                flushJournal();
+            }
+        }
+
+    }
+
+    /**
+     * Sends the "inactive" field to the subscribed items, a chunk at a time,
+     * each chunk under the read lock: the messages can go on in between and
+     * the subscriptions and the heartbeats wait for one chunk at most.
+     * Stops as soon as the feed is back or lost again (in which case a new
+     * sweep is started). The items subscribed in the meantime get their
+     * inactive flag on subscription.
+     */
+    private class StatusSweepThread extends Thread {
+
+        private final int feedLoss;
+
+        public StatusSweepThread(int feedLoss) {
+            this.feedLoss = feedLoss;
+        }
+
+        public void run() {
+            //weakly consistent: it can be walked while the map changes
+            Enumeration<SubscribedItemAttributes> subItems = subscribedItems.elements();
+            int sent = 0;
+            while (subItems.hasMoreElements()) {
+                rwLock.readLock().lock();
+                logger.debug("------------------>Read LOCK 11");
+                try {
+                    for (int i = 0; i < statusChunkSize && subItems.hasMoreElements(); i++) {
+                        if (feedLoss != feedLossCount || lastHeartbeatRandom != -1) {
+                            logger.info("Inactive status sweep stopped after " + sent + " items: the feed state changed");
+                            return;
+                        }
+                        SubscribedItemAttributes sia = subItems.nextElement();
+                        if (subscribedItems.get(sia.itemName) == sia) {
+                            dispatchInactiveFlag(sia);
+                            sent++;
+                        }
+                    }
+                } finally {
+                    logger.debug("------------------>Read UNLOCK 11");
+                    rwLock.readLock().unlock();
+                }
+            }
+            logger.debug("Inactive status sent to " + sent + " items");
+        }
+
+    }
+
     private class HeartbeatThread extends Thread {
 
         private int random;
@@ -600,16 +1665,18 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
         public void run() {
             //this thread will go on until the heartbeat ID is changed
             while (this.random == lastHeartbeatRandom) {
-                //waits 2 seconds (i.e. we check the counter each 2 seconds)
+                //waits 2 seconds, by default (i.e. we check the counter each 2 seconds)
                 try {
-                    Thread.sleep(2000);
+                    Thread.sleep(heartbeatTimeoutMillis);
                 } catch (InterruptedException e) {
+                    //shutting down
+                    return;
                 }
                 //get the lock
                 rwLock.writeLock().lock();
                 logger.debug("------------------>Write LOCK 7");
-                    if (this.random == lastHeartbeatRandom && count == heartbeatCount) {
-                        logger.debug("2 Seconds without Heartbeats: " + this.random);
+                    if (this.random == lastHeartbeatRandom && count == heartbeatCount.get()) {
+                        logger.debug(heartbeatTimeoutMillis + "ms without Heartbeats: " + this.random);
                         //the heartbeat is the same that we have to check, but no heartbeat arrived
                         //in the last two second. We consider the Generator down.
                         onFeedDisconnection();
@@ -619,7 +1686,7 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
                         return;
                     } else {
                         //at least 1 heartbeat arrived in the last 2 seconds
-                        count = heartbeatCount;
+                        count = heartbeatCount.get();
                     }
                 //release the lock
                 logger.debug("------------------>Write UNLOCK 7");
@@ -689,19 +1756,127 @@ public class StockQuotesJMSDataAdapter implements SmartDataProvider, ExtendedMes
 
     private class ConnectionLoopTSQS extends ConnectionLoop {
 
-        public ConnectionLoopTSQS(JMSHandler jmsHandler, int recoveryPause, Logger logger) {
-            super(jmsHandler, recoveryPause, logger);
+        private JMSHandler handler;
+        private boolean standby;
+
+        public ConnectionLoopTSQS(JMSHandler handler, boolean standby) {
+            super(handler, recoveryPause, maxRecoveryPause, logger);
+            this.handler = handler;
+            this.standby = standby;
         }
 
         protected void onConnectionCall() {
             //call the connection handler
-            onConnection();
+            if (standby) {
+                onStandbyConnection();
+            } else {
+                onConnection();
+            }
         }
 
         protected void connectionCall() throws JMSException, NamingException {
+            if (standby) {
+                //only the QueueSender: a TopicSubscriber would receive
+                //(or buffer) the updates of the standby provider too
+                handler.initQueueSender(msgPoolSize);
+                return;
+            }
             //initialize TopicSubscriber and QueueSender
-            jmsHandler.initTopicSubscriber();
-            jmsHandler.initQueueSender(msgPoolSize);
+            handler.initTopicSubscriber();
+            handler.initQueueSender(msgPoolSize);
+        }
+
+    }
+
+    /**
+     * Forwards the events of one of the two handlers, when a standby
+     * provider is configured.
+     */
+    private class ProviderListener implements ExtendedMessageListener {
+
+        private JMSHandler handler;
+
+        public ProviderListener(JMSHandler handler) {
+            this.handler = handler;
+        }
+
+        public void onMessage(Message message) {
+            StockQuotesJMSDataAdapter.this.onMessage(message);
+        }
+
+        public void onException(JMSException je) {
+            StockQuotesJMSDataAdapter.this.onException(handler, je);
+        }
+
+    }
+
+    /**
+     * Receives the heartbeats from their own topic (see heartbeatLane), on
+     * the JMS session of that topic.
+     */
+    private class HeartbeatLaneListener implements MessageListener {
+
+        //the data have their own
+        private PayloadCodec laneCodec = new PayloadCodec();
+
+        public void onMessage(Message message) {
+            long arrivalNanos = System.nanoTime();
+            try {
+                Object payload = laneCodec.decode(message);
+                if (!(payload instanceof HeartbeatMessage)) {
+                    logger.warn(noCompMex + "(no HeartbeatMessage on the heartbeat topic)");
+                    return;
+                }
+                if (journal != null) {
+                    record(arrivalNanos, payload);
+                }
+                int random = ((HeartbeatMessage) payload).random;
+                if (FeedEvents.HEARTBEAT.isEnabled()) {
+                    FeedEvents.HEARTBEAT.emit(random, "received");
+                }
+                handleHeartbeat(random, true);
+            } catch (ClassCastException cce) {
+                logger.warn(noCompMex + "(no HeartbeatMessage on the heartbeat topic)");
+            } catch (JMSException jmse) {
+                logger.error("Heartbeat topic - JMSException: " + jmse.getMessage(), jmse);
+            }
+        }
+
+    }
+
+    /**
+     * The net subscription change of an item in the coalescing window:
+     * the handle the Generator has to drop and the one it has to take
+     * (null if none).
+     */
+    private static class PendingChange {
+        String unsubscribeHandle;
+        String subscribeHandle;
+    }
+
+    /**
+     * Waits for the end of the coalescing window, then queues the net
+     * changes and sends them.
+     */
+    private class CoalescingThread extends Thread {
+
+        public void run() {
+            try {
+                Thread.sleep(coalesceWindowMillis);
+            } catch (InterruptedException e) {
+                //shutting down
+                return;
+            }
+            boolean dispatchThread;
+            rwLock.writeLock().lock();
+            logger.debug("------------------>Write LOCK 12");
+                dispatchThread = flushChanges();
+            logger.debug("------------------>Write UNLOCK 12");
+            rwLock.writeLock().unlock();
+
+            if (dispatchThread) {
+                Activities.start(new SenderThread());
+            }
         }
 
     }
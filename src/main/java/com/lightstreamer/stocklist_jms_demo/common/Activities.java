@@ -0,0 +1,164 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs the background activities of the Adapter and of the Generator
+ * (connection loops, request senders, heartbeat checks, ...).
+ * Each activity is still written as a Thread subclass, but it is only
+ * used as a Runnable, according to the configured mode:
+ *   platform  a new platform thread per activity (the default)
+ *   virtual   a new virtual thread per activity; requires Java 21+
+ *             (on older JVMs "pooled" is used instead)
+ *   pooled    a shared pool of daemon threads, reused across activities
+ * In any mode, shutdown() interrupts the running activities, which then
+ * terminate, and refuses new ones.
+ */
+public class Activities {
+
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+    public static final String POOLED = "pooled";
+
+    private static Logger logger = LogManager.getLogger(Activities.class);
+
+    private static volatile String mode = PLATFORM;
+    private static volatile ThreadFactory virtualFactory;
+    private static volatile ExecutorService pool;
+    private static volatile boolean shutdown = false;
+
+    //the threads currently running an activity
+    private static final Set<Thread> running = Collections.newSetFromMap(new ConcurrentHashMap<Thread,Boolean>());
+
+    /**
+     * Sets the execution mode for the activities started from now on;
+     * null or unknown modes mean "platform".
+     */
+    public static synchronized void configure(String newMode) {
+        if (VIRTUAL.equals(newMode)) {
+            if (virtualFactory == null) {
+                virtualFactory = lookupVirtualFactory();
+            }
+            if (virtualFactory == null) {
+                logger.warn("Virtual threads are not available on this JVM, using a thread pool");
+                newMode = POOLED;
+            }
+        } else if (!POOLED.equals(newMode)) {
+            newMode = PLATFORM;
+        }
+        if (POOLED.equals(newMode) && pool == null) {
+            pool = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Activities pool");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if (!newMode.equals(mode)) {
+            logger.info("Activities run in " + newMode + " mode");
+        }
+        mode = newMode;
+        shutdown = false;
+    }
+
+    public static String getMode() {
+        return mode;
+    }
+
+    /**
+     * Gets Thread.ofVirtual().factory() through reflection, as we are
+     * compiled for Java 8.
+     */
+    private static ThreadFactory lookupVirtualFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts an activity, in place of activity.start().
+     * Returns false if the activity was refused because of a shutdown.
+     */
+    public static boolean start(final Thread activity) {
+        if (shutdown) {
+            logger.debug("Shut down, not starting " + activity.getName());
+            return false;
+        }
+
+        Runnable task = new Runnable() {
+            public void run() {
+                Thread current = Thread.currentThread();
+                running.add(current);
+                try {
+                    if (shutdown) {
+                        //shut down before we got here: let the activity end at its first wait
+                        current.interrupt();
+                    }
+                    activity.run();
+                } finally {
+                    running.remove(current);
+                    //a pooled thread must not carry the interruption to the next activity
+                    Thread.interrupted();
+                }
+            }
+        };
+
+        String currentMode = mode;
+        if (POOLED.equals(currentMode)) {
+            pool.execute(task);
+        } else if (VIRTUAL.equals(currentMode)) {
+            Thread thread = virtualFactory.newThread(task);
+            thread.setName(activity.getName());
+            thread.start();
+        } else {
+            Thread thread = new Thread(task, activity.getName());
+            thread.setDaemon(activity.isDaemon());
+            thread.start();
+        }
+        return true;
+    }
+
+    /**
+     * Interrupts the running activities and refuses new ones,
+     * until configure is called again.
+     */
+    public static void shutdown() {
+        shutdown = true;
+        for (Thread thread : running) {
+            thread.interrupt();
+        }
+        logger.info("Activities shut down");
+    }
+
+}
@@ -19,49 +19,71 @@ package stocklist_jms_demo.common;
 
 
 
+import java.util.concurrent.ThreadLocalRandom;
+
 import javax.jms.JMSException;
 import javax.naming.NamingException;
 
 import org.apache.logging.log4j.Logger;
 
 //loop until connected to JMS
+//retries are spaced by a capped exponential backoff with jitter, so that
+//many processes losing the same broker don't retry all at the same time
 public abstract class ConnectionLoop extends Thread {
 
+    public static final int DEFAULT_MAX_RECOVERY_PAUSE = 30000;
+
     private JMSHandler jmsHandler;
     private int recoveryPause;
+    private int maxRecoveryPause;
     private Logger logger;
 
     private int localPhase;
-    private static volatile int phase;
 
 
     public ConnectionLoop (JMSHandler jmsHandler, int recoveryPause, Logger logger) {
+        this(jmsHandler, recoveryPause, DEFAULT_MAX_RECOVERY_PAUSE, logger);
+    }
+
+    public ConnectionLoop (JMSHandler jmsHandler, int recoveryPause, int maxRecoveryPause, Logger logger) {
         this.jmsHandler = jmsHandler;
         this.recoveryPause = recoveryPause;
+        this.maxRecoveryPause = Math.max(recoveryPause, maxRecoveryPause);
         this.logger = logger;
-        this.localPhase = ++phase;
+        //phases are counted per handler: loops of different handlers
+        //(e.g. a Generator and an Adapter in the same JVM) must not cancel each other
+        synchronized (jmsHandler) {
+            this.localPhase = ++jmsHandler.connectionPhase;
+        }
     }
 
     public void run() {
 
         boolean loop = false;
+        int attempt = 0;
 
         logger.info("Start Connection loop ...");
 
         do {
-            if (this.localPhase != phase) {
+            if (this.localPhase != jmsHandler.connectionPhase) {
                 return;
             }
 
             logger.debug(" ... 1 ... ");
 
             loop = false;
-            //reset JMSHandler
-            jmsHandler.reset();
+            //reset the failed side(s) of the JMSHandler, the healthy one is kept
+            jmsHandler.resetFailed();
             
             logger.debug(" ... 2 ... ");
-            
+
+            //null unless the event is enabled
+            Object reconnect = FeedEvents.RECONNECT_ATTEMPT.begin();
+            String error = null;
             try {
+                //prepare both sessions in parallel
+                jmsHandler.initSessions();
+
                 //call the concrete method
                 connectionCall();
 
@@ -72,23 +94,33 @@ public abstract class ConnectionLoop extends Thread {
                 //problems on connecting to JMS. We keep on trying
                 //to reach JMS while the Server goes on
                 logger.error("JMSException: " + je.getMessage(), je);
+                error = je.toString();
                 loop = true;
             } catch (NamingException ne) {
                 //at least one name is wrong. We keep on trying, in the case
                 //that the wrong name will subsequently become valid
                 logger.error("NamingException: " + ne.getMessage(), ne);
+                error = ne.toString();
                 loop = true;
             } catch (Exception e) {
                 logger.error("Error: " + e.getMessage());
+                error = e.toString();
                 loop = true;
             }
+            if (reconnect != null) {
+                FeedEvents.RECONNECT_ATTEMPT.commit(reconnect, attempt + 1, !loop, error);
+            }
 
-            if (loop && this.localPhase == phase) {
+            if (loop && this.localPhase == jmsHandler.connectionPhase) {
+                long pause = nextPause(attempt++);
+                logger.info("Next connection attempt in " + pause + "ms");
                 try {
-                    Thread.sleep(recoveryPause);
+                    Thread.sleep(pause);
                 } catch (InterruptedException e) {
+                    //shutting down
+                    return;
                 }
-            } else if (this.localPhase == phase) {
+            } else if (this.localPhase == jmsHandler.connectionPhase) {
                 //handle connection/reconnection
 
             logger.info(" ... ok connection.");
@@ -102,6 +134,20 @@ public abstract class ConnectionLoop extends Thread {
         } while (loop);
     }
 
+    /**
+     * Exponential backoff capped at maxRecoveryPause, with "equal jitter":
+     * half of the pause is fixed, the other half random.
+     */
+    private long nextPause(int attempt) {
+        long pause = recoveryPause;
+        for (int i = 0; i < attempt && pause < maxRecoveryPause; i++) {
+            pause *= 2;
+        }
+        pause = Math.min(pause, maxRecoveryPause);
+        long half = pause / 2;
+        return half + ThreadLocalRandom.current().nextLong(pause - half + 1);
+    }
+
     /*
      * this method will be implemented by subclasses. Each subclass
      * will call its onConnection handler
@@ -111,6 +157,7 @@ public abstract class ConnectionLoop extends Thread {
     /*
      * this method will be implemented by subclasses. Each subclass
      * will init its needed QueueSender/QueueReceiver/TopicPublisher/TopicSubscriber
+     * (the sessions are already available when this is called)
      */
     protected abstract void connectionCall() throws JMSException, NamingException;
 }
\ No newline at end of file
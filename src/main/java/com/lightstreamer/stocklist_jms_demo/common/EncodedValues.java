@@ -0,0 +1,221 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The values of a FeedMessage as received with a FieldSchema: the
+ * encoded bytes are kept as they are and each name and value is only
+ * decoded when asked for, so that a receiver interested in few fields
+ * doesn't pay for the others.
+ * Each field is encoded as its schema id (a byte), followed, only if the
+ * id is -1 (a name unknown to the schema), by the name, then by the
+ * value; names and values are UTF-8 strings preceded by their length as
+ * a short (-1 for a null value).
+ * An instance is immutable, hence it can be read by any thread.
+ */
+public class EncodedValues {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int schemaVersion;
+    private final byte[] buffer;
+    //the position in buffer of each field
+    private final int[] offsets;
+
+    private EncodedValues(int schemaVersion, byte[] buffer, int[] offsets) {
+        this.schemaVersion = schemaVersion;
+        this.buffer = buffer;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Writes a values map (whose values are stored as strings) for the
+     * given schema version.
+     */
+    public static void write(DataOutput out, Map<?,?> values, int schemaVersion) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.size() * 12);
+        DataOutputStream data = new DataOutputStream(bytes);
+        Iterator<? extends Map.Entry<?,?>> entries = values.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<?,?> entry = entries.next();
+            String name = (String) entry.getKey();
+            int id = FieldSchema.idOf(name, schemaVersion);
+            data.writeByte(id);
+            if (id < 0) {
+                writeString(data, name);
+            }
+            writeString(data, entry.getValue() == null ? null : entry.getValue().toString());
+        }
+        data.flush();
+        out.writeInt(values.size());
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    private static void writeString(DataOutput out, String str) throws IOException {
+        if (str == null) {
+            out.writeShort(-1);
+            return;
+        }
+        byte[] utf = str.getBytes(UTF8);
+        if (utf.length > Short.MAX_VALUE) {
+            //as DataOutputStream.writeUTF; the length would wrap and read as another one
+            throw new UTFDataFormatException("Encoded string too long: " + utf.length + " bytes");
+        }
+        out.writeShort(utf.length);
+        out.write(utf);
+    }
+
+    /**
+     * Reads what write wrote; only the positions of the fields are
+     * computed now.
+     */
+    public static EncodedValues read(DataInput in, int schemaVersion) throws IOException {
+        int count = in.readInt();
+        int length = in.readInt();
+        if (count < 0 || length < 0) {
+            throw new InvalidObjectException("Corrupted field values");
+        }
+        byte[] buffer = new byte[length];
+        in.readFully(buffer);
+
+        int[] offsets = new int[count];
+        int pos = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                offsets[i] = pos;
+                int id = buffer[pos++];
+                if (id < 0) {
+                    pos = skipString(buffer, pos);
+                } else if (FieldSchema.nameOf(id, schemaVersion) == null) {
+                    throw new InvalidObjectException("Unknown field id " + id + " in schema version " + schemaVersion);
+                }
+                pos = skipString(buffer, pos);
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new InvalidObjectException("Truncated field values");
+        }
+        if (pos != length) {
+            throw new InvalidObjectException("Corrupted field values");
+        }
+        return new EncodedValues(schemaVersion, buffer, offsets);
+    }
+
+    private static int skipString(byte[] buffer, int pos) throws InvalidObjectException {
+        int length = readShort(buffer, pos);
+        if (length < -1) {
+            throw new InvalidObjectException("Corrupted field values");
+        }
+        pos += 2;
+        if (length > 0) {
+            pos += length;
+        }
+        if (pos > buffer.length) {
+            throw new ArrayIndexOutOfBoundsException(pos);
+        }
+        return pos;
+    }
+
+    private static int readShort(byte[] buffer, int pos) {
+        return (short) (((buffer[pos] & 0xFF) << 8) | (buffer[pos + 1] & 0xFF));
+    }
+
+    private String readString(int pos) {
+        int length = readShort(buffer, pos);
+        if (length < 0) {
+            return null;
+        }
+        return new String(buffer, pos + 2, length, UTF8);
+    }
+
+    /**
+     * Size of the encoded fields, in bytes.
+     */
+    public int length() {
+        return buffer.length;
+    }
+
+    /**
+     * Number of fields.
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * Gets the name of the field in position index (0..size()-1); the
+     * names known to the schema are shared, not decoded.
+     */
+    public String getName(int index) {
+        int pos = offsets[index];
+        int id = buffer[pos];
+        if (id < 0) {
+            return readString(pos + 1);
+        }
+        return FieldSchema.nameOf(id, schemaVersion);
+    }
+
+    /**
+     * Decodes the value of the field in position index (0..size()-1).
+     */
+    public String getValue(int index) {
+        int pos = offsets[index];
+        if (buffer[pos++] < 0) {
+            pos += 2 + readShort(buffer, pos);
+        }
+        return readString(pos);
+    }
+
+    /**
+     * Gets the position of a field, or -1 if the values don't include it.
+     */
+    public int indexOf(String name) {
+        int id = FieldSchema.idOf(name, schemaVersion);
+        for (int i = 0; i < offsets.length; i++) {
+            int fieldId = buffer[offsets[i]];
+            if (id >= 0 ? fieldId == id : (fieldId < 0 && name.equals(getName(i)))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes all the fields.
+     */
+    public HashMap<String,String> toMap() {
+        HashMap<String,String> map = new HashMap<String,String>(offsets.length * 4 / 3 + 1);
+        for (int i = 0; i < offsets.length; i++) {
+            map.put(getName(i), getValue(i));
+        }
+        return map;
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A ByteArrayOutputStream that gives access to its internal buffer, to
+ * write it out without a copy (the valid bytes are the first size()).
+ */
+public class ExposedOutputStream extends ByteArrayOutputStream {
+
+    public ExposedOutputStream(int size) {
+        super(size);
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+}
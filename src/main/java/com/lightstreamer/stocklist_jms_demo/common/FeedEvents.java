@@ -0,0 +1,279 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Custom JDK Flight Recorder events emitted from the hot paths of the
+ * Adapter, the JMSHandler and the Generator.
+ * The events are disabled by default; they are enabled like any other
+ * JFR event, e.g. with a .jfc file (or "jfr configure") setting
+ * "enabled" to true for the stocklist.* event names listed below.
+ * While an event is disabled, the only cost at the emission points is
+ * the check of a volatile flag, which is refreshed each time a
+ * recording changes state.
+ * The event types are defined at runtime through jdk.jfr.EventFactory,
+ * as the project still targets Java 8; where JFR is not available
+ * (e.g. a Java 8 runtime without it) all the events stay disabled.
+ */
+public class FeedEvents {
+
+    //message received from JMS and decoded; the duration is the decode time
+    public static final FeedEvents MESSAGE_RECEIVED = new FeedEvents("stocklist.MessageReceived", "Message Received",
+            "A JMS message received and decoded by the Adapter; the duration is the decode time",
+            String.class, "type", "Message Type",
+            int.class, "size", "Size",
+            boolean.class, "compressed", "Compressed");
+
+    //update sent to the Server; the duration is the one of smartUpdate
+    public static final FeedEvents UPDATE_DISPATCHED = new FeedEvents("stocklist.UpdateDispatched", "Update Dispatched",
+            "An update dispatched to the Server; the duration is the one of the smartUpdate call",
+            String.class, "item", "Item",
+            boolean.class, "snapshot", "Snapshot");
+
+    public static final FeedEvents UPDATE_DISCARDED = new FeedEvents("stocklist.UpdateDiscarded", "Update Discarded",
+            "An update received from the feed and not dispatched to the Server",
+            String.class, "item", "Item",
+            String.class, "reason", "Reason");
+
+    public static final FeedEvents HEARTBEAT = new FeedEvents("stocklist.Heartbeat", "Heartbeat",
+            "A heartbeat sent by the Generator or received by the Adapter",
+            int.class, "random", "Feed Life",
+            String.class, "direction", "Direction");
+
+    public static final FeedEvents FEED_STATE = new FeedEvents("stocklist.FeedState", "Feed State",
+            "A transition of the feed as seen by the Adapter",
+            String.class, "state", "State",
+            int.class, "random", "Feed Life");
+
+    public static final FeedEvents CONTROL_MESSAGE = new FeedEvents("stocklist.ControlMessage", "Control Message",
+            "A control message (subscribe, unsubscribe, snapshot request) sent or received on the queue",
+            String.class, "text", "Text",
+            String.class, "direction", "Direction");
+
+    //connection attempt of a ConnectionLoop; the duration is the one of the attempt
+    public static final FeedEvents RECONNECT_ATTEMPT = new FeedEvents("stocklist.ReconnectAttempt", "Reconnect Attempt",
+            "An attempt to (re)connect to JMS; the duration is the one of the attempt",
+            int.class, "attempt", "Attempt",
+            boolean.class, "success", "Success",
+            String.class, "error", "Error");
+
+    private static final List<FeedEvents> ALL = new ArrayList<FeedEvents>();
+
+    //jdk.jfr.Event methods, null if JFR is not available
+    private static MethodHandle BEGIN;
+    private static MethodHandle END;
+    private static MethodHandle SHOULD_COMMIT;
+    private static MethodHandle SET;
+    private static MethodHandle COMMIT;
+
+    static {
+        FeedEvents[] types = { MESSAGE_RECEIVED, UPDATE_DISPATCHED, UPDATE_DISCARDED, HEARTBEAT, FEED_STATE, CONTROL_MESSAGE, RECONNECT_ATTEMPT };
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            BEGIN = lookup.findVirtual(eventClass, "begin", MethodType.methodType(void.class));
+            END = lookup.findVirtual(eventClass, "end", MethodType.methodType(void.class));
+            SHOULD_COMMIT = lookup.findVirtual(eventClass, "shouldCommit", MethodType.methodType(boolean.class));
+            SET = lookup.findVirtual(eventClass, "set", MethodType.methodType(void.class, int.class, Object.class));
+            COMMIT = lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class));
+
+            for (FeedEvents type : types) {
+                type.define();
+                ALL.add(type);
+            }
+
+            //follow the recordings, to know when our events get enabled
+            Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+            Object listener = Proxy.newProxyInstance(FeedEvents.class.getClassLoader(), new Class<?>[] { listenerClass }, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if (name.equals("equals")) {
+                        return proxy == args[0];
+                    } else if (name.equals("hashCode")) {
+                        return System.identityHashCode(proxy);
+                    } else if (name.equals("toString")) {
+                        return "FeedEvents listener";
+                    }
+                    refreshAll();
+                    return null;
+                }
+            });
+            Class.forName("jdk.jfr.FlightRecorder").getMethod("addListener", listenerClass).invoke(null, listener);
+
+            //a recording may already be running (e.g. -XX:StartFlightRecording)
+            refreshAll();
+
+        } catch (Throwable t) {
+            //JFR not available: all the events stay disabled
+            for (FeedEvents type : types) {
+                type.enabled = false;
+            }
+            ALL.clear();
+        }
+    }
+
+    private static void refreshAll() {
+        for (FeedEvents type : ALL) {
+            type.refresh();
+        }
+    }
+
+    private final String name;
+    private final String label;
+    private final String description;
+    private final Object[] fields;
+
+    private volatile boolean enabled = false;
+
+    //jdk.jfr.EventFactory and jdk.jfr.EventType
+    private Object factory;
+    private Object eventType;
+    private Method newEvent;
+    private Method isEnabled;
+
+    //fields are given as (type, name, label) triples
+    private FeedEvents(String name, String label, String description, Object... fields) {
+        this.name = name;
+        this.label = label;
+        this.description = description;
+        this.fields = fields;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private void define() throws Exception {
+        Class<?> elementClass = Class.forName("jdk.jfr.AnnotationElement");
+        Class<?> descriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+
+        List<Object> annotations = new ArrayList<Object>();
+        annotations.add(annotation(elementClass, "jdk.jfr.Name", name));
+        annotations.add(annotation(elementClass, "jdk.jfr.Label", label));
+        annotations.add(annotation(elementClass, "jdk.jfr.Description", description));
+        annotations.add(annotation(elementClass, "jdk.jfr.Category", new String[] { "Lightstreamer", "StockList JMS" }));
+        annotations.add(annotation(elementClass, "jdk.jfr.Enabled", false));
+        annotations.add(annotation(elementClass, "jdk.jfr.StackTrace", false));
+
+        List<Object> descriptors = new ArrayList<Object>();
+        for (int i = 0; i < fields.length; i += 3) {
+            List<Object> fieldAnnotations = Collections.singletonList(annotation(elementClass, "jdk.jfr.Label", fields[i + 2]));
+            descriptors.add(descriptorClass.getConstructor(Class.class, String.class, List.class).newInstance(fields[i], fields[i + 1], fieldAnnotations));
+        }
+
+        Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+        factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, descriptors);
+        newEvent = factoryClass.getMethod("newEvent");
+        eventType = factoryClass.getMethod("getEventType").invoke(factory);
+        isEnabled = eventType.getClass().getMethod("isEnabled");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object annotation(Class<?> elementClass, String annotationName, Object value) throws Exception {
+        Class<? extends Annotation> annotationClass = (Class<? extends Annotation>) Class.forName(annotationName);
+        return elementClass.getConstructor(Class.class, Object.class).newInstance(annotationClass, value);
+    }
+
+    private void refresh() {
+        try {
+            enabled = (Boolean) isEnabled.invoke(eventType);
+        } catch (Exception e) {
+            enabled = false;
+        }
+    }
+
+    /**
+     * Tells whether the event is enabled in at least one recording;
+     * the emission points check it before collecting the event values.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts timing an event.
+     * @return the event to be passed to commit, or null if the event
+     * is disabled.
+     */
+    public Object begin() {
+        if (!enabled) {
+            return null;
+        }
+        try {
+            Object event = newEvent.invoke(factory);
+            BEGIN.invoke(event);
+            return event;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * Ends and commits an event obtained from begin; the values must
+     * follow the order of the event fields.
+     */
+    public void commit(Object event, Object... values) {
+        if (event == null) {
+            return;
+        }
+        try {
+            END.invoke(event);
+            //below the threshold of the recordings there is no need to fill the event
+            if ((boolean) SHOULD_COMMIT.invoke(event)) {
+                for (int i = 0; i < values.length; i++) {
+                    SET.invoke(event, i, values[i]);
+                }
+                COMMIT.invoke(event);
+            }
+        } catch (Throwable t) {
+            //the event is lost
+        }
+    }
+
+    /**
+     * Commits an instant event, if enabled; the values must follow the
+     * order of the event fields.
+     */
+    public void emit(Object... values) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            //neither begun nor ended: no duration
+            Object event = newEvent.invoke(factory);
+            for (int i = 0; i < values.length; i++) {
+                SET.invoke(event, i, values[i]);
+            }
+            COMMIT.invoke(event);
+        } catch (Throwable t) {
+            //the event is lost
+        }
+    }
+
+}
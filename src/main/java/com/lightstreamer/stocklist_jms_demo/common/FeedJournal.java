@@ -0,0 +1,228 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Appends the messages received from the feed, with their arrival times,
+ * to a binary journal, so that the traffic can be replayed later (see
+ * FeedJournalReader and the Generator's replay mode).
+ * The journal is a directory of segment files named
+ * feed-NNNNNN.journal; a new segment is started when the current one
+ * exceeds the configured size and each time a journal is opened on the
+ * directory. A segment starts with a header (magic, wall clock time and
+ * System.nanoTime at its creation) followed by the records:
+ *   arrival time, as nanoseconds since the previous record (var. length)
+ *   type (HEARTBEAT or FEED)
+ *   length of the body (var. length) and the body
+ * A FEED body holds the FeedMessage fields and its values, as a
+ * QuoteRecord or, for messages not carrying one, as EncodedValues.
+ * The output is buffered and flushed at least once per second, provided
+ * that the owner calls flushIfDue every second, as the appends alone
+ * can't flush while the feed is idle; so a crash may cut the last
+ * records (the reader stops at a truncated one), while close writes all.
+ * Not thread-safe on its own: the adapter serializes the calls.
+ */
+public class FeedJournal {
+
+    static final int MAGIC = 0x464A4E31; //"FJN1"
+    static final String PREFIX = "feed-";
+    static final String SUFFIX = ".journal";
+
+    public static final byte HEARTBEAT = 1;
+    public static final byte FEED = 2;
+
+    //what a FEED body carries
+    static final byte NO_VALUES = 0;
+    static final byte QUOTE_VALUES = 1;
+    static final byte MAP_VALUES = 2;
+
+    private static final long FLUSH_NANOS = 1000000000L;
+
+    private final File dir;
+    private final long maxSegmentBytes;
+    private int segmentNumber;
+
+    private DataOutputStream out = null;
+    private long segmentBytes;
+    private long lastNanos;
+    private long lastFlushNanos;
+    private long records = 0;
+
+    //the body of the current record
+    private final ExposedOutputStream body = new ExposedOutputStream(256);
+    private final DataOutputStream bodyOut = new DataOutputStream(body);
+
+    /**
+     * Opens a journal on dir (created if needed), starting a new segment
+     * after the ones already there.
+     */
+    public FeedJournal(File dir, long maxSegmentBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create the journal directory " + dir);
+        }
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        File[] segments = listSegments(dir);
+        segmentNumber = segments.length == 0 ? 0 : segmentNumber(segments[segments.length - 1]);
+        startSegment();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Appends a payload received from the feed (a HeartbeatMessage or a
+     * FeedMessage) with its arrival time, as given by System.nanoTime.
+     * Other objects are ignored.
+     */
+    public void append(long arrivalNanos, Object payload) throws IOException {
+        body.reset();
+        byte type;
+        if (payload instanceof HeartbeatMessage) {
+            type = HEARTBEAT;
+            QuoteRecord.writeVarLong(bodyOut, ((HeartbeatMessage) payload).random);
+        } else if (payload instanceof FeedMessage) {
+            type = FEED;
+            writeFeedMessage((FeedMessage) payload);
+        } else {
+            return;
+        }
+
+        if (segmentBytes >= maxSegmentBytes) {
+            closeSegment();
+            startSegment();
+        }
+        //a clock going backwards (it shouldn't) is recorded as no gap
+        QuoteRecord.writeVarLong(out, Math.max(0, arrivalNanos - lastNanos));
+        out.writeByte(type);
+        QuoteRecord.writeVarLong(out, body.size());
+        out.write(body.buffer(), 0, body.size());
+        lastNanos = Math.max(lastNanos, arrivalNanos);
+        segmentBytes = out.size();
+        records++;
+
+        flushIfDue(arrivalNanos);
+    }
+
+    /**
+     * Flushes the output if the last flush was at least a second before
+     * nowNanos (as given by System.nanoTime).
+     */
+    public void flushIfDue(long nowNanos) throws IOException {
+        if (out != null && nowNanos - lastFlushNanos >= FLUSH_NANOS) {
+            out.flush();
+            lastFlushNanos = nowNanos;
+        }
+    }
+
+    private void writeFeedMessage(FeedMessage message) throws IOException {
+        bodyOut.writeUTF(message.itemName == null ? "" : message.itemName);
+        bodyOut.writeUTF(message.handleId == null ? "" : message.handleId);
+        QuoteRecord.writeVarLong(bodyOut, message.random);
+        QuoteRecord.writeVarLong(bodyOut, message.seq);
+        bodyOut.writeBoolean(message.isSnapshot);
+        if (message.quote != null) {
+            bodyOut.writeByte(QUOTE_VALUES);
+            message.quote.writeTo(bodyOut);
+        } else if (message.encodedValues != null || message.currentValues != null) {
+            bodyOut.writeByte(MAP_VALUES);
+            Map<?,?> values = message.encodedValues != null ? message.encodedValues.toMap() : message.currentValues;
+            EncodedValues.write(bodyOut, values, FieldSchema.CURRENT_VERSION);
+        } else {
+            bodyOut.writeByte(NO_VALUES);
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        closeSegment();
+    }
+
+    private void startSegment() throws IOException {
+        segmentNumber++;
+        File file = new File(dir, segmentName(segmentNumber));
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        lastNanos = System.nanoTime();
+        lastFlushNanos = lastNanos;
+        out.writeInt(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        out.writeLong(lastNanos);
+        out.flush();
+        segmentBytes = out.size();
+    }
+
+    private void closeSegment() throws IOException {
+        if (out != null) {
+            DataOutputStream closing = out;
+            out = null;
+            closing.close();
+        }
+    }
+
+    static String segmentName(int number) {
+        return PREFIX + String.format("%06d", number) + SUFFIX;
+    }
+
+    static int segmentNumber(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * The segments in dir, in order.
+     */
+    static File[] listSegments(File dir) {
+        File[] segments = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                String name = file.getName();
+                if (!file.isFile() || !name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+                    return false;
+                }
+                try {
+                    segmentNumber(file);
+                    return true;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        });
+        if (segments == null) {
+            return new File[0];
+        }
+        Arrays.sort(segments);
+        return segments;
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Reads back, in order, the records of a journal written by FeedJournal.
+ * A record cut by a crash ends its segment; the reading goes on with the
+ * next one.
+ */
+public class FeedJournalReader {
+
+    private final File[] segments;
+    private int nextSegment = 0;
+
+    private DataInputStream in = null;
+    //the wall clock time of the segment start, in nanoseconds since the epoch,
+    //and the System.nanoTime it corresponds to
+    private long segmentEpochNanos;
+    private long segmentBaseNanos;
+    private long lastNanos;
+
+    private byte[] body = new byte[256];
+
+    private byte type;
+    private long arrivalNanos;
+    private Object payload;
+
+    public FeedJournalReader(File dir) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new IOException("No journal directory " + dir);
+        }
+        segments = FeedJournal.listSegments(dir);
+    }
+
+    /**
+     * Moves to the next record; false when there are no more.
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (in == null && !openNextSegment()) {
+                return false;
+            }
+            try {
+                readRecord();
+                return true;
+            } catch (EOFException e) {
+                //the end of the segment, or a truncated record
+                closeSegment();
+            }
+        }
+    }
+
+    /**
+     * FeedJournal.HEARTBEAT or FeedJournal.FEED.
+     */
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * The arrival time of the record, in nanoseconds since the epoch;
+     * exact between records of the same segment.
+     */
+    public long getArrivalNanos() {
+        return arrivalNanos;
+    }
+
+    /**
+     * The HeartbeatMessage or the FeedMessage as received (the values of
+     * a FeedMessage are either in quote or in currentValues).
+     */
+    public Object getPayload() {
+        return payload;
+    }
+
+    public void close() throws IOException {
+        closeSegment();
+        nextSegment = segments.length;
+    }
+
+    private boolean openNextSegment() throws IOException {
+        while (nextSegment < segments.length) {
+            File segment = segments[nextSegment++];
+            DataInputStream segmentIn = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 64 * 1024));
+            try {
+                if (segmentIn.readInt() != FeedJournal.MAGIC) {
+                    throw new IOException("Not a journal segment: " + segment);
+                }
+                segmentEpochNanos = segmentIn.readLong() * 1000000L;
+                segmentBaseNanos = segmentIn.readLong();
+            } catch (EOFException e) {
+                //an empty segment
+                segmentIn.close();
+                continue;
+            } catch (IOException e) {
+                segmentIn.close();
+                throw e;
+            }
+            in = segmentIn;
+            lastNanos = segmentBaseNanos;
+            return true;
+        }
+        return false;
+    }
+
+    private void closeSegment() throws IOException {
+        if (in != null) {
+            DataInputStream closing = in;
+            in = null;
+            closing.close();
+        }
+    }
+
+    private void readRecord() throws IOException {
+        long delta = QuoteRecord.readVarLong(in);
+        byte recordType = in.readByte();
+        int length = (int) QuoteRecord.readVarLong(in);
+        if (length < 0) {
+            throw new IOException("Malformed journal record");
+        }
+        if (length > body.length) {
+            body = new byte[Math.max(length, body.length * 2)];
+        }
+        in.readFully(body, 0, length);
+
+        DataInputStream bodyIn = new DataInputStream(new ByteArrayInputStream(body, 0, length));
+        if (recordType == FeedJournal.HEARTBEAT) {
+            payload = new HeartbeatMessage((int) QuoteRecord.readVarLong(bodyIn));
+        } else if (recordType == FeedJournal.FEED) {
+            payload = readFeedMessage(bodyIn);
+        } else {
+            throw new IOException("Unknown journal record type " + recordType);
+        }
+        type = recordType;
+        lastNanos += delta;
+        arrivalNanos = segmentEpochNanos + (lastNanos - segmentBaseNanos);
+    }
+
+    private static FeedMessage readFeedMessage(DataInputStream in) throws IOException {
+        String itemName = in.readUTF();
+        String handleId = in.readUTF();
+        int random = (int) QuoteRecord.readVarLong(in);
+        long seq = QuoteRecord.readVarLong(in);
+        boolean isSnapshot = in.readBoolean();
+        byte values = in.readByte();
+        if (values == FeedJournal.QUOTE_VALUES) {
+            return new FeedMessage(itemName, QuoteRecord.readFrom(in), isSnapshot, handleId, random, seq);
+        } else if (values == FeedJournal.MAP_VALUES) {
+            return new FeedMessage(itemName, EncodedValues.read(in, FieldSchema.CURRENT_VERSION).toMap(), isSnapshot, handleId, random, seq);
+        } else {
+            return new FeedMessage(itemName, (HashMap) null, isSnapshot, handleId, random, seq);
+        }
+    }
+
+}
@@ -17,6 +17,10 @@
  */
 package stocklist_jms_demo.common;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 
@@ -37,6 +41,18 @@ public class FeedMessage implements Serializable {
     public String handleId = null;
     //the id related to this generator's life
     public int random;
+    //the position of this update in the flow for the handle, starting from 1
+    //with the snapshot (0 means not numbered)
+    public long seq = 0;
+    //the FieldSchema version used to serialize the values map (FieldSchema.NONE
+    //means the plain map)
+    public int schemaVersion = FieldSchema.NONE;
+    //on the receiving side, in place of currentValues if a schema was used:
+    //the values are only decoded when read
+    public transient EncodedValues encodedValues = null;
+    //the values as numbers, in place of currentValues (only from FieldSchema.QUOTES,
+    //serialized by hand)
+    public transient QuoteRecord quote = null;
 
     public FeedMessage(String itemName, final HashMap currentValues, boolean isSnapshot, String handleId, int random) {
         this.itemName = itemName;
@@ -46,4 +62,61 @@ public class FeedMessage implements Serializable {
         this.random = random;
     }
 
+    public FeedMessage(String itemName, final HashMap currentValues, boolean isSnapshot, String handleId, int random, long seq) {
+        this(itemName, currentValues, isSnapshot, handleId, random);
+        this.seq = seq;
+    }
+
+    public FeedMessage(String itemName, QuoteRecord quote, boolean isSnapshot, String handleId, int random, long seq) {
+        this(itemName, (HashMap) null, isSnapshot, handleId, random, seq);
+        this.quote = quote;
+        this.schemaVersion = FieldSchema.QUOTES;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        int version = currentValues == null && quote == null ? FieldSchema.NONE : schemaVersion;
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("itemName", itemName);
+        fields.put("currentValues", version == FieldSchema.NONE ? currentValues : null);
+        fields.put("isSnapshot", isSnapshot);
+        fields.put("handleId", handleId);
+        fields.put("random", random);
+        fields.put("seq", seq);
+        fields.put("schemaVersion", version);
+        out.writeFields();
+        if (version == FieldSchema.NONE) {
+            return;
+        }
+        if (version >= FieldSchema.QUOTES) {
+            out.writeBoolean(quote != null);
+            if (quote != null) {
+                quote.writeTo(out);
+                return;
+            }
+        }
+        EncodedValues.write(out, currentValues, version);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        itemName = (String) fields.get("itemName", null);
+        currentValues = (HashMap) fields.get("currentValues", null);
+        isSnapshot = fields.get("isSnapshot", false);
+        handleId = (String) fields.get("handleId", null);
+        random = fields.get("random", 0);
+        seq = fields.get("seq", 0L);
+        schemaVersion = fields.get("schemaVersion", FieldSchema.NONE);
+        if (schemaVersion == FieldSchema.NONE) {
+            return;
+        }
+        if (!FieldSchema.isKnown(schemaVersion)) {
+            throw new InvalidObjectException("Unknown field schema version " + schemaVersion);
+        }
+        if (schemaVersion >= FieldSchema.QUOTES && in.readBoolean()) {
+            quote = QuoteRecord.readFrom(in);
+        } else {
+            encodedValues = EncodedValues.read(in, schemaVersion);
+        }
+    }
+
 }
\ No newline at end of file
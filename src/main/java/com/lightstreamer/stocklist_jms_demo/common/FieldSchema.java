@@ -0,0 +1,96 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.util.HashMap;
+
+/**
+ * The registry of the field names shared by Generator and Adapter: each
+ * name gets a small integer id, so that a FeedMessage can carry the ids
+ * in place of the names.
+ * The registry is versioned; a new version can only append names to the
+ * previous one, so that a receiver knows the ids of every version up to
+ * its own. At connection time the Adapter sends the latest version it
+ * knows and the Generator uses the lower between that and its own
+ * (see negotiate); version NONE means that the names travel as strings.
+ * From version QUOTES, which adds no names, the updates can also travel
+ * as QuoteRecords, whose field constants are the ids.
+ */
+public class FieldSchema {
+
+    public static final int NONE = 0;
+    public static final int QUOTES = 2;
+
+    //the field names of each version, in id order
+    private static final String[][] VERSIONS = {
+        {},
+        {"stock_name", "time", "last_price", "ask", "bid", "bid_quantity", "ask_quantity",
+            "pct_change", "min", "max", "ref_price", "open_price", "item_status"},
+        {"stock_name", "time", "last_price", "ask", "bid", "bid_quantity", "ask_quantity",
+            "pct_change", "min", "max", "ref_price", "open_price", "item_status"},
+    };
+
+    public static final int CURRENT_VERSION = VERSIONS.length - 1;
+
+    private static final HashMap<String,Integer> ids = new HashMap<String,Integer>();
+    static {
+        String[] names = VERSIONS[CURRENT_VERSION];
+        for (int i = 0; i < names.length; i++) {
+            ids.put(names[i], Integer.valueOf(i));
+        }
+    }
+
+    /**
+     * Gets the version to use with a peer that knows up to the given one.
+     */
+    public static int negotiate(int peerVersion) {
+        return Math.max(NONE, Math.min(peerVersion, CURRENT_VERSION));
+    }
+
+    /**
+     * Gets the id of a field name in a version, or -1 if the version
+     * doesn't know the name.
+     */
+    public static int idOf(String name, int version) {
+        Integer id = ids.get(name);
+        if (id == null || id.intValue() >= VERSIONS[version].length) {
+            return -1;
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Gets the (shared) field name of an id in a version, or null if the
+     * version doesn't know the id.
+     */
+    public static String nameOf(int id, int version) {
+        String[] names = VERSIONS[version];
+        if (id < 0 || id >= names.length) {
+            return null;
+        }
+        return names[id];
+    }
+
+    /**
+     * Tells whether a version is known here, i.e. can be decoded.
+     */
+    public static boolean isKnown(int version) {
+        return version >= NONE && version <= CURRENT_VERSION;
+    }
+
+}
@@ -20,9 +20,14 @@ package stocklist_jms_demo.common;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
 
+import javax.jms.BytesMessage;
+import javax.jms.DeliveryMode;
+import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageListener;
 import javax.jms.ObjectMessage;
 import javax.jms.Queue;
 import javax.jms.QueueConnection;
@@ -51,27 +56,56 @@ import org.apache.logging.log4j.Logger;
  * 1 QueueReceiver and 1 QueueSender
  * related to the same QueueConnectionFactory
  * All related to the same InitialContextFactory
+ * The topic side and the queue side are independent: each one has its
+ * own lock and, when its connection fails, only that side is rebuilt.
+ * The InitialContext and the looked up objects are cached across
+ * reconnections, and dropped only when a lookup fails.
+ * The topic side can also carry a priority lane, on a second topic and
+ * session, so that the heartbeats don't queue behind the data.
  */
 public class JMSHandler {
 
     private Logger logger;
 
+    private final Object queueLock = new Object();
     private QueueSender queueSender;
+    private QueueReceiver queueReceiver;
     private QueueSession queueSession;
     private QueueConnection queueConnection;
+    private QueueConnectionFactory queueConnectionFactory;
     private Queue queue;
     private String queueConnectionFactoryName;
     private String queueName;
     private boolean queueSessionReady = false;
+    private volatile boolean queueFailed = false;
 
+    private final Object topicLock = new Object();
     private TopicPublisher topicPublisher;
+    private TopicSubscriber topicSubscriber;
     private TopicSession topicSession;
     private TopicConnection topicConnection;
+    private TopicConnectionFactory topicConnectionFactory;
     private Topic topic;
     private String topicConnectionFactoryName;
     private String topicName;
     private boolean topicSessionReady = false;
-
+    private volatile boolean topicFailed = false;
+    //a standby handler must not receive anything: see setStandby
+    private boolean standby = false;
+
+    //the optional priority lane (see setPriorityTopic): a second topic, with
+    //its own session on the topic connection, for the heartbeats; set up
+    //under topicLock, while the publishing only takes priorityLock, so that
+    //it never waits for the data
+    private final Object priorityLock = new Object();
+    private volatile String priorityTopicName = null;
+    private MessageListener priorityListener;
+    private Topic priorityTopic;
+    private volatile TopicSession prioritySession;
+    private volatile TopicPublisher priorityPublisher;
+    private TopicSubscriber prioritySubscriber;
+
+    private final Object jndiLock = new Object();
     private boolean JMSReady = false;
     private Context jndiContext;
 
@@ -80,9 +114,22 @@ public class JMSHandler {
     private TextMessagePool textMessagePool;
     private ObjectMessagePool objectMessagePool;
 
+    //objects whose serialized form reaches this size are published compressed (0 means never)
+    private volatile int compressionThreshold = 0;
+    private final PayloadCodec codec = new PayloadCodec();
+
+    //how the published messages are delivered: persistence and time-to-live
+    //(0 means forever); under topicLock
+    private int deliveryMode = DeliveryMode.PERSISTENT;
+    private long timeToLive = 0;
+
     private String initialContextFactory;
     private String providerURL;
 
+    //incremented by each ConnectionLoop started on this handler, so that
+    //older loops give up (see ConnectionLoop)
+    volatile int connectionPhase = 0;
+
     public JMSHandler(Logger logger, String initialContextFactory, String providerURL, String queueConnectionFactoryName, String queueName, String topicConnectionFactoryName, String topicName) {
 
 
@@ -108,147 +155,331 @@ public class JMSHandler {
     /**
      * Initiates the InitialContext.
      */
-    private synchronized void initJMS() throws JMSException, NamingException{
+    private void initJMS() throws JMSException, NamingException{
+        synchronized (jndiLock) {
+            logger.debug(" ... 6 ... " + JMSReady);
 
-        logger.debug(" ... 6 ... " + JMSReady);
+            if (JMSReady) {
+                //InitialContext is already OK, exit
+                return;
+            }
 
-        if (JMSReady) {
-            //InitialContext is already OK, exit
-            return;
-        }
+            logger.debug(" ... 7 ... ");
+            //Prepare a Properties object to be passed to the InitialContext
+            //constructor giving the InitialContextFactory name and
+            //the JMS server url
+            Properties properties = new java.util.Properties();
+            properties.put(javax.naming.Context.INITIAL_CONTEXT_FACTORY, this.initialContextFactory);
+            properties.put(javax.naming.Context.PROVIDER_URL, this.providerURL);
 
-        logger.debug(" ... 7 ... ");
-        //Prepare a Properties object to be passed to the InitialContext
-        //constructor giving the InitialContextFactory name and
-        //the JMS server url
-        Properties properties = new java.util.Properties();
-        properties.put(javax.naming.Context.INITIAL_CONTEXT_FACTORY, this.initialContextFactory);
-        properties.put(javax.naming.Context.PROVIDER_URL, this.providerURL);
+            logger.debug(" ... 8 ... ");
 
-        logger.debug(" ... 8 ... ");
+            //create the InitialContext
+            try {
+                this.jndiContext = new InitialContext(properties);
+            } catch (Exception e) {
+                logger.debug(" Initial context error: " + e.getMessage());
+            }
 
-        //create the InitialContext
-        try {
-            this.jndiContext = new InitialContext(properties);
-        } catch (Exception e) {
-            logger.debug(" Initial context error: " + e.getMessage());
+            logger.info("JNDI Context[" + jndiContext.getEnvironment() + "]...");
+
+            //InitialContext is now ready
+            JMSReady = true;
         }
-        
-        logger.info("JNDI Context[" + jndiContext.getEnvironment() + "]...");
+    }
 
-        //InitialContext is now ready
-        JMSReady = true;
+    /**
+     * Looks up an object; if the lookup fails the InitialContext is
+     * dropped, so that the next attempt will start from a new one.
+     * Lookups are serialized, as a Context is not required to be thread safe.
+     */
+    private Object lookup(String name) throws JMSException, NamingException {
+        initJMS();
+        synchronized (jndiLock) {
+            try {
+                return jndiContext.lookup(name);
+            } catch (NamingException ne) {
+                try {
+                    jndiContext.close();
+                } catch (NamingException e) {
+                }
+                jndiContext = null;
+                JMSReady = false;
+                throw ne;
+            }
+        }
     }
 
     /**
      * Closes all open Sessions/Connections and unsets ready flags.
+     * The JNDI objects are kept.
      */
-    public synchronized void reset() {
-        if (topicSession != null) {
-            try {
-                topicSession.close();
-            } catch (JMSException e) {
+    public void reset() {
+        resetTopic();
+        resetQueue();
+    }
+
+    /**
+     * Closes only the Sessions/Connections whose connection failed
+     * (or whose initialization failed), keeping the healthy side.
+     */
+    public void resetFailed() {
+        if (topicFailed) {
+            logger.info("Resetting topic side");
+            resetTopic();
+        }
+        if (queueFailed) {
+            logger.info("Resetting queue side");
+            resetQueue();
+        }
+    }
+
+    private void resetTopic() {
+        synchronized (topicLock) {
+            if (topicSession != null) {
+                try {
+                    topicSession.close();
+                } catch (JMSException e) {
+                }
+            }
+            if (topicConnection != null) {
+                try {
+                    topicConnection.close();
+                } catch (JMSException e) {
+                }
             }
+            //the priority session goes with the connection
+            topicSession = null;
+            topicConnection = null;
+            topicPublisher = null;
+            topicSubscriber = null;
+            prioritySession = null;
+            priorityPublisher = null;
+            prioritySubscriber = null;
+            topicSessionReady = false;
+            topicFailed = false;
         }
-        if (topicConnection != null) {
-            try {
-                topicConnection.close();
-            } catch (JMSException e) {
+    }
+
+    private void resetQueue() {
+        synchronized (queueLock) {
+            if (queueSession != null) {
+                try {
+                    queueSession.close();
+                } catch (JMSException e) {
+                }
             }
+            if (queueConnection != null) {
+                try {
+                    queueConnection.close();
+                } catch (JMSException e) {
+                }
+            }
+            queueSession = null;
+            queueConnection = null;
+            queueSender = null;
+            queueReceiver = null;
+            queueSessionReady = false;
+            queueFailed = false;
         }
-        if (queueSession != null) {
-            try {
-                queueSession.close();
-            } catch (JMSException e) {
+    }
+
+    /**
+     * Marks the handler as standby (or as the active one again). A standby
+     * handler refuses to create the TopicSubscribers, as they would receive
+     * (or buffer) the updates too, and, once marked, it closes those that
+     * are already there, with their topic side. Both happen under the
+     * topic lock, so that a connection loop that is creating the
+     * subscribers can't slip in between.
+     */
+    public void setStandby(boolean standby) {
+        synchronized (topicLock) {
+            this.standby = standby;
+            if (standby && (topicSubscriber != null || prioritySubscriber != null)) {
+                logger.info("Closing the topic subscribers of the standby provider");
+                resetTopic();
             }
         }
-        if (queueConnection != null) {
-            try {
-                queueConnection.close();
-            } catch (JMSException e) {
+    }
+
+    /**
+     * Tells if the topic side is up, i.e. it is initialized and its connection did not fail.
+     */
+    public boolean isTopicReady() {
+        synchronized (topicLock) {
+            return topicSessionReady && !topicFailed;
+        }
+    }
+
+    /**
+     * Tells if the queue side is up, i.e. it is initialized and its connection did not fail.
+     */
+    public boolean isQueueReady() {
+        synchronized (queueLock) {
+            return queueSessionReady && !queueFailed;
+        }
+    }
+
+    /**
+     * Prepares the QueueSession and the TopicSession (those not already
+     * available) in parallel, so that a reconnection costs the slowest
+     * of the two instead of their sum.
+     */
+    public void initSessions() throws JMSException, NamingException {
+        final Exception[] queueError = new Exception[1];
+        final CountDownLatch queueDone = new CountDownLatch(1);
+        Thread queueInit = new Thread() {
+            public void run() {
+                try {
+                    synchronized (queueLock) {
+                        initQueueSession();
+                    }
+                } catch (Exception e) {
+                    queueError[0] = e;
+                } finally {
+                    queueDone.countDown();
+                }
+            }
+        };
+        if (!Activities.start(queueInit)) {
+            //shutting down: no parallelism
+            queueInit.run();
+        }
+
+        Exception topicError = null;
+        try {
+            synchronized (topicLock) {
+                initTopicSession();
             }
+        } catch (Exception e) {
+            topicError = e;
+        }
+
+        try {
+            queueDone.await();
+        } catch (InterruptedException e) {
+            throw new JMSException("Interrupted while preparing the queue session");
+        }
+
+        rethrow(topicError);
+        rethrow(queueError[0]);
+    }
+
+    private static void rethrow(Exception e) throws JMSException, NamingException {
+        if (e == null) {
+            return;
+        } else if (e instanceof JMSException) {
+            throw (JMSException) e;
+        } else if (e instanceof NamingException) {
+            throw (NamingException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
         }
-        topicSession = null;
-        topicConnection = null;
-        queueSession = null;
-        queueConnection = null;
-        JMSReady = false;
-        queueSessionReady = false;
-        topicSessionReady = false;
+        throw new JMSException(e.getMessage());
     }
 
     /**
      * Prepares the QueueSession.
+     * Must be called while holding queueLock.
      */
-    private synchronized void initQueueSession() throws JMSException, NamingException {
+    private void initQueueSession() throws JMSException, NamingException {
         if (queueSessionReady) {
             //QueueSession is already OK, exit
             return;
         }
-        //first of all we have to inititiate the InitialContext
-        //(without this we can't instantiate a QueueSession)
-        initJMS();
+        try {
+            //lookup to find our QueueConnectionFactory
+            //(the InitialContext is initiated if needed)
+            if (queueConnectionFactory == null) {
+                logger.info("Looking up queue connection factory [" + queueConnectionFactoryName + "]...");
+                queueConnectionFactory = (QueueConnectionFactory) lookup(queueConnectionFactoryName);
+            }
 
-        //lookup to find our QueueConnectionFactory
-        QueueConnectionFactory queueConnectionFactory = null;
-        logger.info("Looking up queue connection factory [" + queueConnectionFactoryName + "]...");
-        queueConnectionFactory = (QueueConnectionFactory) jndiContext.lookup(queueConnectionFactoryName);
+            //lookup to find our queue
+            if (queue == null) {
+                logger.info("Looking up queue [" + queueName + "]...");
+                this.queue = (Queue) lookup(queueName);
+            }
 
-        //lookup to find our queue
-        logger.info("Looking up queue [" + queueName + "]...");
-        this.queue = (Queue) jndiContext.lookup(queueName);
+            //get the QueueConnection from our QueueConnectionFactory
+            queueConnection = queueConnectionFactory.createQueueConnection();
+            logger.debug("Queue connection created");
 
-        //get the QueueConnection from our QueueConnectionFactory
-        queueConnection = queueConnectionFactory.createQueueConnection();
-        logger.debug("Queue connection created");
+            //if set we pass our ExtendedMessageListener to the QueueConnection as ExceptionListener
+            if (messageListener != null) {
+                queueConnection.setExceptionListener(new SideExceptionListener(false));
+            }
 
-        //if set we pass our ExtendedMessageListener to the QueueConnection as ExceptionListener
-        if (messageListener != null) {
-            queueConnection.setExceptionListener(messageListener);
+            //get the QueueSession from our QueueConnectionFactory
+            queueSession = queueConnection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
+            logger.debug("Queue session created");
+        } catch (NamingException ne) {
+            //look everything up again on the next attempt
+            queueConnectionFactory = null;
+            queue = null;
+            queueFailed = true;
+            throw ne;
+        } catch (JMSException je) {
+            queueFailed = true;
+            throw je;
+        } catch (RuntimeException re) {
+            queueFailed = true;
+            throw re;
         }
 
-        //get the QueueSession from our QueueConnectionFactory
-        queueSession = queueConnection.createQueueSession(false, Session.AUTO_ACKNOWLEDGE);
-        logger.debug("Queue session created");
-
         //QueueSession is now ready
         queueSessionReady = true;
     }
 
     /**
      * Prepares the TopicSession.
+     * Must be called while holding topicLock.
      */
-    private synchronized void initTopicSession() throws JMSException, NamingException {
+    private void initTopicSession() throws JMSException, NamingException {
         if (topicSessionReady) {
             //TopicSession is already OK, exit
             return;
         }
-        //first of all we have to inititiate the InitialContext
-        //(without this we can't instantiate a TopicSession)
-        initJMS();
+        try {
+            //lookup to find our TopicConnectionFactory
+            //(the InitialContext is initiated if needed)
+            if (topicConnectionFactory == null) {
+                logger.info("Looking up topic connection factory [" + topicConnectionFactoryName + "]...");
+                topicConnectionFactory = (TopicConnectionFactory) lookup(topicConnectionFactoryName);
+            }
 
-        //lookup to find our TopicConnectionFactory
-        TopicConnectionFactory topicConnectionFactory = null;
-        logger.info("Looking up topic connection factory [" + topicConnectionFactoryName + "]...");
-        topicConnectionFactory = (TopicConnectionFactory) jndiContext.lookup(topicConnectionFactoryName);
+            //lookup to find our Topic
+            if (topic == null) {
+                logger.info("Looking up topic [" + topicName + "]...");
+                topic = (Topic) lookup(topicName);
+            }
 
-        //lookup to find our Topic
-        logger.info("Looking up topic [" + topicName + "]...");
-        topic = (Topic) jndiContext.lookup(topicName);
+            //get the TopicConnection from our TopicConnectionFactory
+            topicConnection = topicConnectionFactory.createTopicConnection();
+            logger.debug("Topic connection created");
 
-        //get the TopicConnection from our TopicConnectionFactory
-        topicConnection = topicConnectionFactory.createTopicConnection();
-        logger.debug("Topic connection created");
+            //if set we pass our ExtendedMessageListener to the TopicConnection as ExceptionListener
+            if (messageListener != null) {
+                topicConnection.setExceptionListener(new SideExceptionListener(true));
+            }
 
-        //if set we pass our ExtendedMessageListener to the TopicConnection as ExceptionListener
-        if (messageListener != null) {
-            topicConnection.setExceptionListener(messageListener);
+            //get the TopicSession from our TopicConnectionFactory
+            topicSession = topicConnection.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
+            logger.debug("Topic session created");
+        } catch (NamingException ne) {
+            //look everything up again on the next attempt
+            topicConnectionFactory = null;
+            topic = null;
+            topicFailed = true;
+            throw ne;
+        } catch (JMSException je) {
+            topicFailed = true;
+            throw je;
+        } catch (RuntimeException re) {
+            topicFailed = true;
+            throw re;
         }
 
-        //get the TopicSession from our TopicConnectionFactory
-        topicSession = topicConnection.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
-        logger.debug("Topic session created");
-
         //TopicSession is now ready
         topicSessionReady = true;
     }
@@ -256,114 +487,351 @@ public class JMSHandler {
     /**
      * Prepares the QueueReceiver.
      */
-    public  synchronized void initQueueReceiver() throws JMSException, NamingException {
-        //first of all we have to inititiate the QueueSession
-        //(without this we can't instantiate a QueueReceiver)
-        initQueueSession();
+    public void initQueueReceiver() throws JMSException, NamingException {
+        synchronized (queueLock) {
+            //first of all we have to inititiate the QueueSession
+            //(without this we can't instantiate a QueueReceiver)
+            initQueueSession();
+
+            if (queueReceiver != null) {
+                //this side survived the last failure, nothing to do
+                return;
+            }
+
+            try {
+                //get the QueueReceiver from our QueueSession
+                QueueReceiver queueReceiver = queueSession.createReceiver(queue);
+                logger.debug("Queue receiver created");
+
+                //if set we pass our ExtendedMessageListener to the QueueReceiver as MessageListener
+                if (messageListener != null) {
+                    queueReceiver.setMessageListener(messageListener);
+                }
+
+                //start listening to JMS
+                queueConnection.start();
+                logger.debug("Queue connection started");
+                this.queueReceiver = queueReceiver;
+            } catch (JMSException je) {
+                queueFailed = true;
+                throw je;
+            }
+        }
+    }
 
-        //get the QueueReceiver from our QueueSession
-        QueueReceiver queueReceiver = queueSession.createReceiver(queue);
-        logger.debug("Queue receiver created");
+    public void initQueueSender(int msgPoolSize) throws JMSException, NamingException {
+        synchronized (queueLock) {
+            //first of all we have to inititiate the QueueSession
+            //(without this we can't instantiate a QueueSender)
+            initQueueSession();
+
+            if (queueSender != null) {
+                //this side survived the last failure, nothing to do
+                return;
+            }
 
-        //if set we pass our ExtendedMessageListener to the QueueReceiver as MessageListener
-        if (messageListener != null) {
-            queueReceiver.setMessageListener(messageListener);
+            try {
+                //get the QueueSender from our QueueSession
+                QueueSender queueSender = queueSession.createSender(queue);
+                logger.debug("Queue sender created");
+
+                //create the message pool for text messages
+                textMessagePool = new TextMessagePool(queueSession, msgPoolSize);
+                logger.debug("Text message pool created");
+                this.queueSender = queueSender;
+            } catch (JMSException je) {
+                queueFailed = true;
+                throw je;
+            }
         }
+    }
+
+    public void sendMessage(String text) throws JMSException{
+        synchronized (queueLock) {
+            //check if QueueSession is ready
+            if (!queueSessionReady || queueSender == null) {
+                //QueueSession is not ready, we can't send messages
+                throw new JMSException("Queue sender not ready");
+            }
 
-        //start listening to JMS
-        queueConnection.start();
-        logger.debug("Queue connection started");
+            //get a TextMessage from the pool
+            TextMessage textMessage = (TextMessage) this.textMessagePool.getMessage();
+            //fill it with text (our message to be sent)
+            textMessage.setText(text);
+            logger.debug("Sending message: " + text);
+            //send to JMS
+            queueSender.send(textMessage);
+            if (FeedEvents.CONTROL_MESSAGE.isEnabled()) {
+                FeedEvents.CONTROL_MESSAGE.emit(text, "sent");
+            }
+            //release the TextMessage to the pool
+            textMessagePool.release(textMessage);
+        }
     }
 
-    public synchronized void initQueueSender(int msgPoolSize) throws JMSException, NamingException {
-        //first of all we have to inititiate the QueueSession
-        //(without this we can't instantiate a QueueSender)
-        initQueueSession();
+    public void initTopicSubscriber() throws JMSException, NamingException {
+        synchronized (topicLock) {
+            if (standby) {
+                //a late connection loop of the time this handler was the active one
+                throw new JMSException("No topic subscriber on a standby provider");
+            }
+
+            //first of all we have to inititiate the TopicSession
+            //(without this we can't instantiate a TopicSubscriber)
+            initTopicSession();
 
-        //get the QueueSender from our QueueSession
-        queueSender = queueSession.createSender(queue);
-        logger.debug("Queue sender created");
+            if (topicSubscriber != null) {
+                //this side survived the last failure, nothing to do
+                return;
+            }
 
-        //create the message pool for text messages
-        textMessagePool = new TextMessagePool(queueSession, msgPoolSize);
-        logger.debug("Text message pool created");
+            try {
+                //get the TopicSubscriber from our TopicSession
+                TopicSubscriber topicSubscriber = topicSession.createSubscriber(topic, null, true);
+                logger.debug("Topic subscriber created");
+
+                //if set we pass our ExtendedMessageListener to the TopicSubscriber as MessageListener
+                if (messageListener != null) {
+                    topicSubscriber.setMessageListener(messageListener);
+                }
+
+                if (priorityTopicName != null) {
+                    //the priority lane gets its own session, hence its own delivery thread
+                    initPriorityTopic();
+                    prioritySession = topicConnection.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
+                    prioritySubscriber = prioritySession.createSubscriber(priorityTopic, null, true);
+                    prioritySubscriber.setMessageListener(priorityListener != null ? priorityListener : messageListener);
+                    logger.debug("Priority topic subscriber created");
+                }
+
+                //start listening to JMS
+                topicConnection.start();
+                logger.info("Topic connection started");
+                this.topicSubscriber = topicSubscriber;
+            } catch (JMSException je) {
+                topicFailed = true;
+                throw je;
+            }
+        }
     }
 
-    public synchronized void sendMessage(String text) throws JMSException{
-        //check if QueueSession is ready
-        if (!queueSessionReady) {
-            //QueueSession is not ready, we can't send messages
-            throw new JMSException("Queue sender not ready");
-        }
-
-        //get a TextMessage from the pool
-        TextMessage textMessage = (TextMessage) this.textMessagePool.getMessage();
-        //fill it with text (our message to be sent)
-        textMessage.setText(text);
-        logger.debug("Sending message: " + text);
-        //send to JMS
-        queueSender.send(textMessage);
-        //release the TextMessage to the pool
-        textMessagePool.release(textMessage);
+    public void initTopicPublisher(int msgPoolSize) throws JMSException, NamingException {
+        synchronized (topicLock) {
+            //first of all we have to inititiate the TopicSession
+            //(without this we can't instantiate a TopicPublisher)
+
+            logger.debug(" ... 4 ...");
+
+            initTopicSession();
+
+            logger.debug(" ... 5 ...");
+
+            if (topicPublisher != null) {
+                //this side survived the last failure, nothing to do
+                return;
+            }
+
+            try {
+                //get the TopicPublisher from our TopicSession
+                TopicPublisher topicPublisher = topicSession.createPublisher(topic);
+                topicPublisher.setDeliveryMode(deliveryMode);
+                topicPublisher.setTimeToLive(timeToLive);
+                logger.debug("Topic publisher created");
+
+                //create the message pool for FeedMessage messages
+                this.objectMessagePool = new ObjectMessagePool(topicSession, msgPoolSize);
+                logger.debug("Object message pool created");
+                this.topicPublisher = topicPublisher;
+            } catch (JMSException je) {
+                topicFailed = true;
+                throw je;
+            }
+        }
     }
 
-    public synchronized void initTopicSubscriber() throws JMSException, NamingException {
-        //first of all we have to inititiate the TopicSession
-        //(without this we can't instantiate a TopicSubscriber)
-        initTopicSession();
 
-        //get the TopicSubscriber from our TopicSession
-        TopicSubscriber topicSubscriber = topicSession.createSubscriber(topic, null, true);
-        logger.debug("Topic subscriber created");
+    /**
+     * Sets up a priority lane: the messages published through
+     * publishPriorityMessage go to this topic, through their own session
+     * (and with the highest JMS priority), instead of queuing behind the
+     * data; a subscriber gets them, on its own delivery thread, through
+     * listener (or the main listener, if null). To be called before
+     * initTopicSubscriber; publishers can set it at any time.
+     */
+    public void setPriorityTopic(String topicName, MessageListener listener) {
+        synchronized (topicLock) {
+            this.priorityTopicName = topicName;
+            this.priorityListener = listener;
+        }
+    }
 
-        //if set we pass our ExtendedMessageListener to the TopicSubscriber as MessageListener
-        if (messageListener != null) {
-            topicSubscriber.setMessageListener(messageListener);
+    /**
+     * Looks up the priority topic, if needed.
+     * Must be called while holding topicLock.
+     */
+    private void initPriorityTopic() throws JMSException, NamingException {
+        if (priorityTopic == null) {
+            logger.info("Looking up priority topic [" + priorityTopicName + "]...");
+            try {
+                priorityTopic = (Topic) lookup(priorityTopicName);
+            } catch (NamingException ne) {
+                topicFailed = true;
+                throw ne;
+            }
         }
+    }
 
-        //start listening to JMS
-        topicConnection.start();
-        logger.info("Topic connection started");
+    /**
+     * Prepares the priority publisher, if needed; the TopicSession must be
+     * ready. Must be called while holding topicLock.
+     */
+    private void initPriorityPublisher() throws JMSException, NamingException {
+        if (priorityPublisher != null) {
+            return;
+        }
+        initPriorityTopic();
+        try {
+            if (prioritySession == null) {
+                prioritySession = topicConnection.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
+            }
+            TopicPublisher publisher = prioritySession.createPublisher(priorityTopic);
+            publisher.setDeliveryMode(deliveryMode);
+            publisher.setTimeToLive(timeToLive);
+            publisher.setPriority(9);
+            logger.debug("Priority topic publisher created");
+            priorityPublisher = publisher;
+        } catch (JMSException je) {
+            topicFailed = true;
+            throw je;
+        }
     }
 
-    public synchronized void initTopicPublisher(int msgPoolSize) throws JMSException, NamingException {
-        //first of all we have to inititiate the TopicSession
-        //(without this we can't instantiate a TopicPublisher)
+    /**
+     * Publishes obj on the priority lane, or, without one, as publishMessage.
+     */
+    public void publishPriorityMessage(Serializable obj) throws JMSException {
+        if (priorityTopicName == null) {
+            publishMessage(obj);
+            return;
+        }
+        TopicPublisher publisher = priorityPublisher;
+        if (publisher == null) {
+            //the first time after each (re)connection
+            synchronized (topicLock) {
+                if (!topicSessionReady || topicPublisher == null) {
+                    throw new JMSException("Topic publisher not ready");
+                }
+                try {
+                    initPriorityPublisher();
+                } catch (NamingException ne) {
+                    throw new JMSException("Priority topic not found: " + ne.getMessage());
+                }
+                publisher = priorityPublisher;
+            }
+        }
+        TopicSession session = prioritySession;
+        if (session == null) {
+            //reset in the meantime
+            throw new JMSException("Priority publisher not ready");
+        }
+        synchronized (priorityLock) {
+            //a few messages per second: not pooled
+            ObjectMessage objectMessage = session.createObjectMessage(obj);
+            logger.debug("Publishing priority message object " + obj);
+            publisher.publish(objectMessage);
+        }
+    }
 
-        logger.debug(" ... 4 ...");
+    /**
+     * Enables the compression of the published objects whose serialized
+     * form is at least threshold bytes long (see PayloadCodec); 0 disables it.
+     */
+    public void setCompressionThreshold(int threshold) {
+        this.compressionThreshold = Math.max(0, threshold);
+    }
 
-        initTopicSession();
+    /**
+     * Sets how the published messages are delivered: persistent (the JMS
+     * default) or not, and after how long they expire undelivered (0, the
+     * default, means never). The queue side is not affected.
+     */
+    public void setDeliveryOptions(boolean persistent, long timeToLiveMillis) {
+        synchronized (topicLock) {
+            deliveryMode = persistent ? DeliveryMode.PERSISTENT : DeliveryMode.NON_PERSISTENT;
+            timeToLive = Math.max(0, timeToLiveMillis);
+            if (topicPublisher != null) {
+                try {
+                    topicPublisher.setDeliveryMode(deliveryMode);
+                    topicPublisher.setTimeToLive(timeToLive);
+                } catch (JMSException je) {
+                    //the new publisher will get them
+                    logger.warn("Can't change the delivery options of the topic publisher: " + je.getMessage());
+                }
+            }
+            TopicPublisher publisher = priorityPublisher;
+            if (publisher != null) {
+                try {
+                    publisher.setDeliveryMode(deliveryMode);
+                    publisher.setTimeToLive(timeToLive);
+                } catch (JMSException je) {
+                    logger.warn("Can't change the delivery options of the priority publisher: " + je.getMessage());
+                }
+            }
+        }
+    }
 
-        logger.debug(" ... 5 ...");
+    public void publishMessage(Serializable obj) throws JMSException{
+        synchronized (topicLock) {
+            //check if TopicSession is ready
+            if (!topicSessionReady || topicPublisher == null) {
+                //TopicSession is not ready, we can't publish messages
+                throw new JMSException("Topic publisher not ready");
+            }
 
-        //get the TopicPublisher from our TopicSession
-        this.topicPublisher = topicSession.createPublisher(topic);
-        logger.debug("Topic publisher created");
+            int threshold = compressionThreshold;
+            if (threshold > 0) {
+                //the codec is only used under topicLock; it serializes obj once,
+                //whether compressed or not
+                BytesMessage bytesMessage = codec.encode(topicSession, obj, threshold);
+                logger.debug("Publishing encoded message object " + obj);
+                this.topicPublisher.publish(bytesMessage);
+                return;
+            }
 
-        //create the message pool for FeedMessage messages
-        this.objectMessagePool = new ObjectMessagePool(topicSession, msgPoolSize);
-        logger.debug("Object message pool created");
+            //get an ObjectMessage from the pool
+            ObjectMessage objectMessage = (ObjectMessage) this.objectMessagePool.getMessage();
+            //fill it with obj (our message to be sent)
+            objectMessage.setObject(obj);
+            logger.debug("Publishing message object " + obj);
+            //publish to JMS
+            this.topicPublisher.publish(objectMessage);
+            //release the ObjectMessage to the pool
+            this.objectMessagePool.release(objectMessage);
+        }
     }
 
+    /**
+     * Marks the failed side before passing the exception to our listener,
+     * so that the following reconnection only rebuilds that side.
+     */
+    private class SideExceptionListener implements ExceptionListener {
+
+        private boolean isTopic;
 
-    public synchronized void publishMessage(Serializable obj) throws JMSException{
-        //check if TopicSession is ready
-        if (!topicSessionReady) {
-            //TopicSession is not ready, we can't publish messages
-            throw new JMSException("Topic publisher not ready");
+        public SideExceptionListener(boolean isTopic) {
+            this.isTopic = isTopic;
         }
 
-        //get an ObjectMessage from the pool
-        ObjectMessage objectMessage = (ObjectMessage) this.objectMessagePool.getMessage();
-        //fill it with obj (our message to be sent)
-        objectMessage.setObject(obj);
-        logger.debug("Publishing message object " + obj);
-        //publish to JMS
-        this.topicPublisher.publish(objectMessage);
-        //release the ObjectMessage to the pool
-        this.objectMessagePool.release(objectMessage);
-    }
+        public void onException(JMSException je) {
+            if (isTopic) {
+                topicFailed = true;
+            } else {
+                queueFailed = true;
+            }
+            messageListener.onException(je);
+        }
 
+    }
 
 
     //////////////////////MessagePool
@@ -0,0 +1,256 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+
+/**
+ * Compresses the published objects whose serialized form exceeds a
+ * threshold: they travel as BytesMessages holding the Deflate-compressed
+ * serialization, marked by the "codec" property. The objects below the
+ * threshold, once serialized to be measured, travel as they are, in
+ * BytesMessages marked as plain serializations, so that they are not
+ * serialized twice (as an ObjectMessage would do).
+ * The Deflate dictionary is the serialization of sample FeedMessages
+ * (with names, field ids or numbers) and of a HeartbeatMessage, which holds the class descriptors and field
+ * names repeated in every message; the codec name carries its checksum,
+ * so that a receiver with a different dictionary (i.e. different
+ * classes) refuses the message instead of decoding garbage.
+ * An instance is not thread safe: each publisher and each receiving
+ * session should own one.
+ */
+public class PayloadCodec {
+
+    public static final String CODEC_PROPERTY = "codec";
+    public static final String LENGTH_PROPERTY = "codecLength";
+
+    private static final byte[] DICTIONARY = buildDictionary();
+    public static final String DEFLATE = "deflate-" + Long.toHexString(checksum(DICTIONARY));
+    public static final String SERIALIZED = "serialized";
+
+    /**
+     * The longest serialization accepted by decode: a bigger length can
+     * only come from a malformed message and would just exhaust the memory.
+     */
+    public static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater inflater = new Inflater();
+
+    //reused buffers
+    private final ExposedOutputStream serialized = new ExposedOutputStream(1024);
+    private byte[] compressed = new byte[1024];
+    private byte[] plain = new byte[1024];
+
+    private static byte[] buildDictionary() {
+        HashMap<String,String> values = new HashMap<String,String>();
+        values.put("stock_name", "-");
+        values.put("time", "00:00:00");
+        values.put("last_price", "0.00");
+        values.put("ask", "0.00");
+        values.put("bid", "0.00");
+        values.put("bid_quantity", "0");
+        values.put("ask_quantity", "0");
+        values.put("pct_change", "0.00");
+        values.put("min", "0.00");
+        values.put("max", "0.00");
+        values.put("ref_price", "0.00");
+        values.put("open_price", "0.00");
+        values.put("item_status", "active");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(new HeartbeatMessage(0));
+            out.close();
+            //the most frequent strings go last, where Deflate finds them cheaper
+            out = new ObjectOutputStream(bytes);
+            out.writeObject(new FeedMessage("item1", values, false, "1", 0, 1));
+            out.close();
+            //then with field ids in place of the names
+            FeedMessage encoded = new FeedMessage("item1", values, false, "1", 0, 1);
+            encoded.schemaVersion = FieldSchema.QUOTES - 1;
+            out = new ObjectOutputStream(bytes);
+            out.writeObject(encoded);
+            out.close();
+            //and the usual case, with the numbers
+            QuoteRecord quote = new QuoteRecord(0);
+            quote.time = 1;
+            quote.add(QuoteRecord.TIME);
+            quote.lastPrice = 100;
+            quote.add(QuoteRecord.LAST_PRICE);
+            out = new ObjectOutputStream(bytes);
+            out.writeObject(new FeedMessage("item1", quote, false, "1", 0, 1));
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            //can't happen on a memory stream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long checksum(byte[] bytes) {
+        Adler32 adler = new Adler32();
+        adler.update(bytes, 0, bytes.length);
+        return adler.getValue();
+    }
+
+    /**
+     * Builds a BytesMessage for obj: compressed, or, if its serialized form
+     * is shorter than threshold, just serialized.
+     */
+    public BytesMessage encode(Session session, Serializable obj, int threshold) throws JMSException {
+        serialized.reset();
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(serialized);
+            out.writeObject(obj);
+            out.close();
+        } catch (IOException e) {
+            throw new JMSException("Serialization failed: " + e.getMessage());
+        }
+        int length = serialized.size();
+        if (length < threshold) {
+            BytesMessage message = session.createBytesMessage();
+            message.setStringProperty(CODEC_PROPERTY, SERIALIZED);
+            message.writeBytes(serialized.buffer(), 0, length);
+            return message;
+        }
+
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(serialized.buffer(), 0, length);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = grow(compressed, compressedLength);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+
+        BytesMessage message = session.createBytesMessage();
+        message.setStringProperty(CODEC_PROPERTY, DEFLATE);
+        message.setIntProperty(LENGTH_PROPERTY, length);
+        message.writeBytes(compressed, 0, compressedLength);
+        return message;
+    }
+
+    /**
+     * Extracts the object carried by an ObjectMessage or by an encoded
+     * BytesMessage; a ClassCastException is thrown for other messages.
+     */
+    public Object decode(Message message) throws JMSException {
+        if (!(message instanceof BytesMessage)) {
+            return ((ObjectMessage) message).getObject();
+        }
+        BytesMessage bytesMessage = (BytesMessage) message;
+        String codec = message.getStringProperty(CODEC_PROPERTY);
+        if (SERIALIZED.equals(codec)) {
+            int length = checkLength(bytesMessage.getBodyLength());
+            if (plain.length < length) {
+                plain = new byte[length];
+            }
+            bytesMessage.readBytes(plain, length);
+            return deserialize(length);
+        } else if (!DEFLATE.equals(codec)) {
+            throw new JMSException("Unsupported codec: " + codec + " (expected " + DEFLATE + ")");
+        }
+
+        int length;
+        try {
+            length = checkLength(message.getIntProperty(LENGTH_PROPERTY));
+        } catch (NumberFormatException e) {
+            throw new JMSException("Missing or invalid " + LENGTH_PROPERTY + " property");
+        }
+        int compressedLength = checkLength(bytesMessage.getBodyLength());
+        if (compressed.length < compressedLength) {
+            compressed = new byte[compressedLength];
+        }
+        bytesMessage.readBytes(compressed, compressedLength);
+
+        //a byte more than declared, to find out if there is more
+        if (plain.length < length + 1) {
+            plain = new byte[length + 1];
+        }
+        inflater.reset();
+        inflater.setInput(compressed, 0, compressedLength);
+        int plainLength = 0;
+        try {
+            while (!inflater.finished()) {
+                if (plainLength > length) {
+                    throw new JMSException("Compressed message longer than its " + LENGTH_PROPERTY + " of " + length);
+                }
+                int n = inflater.inflate(plain, plainLength, length + 1 - plainLength);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        throw new JMSException("Truncated compressed message");
+                    }
+                }
+                plainLength += n;
+            }
+        } catch (DataFormatException e) {
+            throw new JMSException("Corrupted compressed message: " + e.getMessage());
+        }
+        if (plainLength != length) {
+            throw new JMSException("Compressed message of " + plainLength + " bytes instead of its " + LENGTH_PROPERTY + " of " + length);
+        }
+        return deserialize(plainLength);
+    }
+
+    private static int checkLength(long length) throws JMSException {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new JMSException("Invalid message length: " + length);
+        }
+        return (int) length;
+    }
+
+    private Object deserialize(int plainLength) throws JMSException {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(plain, 0, plainLength));
+            return in.readObject();
+        } catch (IOException e) {
+            throw new JMSException("Deserialization failed: " + e.getMessage());
+        } catch (ClassNotFoundException e) {
+            throw new JMSException("Deserialization failed: " + e.getMessage());
+        }
+    }
+
+    private static byte[] grow(byte[] buffer, int length) {
+        byte[] bigger = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, bigger, 0, length);
+        return bigger;
+    }
+
+}
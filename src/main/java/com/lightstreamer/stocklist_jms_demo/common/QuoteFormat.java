@@ -0,0 +1,133 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.util.TimeZone;
+
+/**
+ * Turns the QuoteRecord numbers into the strings sent to Lightstreamer.
+ * The results are kept in small direct-mapped caches, as the same prices
+ * and quantities keep coming back, so that a formatted value is usually
+ * found rather than built.
+ * All the methods are thread safe: the cache entries are immutable and
+ * at worst a value is formatted twice.
+ */
+public class QuoteFormat {
+
+    //a power of 2
+    private static final int CACHE_SIZE = 4096;
+
+    private static class Entry {
+        final long value;
+        final String text;
+
+        Entry(long value, String text) {
+            this.value = value;
+            this.text = text;
+        }
+    }
+
+    private static final Entry[] decimals = new Entry[CACHE_SIZE];
+    private static final Entry[] integers = new Entry[CACHE_SIZE];
+    //the time is formatted once per second
+    private static volatile Entry lastTime = new Entry(Long.MIN_VALUE, null);
+
+    /**
+     * Formats hundredths (e.g. cents) as a decimal number, the same as
+     * Double.toString(hundredths / 100.0) (e.g. 1609 as "16.09", 310 as
+     * "3.1" and 0 as "0.0").
+     */
+    public static String decimal(long hundredths) {
+        int slot = (int) hundredths & (CACHE_SIZE - 1);
+        Entry entry = decimals[slot];
+        if (entry == null || entry.value != hundredths) {
+            entry = new Entry(hundredths, formatDecimal(hundredths));
+            decimals[slot] = entry;
+        }
+        return entry.text;
+    }
+
+    private static String formatDecimal(long hundredths) {
+        long abs = Math.abs(hundredths);
+        if (abs >= 1000000000L || hundredths == Long.MIN_VALUE) {
+            //Double.toString switches to the exponential notation
+            return Double.toString(hundredths / 100.0);
+        }
+        StringBuilder text = new StringBuilder(12);
+        if (hundredths < 0) {
+            text.append('-');
+        }
+        text.append(abs / 100).append('.');
+        int fraction = (int) (abs % 100);
+        if (fraction % 10 == 0) {
+            text.append(fraction / 10);
+        } else {
+            if (fraction < 10) {
+                text.append('0');
+            }
+            text.append(fraction);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Formats an integer number (e.g. a quantity).
+     */
+    public static String integer(long value) {
+        int slot = (int) (value ^ (value >>> 32)) & (CACHE_SIZE - 1);
+        Entry entry = integers[slot];
+        if (entry == null || entry.value != value) {
+            entry = new Entry(value, Long.toString(value));
+            integers[slot] = entry;
+        }
+        return entry.text;
+    }
+
+    /**
+     * Formats a time (in milliseconds since the epoch) as HH:mm:ss in
+     * the default time zone.
+     */
+    public static String time(long millis) {
+        long second = Math.floorDiv(millis, 1000L);
+        Entry entry = lastTime;
+        if (entry.value != second) {
+            entry = new Entry(second, formatTime(millis));
+            lastTime = entry;
+        }
+        return entry.text;
+    }
+
+    private static String formatTime(long millis) {
+        long local = millis + TimeZone.getDefault().getOffset(millis);
+        int secondOfDay = (int) Math.floorMod(Math.floorDiv(local, 1000L), 86400L);
+        int hours = secondOfDay / 3600;
+        int minutes = secondOfDay / 60 % 60;
+        int seconds = secondOfDay % 60;
+        char[] text = new char[8];
+        text[0] = (char) ('0' + hours / 10);
+        text[1] = (char) ('0' + hours % 10);
+        text[2] = ':';
+        text[3] = (char) ('0' + minutes / 10);
+        text[4] = (char) ('0' + minutes % 10);
+        text[5] = ':';
+        text[6] = (char) ('0' + seconds / 10);
+        text[7] = (char) ('0' + seconds % 10);
+        return new String(text);
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * The values of a stock quote update as numbers: prices in cents, the
+ * percent change in hundredths, the time in milliseconds since the epoch.
+ * An update only carries some of the fields, flagged by the bits of
+ * present; the field constants are the same as the FieldSchema ids.
+ * The strings are only built (through QuoteFormat) when a value is read
+ * as text, i.e. at the Lightstreamer boundary.
+ * A record must not be changed once handed to someone else (e.g.
+ * published), as it may be read by other threads.
+ */
+public class QuoteRecord {
+
+    public static final int STOCK_NAME = 0;
+    public static final int TIME = 1;
+    public static final int LAST_PRICE = 2;
+    public static final int ASK = 3;
+    public static final int BID = 4;
+    public static final int BID_QUANTITY = 5;
+    public static final int ASK_QUANTITY = 6;
+    public static final int PCT_CHANGE = 7;
+    public static final int MIN = 8;
+    public static final int MAX = 9;
+    public static final int REF_PRICE = 10;
+    public static final int OPEN_PRICE = 11;
+    public static final int ITEM_STATUS = 12;
+    public static final int FIELDS = 13;
+
+    //one bit per field in the update
+    public int present = 0;
+    //the position of the stock in the feed
+    public int stockId;
+
+    public String stockName;
+    public long time;
+    public long lastPrice;
+    public long ask;
+    public long bid;
+    public int bidQuantity;
+    public int askQuantity;
+    public int pctChange;
+    public long min;
+    public long max;
+    public long refPrice;
+    public long openPrice;
+    public boolean active;
+
+    public QuoteRecord(int stockId) {
+        this.stockId = stockId;
+    }
+
+    public boolean has(int field) {
+        return (present & (1 << field)) != 0;
+    }
+
+    /**
+     * Flags a field as carried by the update (once its value is set).
+     */
+    public void add(int field) {
+        present |= 1 << field;
+    }
+
+    /**
+     * Gets the name of a field.
+     */
+    public static String getName(int field) {
+        return FieldSchema.nameOf(field, FieldSchema.CURRENT_VERSION);
+    }
+
+    /**
+     * Gets the text of a field, as expected by Lightstreamer; null if the
+     * update doesn't carry the field.
+     */
+    public String format(int field) {
+        if (!has(field)) {
+            return null;
+        }
+        switch (field) {
+            case STOCK_NAME: return stockName;
+            case TIME: return QuoteFormat.time(time);
+            case LAST_PRICE: return QuoteFormat.decimal(lastPrice);
+            case ASK: return QuoteFormat.decimal(ask);
+            case BID: return QuoteFormat.decimal(bid);
+            case BID_QUANTITY: return QuoteFormat.integer(bidQuantity);
+            case ASK_QUANTITY: return QuoteFormat.integer(askQuantity);
+            case PCT_CHANGE: return QuoteFormat.decimal(pctChange);
+            case MIN: return QuoteFormat.decimal(min);
+            case MAX: return QuoteFormat.decimal(max);
+            case REF_PRICE: return QuoteFormat.decimal(refPrice);
+            case OPEN_PRICE: return QuoteFormat.decimal(openPrice);
+            case ITEM_STATUS: return active ? "active" : "inactive";
+            default: return null;
+        }
+    }
+
+    /**
+     * Overwrites the fields carried by another (later) update, e.g. to
+     * conflate it into this one.
+     */
+    public void mergeFrom(QuoteRecord other) {
+        for (int field = 0; field < FIELDS; field++) {
+            if (!other.has(field)) {
+                continue;
+            }
+            switch (field) {
+                case STOCK_NAME: stockName = other.stockName; break;
+                case TIME: time = other.time; break;
+                case LAST_PRICE: lastPrice = other.lastPrice; break;
+                case ASK: ask = other.ask; break;
+                case BID: bid = other.bid; break;
+                case BID_QUANTITY: bidQuantity = other.bidQuantity; break;
+                case ASK_QUANTITY: askQuantity = other.askQuantity; break;
+                case PCT_CHANGE: pctChange = other.pctChange; break;
+                case MIN: min = other.min; break;
+                case MAX: max = other.max; break;
+                case REF_PRICE: refPrice = other.refPrice; break;
+                case OPEN_PRICE: openPrice = other.openPrice; break;
+                case ITEM_STATUS: active = other.active; break;
+            }
+        }
+        present |= other.present;
+    }
+
+    public QuoteRecord copy() {
+        QuoteRecord copy = new QuoteRecord(stockId);
+        copy.mergeFrom(this);
+        return copy;
+    }
+
+    /**
+     * Converts the update to the <field->value> map used by the adapters
+     * that don't know the records.
+     */
+    public HashMap<String,String> toMap() {
+        HashMap<String,String> map = new HashMap<String,String>(FIELDS * 4 / 3 + 1);
+        for (int field = 0; field < FIELDS; field++) {
+            if (has(field)) {
+                map.put(getName(field), format(field));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Writes the record compactly: the numbers as variable length
+     * integers, hence the typical prices take 2 or 3 bytes.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        writeVarLong(out, present);
+        writeVarLong(out, stockId);
+        for (int field = 0; field < FIELDS; field++) {
+            if (!has(field)) {
+                continue;
+            }
+            switch (field) {
+                case STOCK_NAME: out.writeUTF(stockName == null ? "" : stockName); break;
+                case TIME: writeVarLong(out, time); break;
+                case LAST_PRICE: writeVarLong(out, lastPrice); break;
+                case ASK: writeVarLong(out, ask); break;
+                case BID: writeVarLong(out, bid); break;
+                case BID_QUANTITY: writeVarLong(out, bidQuantity); break;
+                case ASK_QUANTITY: writeVarLong(out, askQuantity); break;
+                case PCT_CHANGE: writeVarLong(out, pctChange); break;
+                case MIN: writeVarLong(out, min); break;
+                case MAX: writeVarLong(out, max); break;
+                case REF_PRICE: writeVarLong(out, refPrice); break;
+                case OPEN_PRICE: writeVarLong(out, openPrice); break;
+                case ITEM_STATUS: out.writeBoolean(active); break;
+            }
+        }
+    }
+
+    /**
+     * The bytes that writeTo would write, without writing them.
+     */
+    public int encodedSize() {
+        int size = varLongSize(present) + varLongSize(stockId);
+        for (int field = 0; field < FIELDS; field++) {
+            if (!has(field)) {
+                continue;
+            }
+            switch (field) {
+                //as modified UTF-8, with its length (exact for ASCII names)
+                case STOCK_NAME: size += 2 + (stockName == null ? 0 : stockName.length()); break;
+                case TIME: size += varLongSize(time); break;
+                case LAST_PRICE: size += varLongSize(lastPrice); break;
+                case ASK: size += varLongSize(ask); break;
+                case BID: size += varLongSize(bid); break;
+                case BID_QUANTITY: size += varLongSize(bidQuantity); break;
+                case ASK_QUANTITY: size += varLongSize(askQuantity); break;
+                case PCT_CHANGE: size += varLongSize(pctChange); break;
+                case MIN: size += varLongSize(min); break;
+                case MAX: size += varLongSize(max); break;
+                case REF_PRICE: size += varLongSize(refPrice); break;
+                case OPEN_PRICE: size += varLongSize(openPrice); break;
+                case ITEM_STATUS: size += 1; break;
+            }
+        }
+        return size;
+    }
+
+    public static QuoteRecord readFrom(DataInput in) throws IOException {
+        int present = (int) readVarLong(in);
+        QuoteRecord quote = new QuoteRecord((int) readVarLong(in));
+        //unknown fields (from a newer peer) couldn't be skipped
+        if ((present & ~((1 << FIELDS) - 1)) != 0) {
+            throw new IOException("Unknown quote fields: " + Integer.toHexString(present));
+        }
+        quote.present = present;
+        for (int field = 0; field < FIELDS; field++) {
+            if (!quote.has(field)) {
+                continue;
+            }
+            switch (field) {
+                case STOCK_NAME: quote.stockName = in.readUTF(); break;
+                case TIME: quote.time = readVarLong(in); break;
+                case LAST_PRICE: quote.lastPrice = readVarLong(in); break;
+                case ASK: quote.ask = readVarLong(in); break;
+                case BID: quote.bid = readVarLong(in); break;
+                case BID_QUANTITY: quote.bidQuantity = (int) readVarLong(in); break;
+                case ASK_QUANTITY: quote.askQuantity = (int) readVarLong(in); break;
+                case PCT_CHANGE: quote.pctChange = (int) readVarLong(in); break;
+                case MIN: quote.min = readVarLong(in); break;
+                case MAX: quote.max = readVarLong(in); break;
+                case REF_PRICE: quote.refPrice = readVarLong(in); break;
+                case OPEN_PRICE: quote.openPrice = readVarLong(in); break;
+                case ITEM_STATUS: quote.active = in.readBoolean(); break;
+            }
+        }
+        return quote;
+    }
+
+    //zig-zag encoded, 7 bits per byte (also used by FeedJournal)
+    static void writeVarLong(DataOutput out, long value) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) (zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    static int varLongSize(long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        int size = 1;
+        while ((zigzag & ~0x7FL) != 0) {
+            size++;
+            zigzag >>>= 7;
+        }
+        return size;
+    }
+
+    static long readVarLong(DataInput in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+}
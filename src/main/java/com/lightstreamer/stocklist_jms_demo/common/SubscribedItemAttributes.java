@@ -36,6 +36,30 @@ public class SubscribedItemAttributes {
      */
     public String itemName;
 
+    /**
+     * The sequence number of the last update stamped (by the Generator)
+     * or forwarded (by the adapter) for the current handle.
+     */
+    public long lastSeq = 0;
+
+    /**
+     * (Generator only) the time of the last update published for the item.
+     */
+    public long lastPublishTime = 0;
+
+    /**
+     * (Adapter only) whether a gap was seen and the flow of the item must
+     * be restarted, and when it was last restarted because of a gap.
+     */
+    public boolean resyncPending = false;
+    public long lastResyncTime = 0;
+
+    /**
+     * The values held back: by the Generator while conflating, by the
+     * adapter while the updates are stale.
+     */
+    public QuoteRecord pendingQuote = null;
+
 
     public SubscribedItemAttributes(String itemName, String handleId) {
         this.itemName = itemName;
@@ -0,0 +1,48 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.feed_simulator;
+
+/**
+ * A source of quote events for the Generator: the simulator or the
+ * replay of a recorded journal.
+ */
+public interface ExternalFeed {
+
+    /**
+     * Starts producing update events.
+     */
+    void start();
+
+    /**
+     * Sets the listener of the update events; before, they are ignored.
+     */
+    void setFeedListener(ExternalFeedListener listener);
+
+    /**
+     * Asks for an event with a full snapshot for a stock, inserted in the
+     * normal flow of the events.
+     */
+    void sendCurrentValues(String itemName);
+
+    /**
+     * Tells whether a stock is currently subscribed; a feed may then stop
+     * producing the events nobody would receive.
+     */
+    void setInterested(String itemName, boolean interested);
+
+}
@@ -17,7 +17,7 @@
  */
 package stocklist_jms_demo.feed_simulator;
 
-import java.util.HashMap;
+import stocklist_jms_demo.common.QuoteRecord;
 
 /**
  * Used to receive data from the simulated broadcast feed in an
@@ -29,8 +29,9 @@ public interface ExternalFeedListener {
      * Called by the feed for each update event occurrence on some stock.
      * If isSnapshot is true, then the event contains a full snapshot,
      * with the current values of all fields for the stock.
+     * The quote is not changed by the feed afterwards.
      */
-    void onEvent(String itemName, HashMap currentValues, boolean isSnapshot);
+    void onEvent(String itemName, QuoteRecord quote, boolean isSnapshot);
 
 }
 
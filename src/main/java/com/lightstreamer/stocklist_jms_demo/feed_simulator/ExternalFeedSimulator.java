@@ -18,25 +18,33 @@
 
 package stocklist_jms_demo.feed_simulator;
 
-import java.text.SimpleDateFormat;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import stocklist_jms_demo.common.QuoteRecord;
 
 /**
  * Simulates an external data feed that supplies quote values for all the
  * stocks needed for the demo.
  */
-public class ExternalFeedSimulator {
+public class ExternalFeedSimulator implements ExternalFeed {
 
     private static final Timer dispatcher = new Timer();
-    private static final Random random = new Random();
 
     /**
-     * Used to automatically generate the updates for the 30 stocks:
+     * The most price changes applied to bring a parked stock up to date.
+     */
+    private static final int MAX_CATCH_UP_UPDATES = 4096;
+
+    /**
+     * Used by the classic LoadProfile to generate the updates for the 30 stocks:
      * mean and standard deviation of the times between consecutive
      * updates for the same stock.
      */
@@ -111,19 +119,219 @@ public class ExternalFeedSimulator {
 
     private ExternalFeedListener listener;
 
+    /**
+     * Divides the times between consecutive updates, to speed up the
+     * simulation (e.g. for load tests); 1 means the original timings.
+     */
+    private final double speedup;
+
+    public ExternalFeedSimulator() {
+        this(1);
+    }
+
+    public ExternalFeedSimulator(double speedup) {
+        this.speedup = speedup > 0 ? speedup : 1;
+    }
+
+    /**
+     * When the stocks are updated.
+     */
+    private LoadProfile profile = new LoadProfile();
+
+    /**
+     * The seed of the random values, if any: the stocks then always get the
+     * same prices at the same times (relative to the start).
+     */
+    private boolean seeded = false;
+    private long seed;
+
+    /**
+     * When the simulator was started, for the LoadProfile: by the wall
+     * clock and by System.nanoTime.
+     */
+    private long startMillis;
+    private long startNanos;
+
+    /**
+     * Interest-driven simulation: the stocks nobody is subscribed to are
+     * parked, without events or timers; when subscribed again, a stock
+     * gets at once as many price changes as it would have had meanwhile
+     * (see MyProducer.catchUp), so that its snapshot is as plausible as if
+     * it had been ticking all along.
+     */
+    private boolean lazy = false;
+
+    /**
+     * Events sent and stocks currently parked, for the statistics.
+     */
+    private volatile long sentEvents = 0;
+    private final AtomicInteger parkedCount = new AtomicInteger();
+
+    /**
+     * To be called before start.
+     */
+    public void setLoadProfile(LoadProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Makes the simulation repeatable; to be called before start (and
+     * before readState).
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.seeded = true;
+    }
+
+    /**
+     * Enables the interest-driven simulation; to be called before start.
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * How many update events were produced since the start.
+     */
+    public long getSentEvents() {
+        return sentEvents;
+    }
+
+    /**
+     * How many stocks are currently parked (interest-driven simulation).
+     */
+    public int getParkedCount() {
+        return parkedCount.get();
+    }
+
+    /**
+     * Maximum number of snapshot events sent per second; 0 means no limit.
+     */
+    private volatile int snapshotsPerSecond = 0;
+
+    /**
+     * The stocks waiting for their snapshot event, the most recently
+     * requested first.
+     */
+    private final LinkedList<MyProducer> pendingSnapshots = new LinkedList<MyProducer>();
+    private boolean replayScheduled = false;
+
+    /**
+     * Limits the rate of the snapshot events, so that a burst of requests
+     * (e.g. when all the items are subscribed again) does not flood the
+     * listener: the snapshots are then replayed a few at a time, in
+     * between the normal update events, starting from the stocks
+     * requested last.
+     */
+    public void setSnapshotsPerSecond(int snapshotsPerSecond) {
+        this.snapshotsPerSecond = Math.max(0, snapshotsPerSecond);
+    }
+
     /**
      * Starts generating update events for the stocks. Sumulates attaching
      * and reading from an external broadcast feed.
      */
     public void start() {
+        if (stockGenerators.isEmpty()) {
+            createProducers();
+        }
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
         for (int i = 0; i < 30; i++) {
-            MyProducer myProducer = new MyProducer("item" + (i + 1), i);
-            stockGenerators.add(myProducer);
-            long waitTime = myProducer.computeNextWaitTime();
-            scheduleGenerator(myProducer, waitTime);
+            MyProducer myProducer = stockGenerators.get(i);
+            synchronized (myProducer) {
+                myProducer.dueNanos = startNanos + myProducer.computeNextGap(0);
+                if (lazy && !myProducer.interested) {
+                    park(myProducer);
+                    continue;
+                }
+            }
+            scheduleGenerator(myProducer);
+        }
+    }
+
+    private void createProducers() {
+        for (int i = 0; i < 30; i++) {
+            stockGenerators.add(new MyProducer("item" + (i + 1), i));
+        }
+    }
+
+    /**
+     * Writes the current prices of the stocks, so that a later simulator
+     * can go on from them (see readState).
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeInt(stockGenerators.size());
+        for (MyProducer producer : stockGenerators) {
+            synchronized (producer) {
+                producer.writeState(out);
+            }
         }
     }
 
+    /**
+     * Takes the prices written by writeState; to be called before start.
+     */
+    public void readState(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count != 30) {
+            throw new IOException("Unexpected number of stocks: " + count);
+        }
+        if (stockGenerators.isEmpty()) {
+            createProducers();
+        }
+        for (MyProducer producer : stockGenerators) {
+            producer.readState(in);
+        }
+    }
+
+    /**
+     * Called by the Generator on the subscriptions and unsubscriptions;
+     * may be called before start.
+     * With the interest-driven simulation, a stock that is no longer of
+     * interest is parked when its next update is due; a parked one is
+     * brought up to date and scheduled again at once, before the snapshot
+     * that is surely going to be requested.
+     */
+    public void setInterested(String itemName, boolean interested) {
+        MyProducer producer = getProducer(itemName);
+        if (producer == null) {
+            return;
+        }
+        synchronized (producer) {
+            producer.interested = interested;
+            if (!interested || !producer.parked) {
+                return;
+            }
+            producer.parked = false;
+            parkedCount.decrementAndGet();
+            producer.catchUp(System.nanoTime());
+        }
+        scheduleGenerator(producer);
+    }
+
+    private MyProducer getProducer(String itemName) {
+        if (stockGenerators.isEmpty()) {
+            createProducers();
+        }
+        for (int i = 0; i < 30; i++) {
+            MyProducer myProducer = stockGenerators.get(i);
+            if (myProducer.itemName.equals(itemName)) {
+                return myProducer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Must be called while holding the lock of the producer.
+     */
+    private void park(MyProducer producer) {
+        //dueNanos is kept: the updates missed will be counted from there
+        producer.parked = true;
+        parkedCount.incrementAndGet();
+    }
+
     /**
      * Sets an internal listener for the update events.
      * Since now, the update events were ignored.
@@ -135,21 +343,32 @@ public class ExternalFeedSimulator {
     /**
      * Generates new values and sends a new update event at the time
      * the producer declared to do it.
+     * The times are open-loop: each one follows the previous due time,
+     * not the time the previous event was actually sent, so that a slow
+     * listener gets the events it delayed in a burst, as a real feed
+     * would send them, rather than a slower flow; the events carry their
+     * due time.
      */
-    private void scheduleGenerator(final MyProducer producer, long waitTime) {
+    private void scheduleGenerator(final MyProducer producer) {
+        long waitTime = Math.max(0, (producer.dueNanos - System.nanoTime()) / 1000000);
         dispatcher.schedule(new TimerTask() {
             public void run() {
-                long nextWaitTime;
                 synchronized (producer) {
+                    if (lazy && !producer.interested) {
+                        //no new timer until a new subscription
+                        park(producer);
+                        return;
+                    }
                     producer.computeNewValues();
+                    sentEvents++;
                     if (listener != null) {
-                        listener.onEvent(producer.itemName,
-                                         producer.getCurrentValues(false),
-                                         false);
+                        QuoteRecord quote = producer.getCurrentQuote(false);
+                        quote.time = startMillis + (producer.dueNanos - startNanos) / 1000000;
+                        listener.onEvent(producer.itemName, quote, false);
                     }
-                    nextWaitTime = producer.computeNextWaitTime();
+                    producer.dueNanos += producer.computeNextGap((producer.dueNanos - startNanos) / 1e9);
                 }
-                scheduleGenerator(producer, nextWaitTime);
+                scheduleGenerator(producer);
             }
         }, waitTime);
     }
@@ -161,13 +380,13 @@ public class ExternalFeedSimulator {
         for (int i = 0; i < 30; i++) {
             final MyProducer myProducer = (MyProducer) stockGenerators.get(i);
             if (myProducer.itemName.equals(itemName)) {
+                if (snapshotsPerSecond > 0) {
+                    enqueueSnapshot(myProducer);
+                    break;
+                }
                 dispatcher.schedule(new TimerTask() {
                     public void run() {
-                        synchronized (myProducer) {
-                            listener.onEvent(myProducer.itemName,
-                                             myProducer.getCurrentValues(true),
-                                             true);
-                        }
+                        sendSnapshot(myProducer);
                     }
                 }, 0);
                 break;
@@ -175,24 +394,89 @@ public class ExternalFeedSimulator {
         }
     }
 
+    private void sendSnapshot(MyProducer producer) {
+        synchronized (producer) {
+            listener.onEvent(producer.itemName,
+                             producer.getCurrentQuote(true),
+                             true);
+        }
+    }
+
+    private void enqueueSnapshot(MyProducer producer) {
+        synchronized (pendingSnapshots) {
+            //a stock already waiting is moved ahead, as it was just requested again
+            pendingSnapshots.remove(producer);
+            pendingSnapshots.addFirst(producer);
+            if (!replayScheduled) {
+                replayScheduled = true;
+                scheduleReplay(0);
+            }
+        }
+    }
+
+    /**
+     * Sends the next batch of pending snapshots, then leaves the dispatcher
+     * to the normal update events until the next batch is due.
+     */
+    private void scheduleReplay(long waitTime) {
+        dispatcher.schedule(new TimerTask() {
+            public void run() {
+                int rate = snapshotsPerSecond;
+                //small rates are spread on single events, high rates on 1ms batches
+                long interval = rate > 0 ? Math.max(1, 1000 / rate) : 1;
+                int batch = rate > 0 ? Math.max(1, (int) (rate * interval / 1000)) : Integer.MAX_VALUE;
+                for (int i = 0; i < batch; i++) {
+                    MyProducer producer;
+                    synchronized (pendingSnapshots) {
+                        producer = pendingSnapshots.poll();
+                        if (producer == null) {
+                            replayScheduled = false;
+                            return;
+                        }
+                    }
+                    sendSnapshot(producer);
+                }
+                synchronized (pendingSnapshots) {
+                    if (pendingSnapshots.isEmpty()) {
+                        replayScheduled = false;
+                        return;
+                    }
+                }
+                scheduleReplay(interval);
+            }
+        }, waitTime);
+    }
+
     /**
      * Manages the current state and generates update events
      * for a single stock.
+     * Package-private so that the benchmarks can drive it directly.
      */
-    private class MyProducer {
+    class MyProducer {
         private final String itemName;
+        private final int itemPos;
         private int open, ref, last, min, max, other;
         private double mean, stddev;
         private String stockName;
+        //when the next update is due (by System.nanoTime)
+        private long dueNanos;
+        //whether the stock is subscribed and, with the interest-driven
+        //simulation, whether its updates are suspended
+        private boolean interested = false;
+        private boolean parked = false;
+        //the prices and times, and the quantities of the snapshots, are drawn
+        //separately, so that the snapshot requests don't change the updates
+        private final Random random;
+        private final Random snapshotRandom;
 
         /**
          * Initializes stock data based on the already prepared values.
          */
         public MyProducer(String itemName, int itemPos) {
             this.itemName = itemName;
-            // all prices are converted in integer form to simplify the
-            // management; they will be converted back before being sent
-            // in the update events
+            this.itemPos = itemPos;
+            // all prices are converted in integer form (cents) to simplify
+            // the management; they travel in this form in the update events
             open = (int) Math.round(openprices[itemPos] * 100);
             ref = (int) Math.round(refprices[itemPos] * 100);
             min = (int) Math.ceil(minprices[itemPos] * 100);
@@ -201,18 +485,63 @@ public class ExternalFeedSimulator {
             last = open;
             mean = updateTimeMeans[itemPos];
             stddev = updateTimeStdDevs[itemPos];
+            if (seeded) {
+                random = new Random(seed * 31 + itemPos);
+                snapshotRandom = new Random(seed * 31 + itemPos + 30);
+            } else {
+                random = new Random();
+                snapshotRandom = new Random();
+            }
+        }
+
+        void writeState(DataOutput out) throws IOException {
+            out.writeInt(open);
+            out.writeInt(ref);
+            out.writeInt(last);
+            out.writeInt(min);
+            out.writeInt(max);
+            out.writeInt(other);
+        }
+
+        void readState(DataInput in) throws IOException {
+            open = in.readInt();
+            ref = in.readInt();
+            last = in.readInt();
+            min = in.readInt();
+            max = in.readInt();
+            other = in.readInt();
         }
 
         /**
-         * Decides, for ease of simulation, the time at which the next
-         * update for the stock will happen.
+         * Decides, through the LoadProfile, the time (in nanoseconds) until
+         * the next update for the stock, given when the current one is due.
          */
-        public long computeNextWaitTime() {
-            long millis;
-            do {
-                millis = (long) gaussian(mean, stddev);
-            } while (millis <= 0);
-            return millis;
+        public long computeNextGap(double seconds) {
+            return profile.nextGap(itemPos, 30, seconds, mean, stddev, speedup, random);
+        }
+
+        /**
+         * Brings a parked stock up to date: it gets as many price changes
+         * (drawn as Poisson arrivals) as the LoadProfile would have given
+         * it from its last due time to now, applied at once without
+         * events; then its next update is scheduled from now.
+         * The prices revert to the reference one: after MAX_CATCH_UP_UPDATES
+         * changes the walk has mostly forgotten where it started, so the
+         * longer absences are cut there, which bounds the cost (only the
+         * extremes, min and max, come out a bit narrower).
+         */
+        void catchUp(long nowNanos) {
+            if (nowNanos <= dueNanos) {
+                //not even the first update was missed
+                return;
+            }
+            double fromSeconds = (dueNanos - startNanos) / 1e9;
+            double toSeconds = (nowNanos - startNanos) / 1e9;
+            long updates = poisson(random, profile.expectedUpdates(itemPos, 30, fromSeconds, toSeconds, mean, speedup));
+            for (long i = Math.min(updates, MAX_CATCH_UP_UPDATES); i > 0; i--) {
+                computeNewValues();
+            }
+            dueNanos = nowNanos + computeNextGap(toSeconds);
         }
 
         /**
@@ -238,12 +567,12 @@ public class ExternalFeedSimulator {
             if (!goFarther) {
                 direction *= -1;
             }
-            int difference = uniform(0, jump) * direction;
+            int difference = uniform(random, 0, jump) * direction;
             int gap = ref / 250;
             int delta;
             if (gap > 0) {
                 do {
-                    delta = uniform(-gap, gap);
+                    delta = uniform(random, -gap, gap);
                 } while (delta == 0);
             } else {
                 delta = 1;
@@ -259,60 +588,73 @@ public class ExternalFeedSimulator {
         }
 
         /**
-         * Picks the stock field values and stores them in a <field->value>
-         * HashMap. If fullData is false, then only the fields whose value
-         * is just changed are considered (though this check is not strict).
+         * Picks the stock field values and stores them in a QuoteRecord.
+         * If fullData is false, then only the fields whose value is just
+         * changed are considered (though this check is not strict).
          */
-        public HashMap getCurrentValues(boolean fullData) {
-            final HashMap<String,String> event = new HashMap<String,String>();
-
-            String format = "HH:mm:ss";
-            SimpleDateFormat formatter = new SimpleDateFormat(format);
-            String time = formatter.format(new Date());
-            event.put("time", time);
-            addDecField("last_price", last, event);
-            if (other > last) {
-                addDecField("ask", other, event);
-                addDecField("bid", last, event);
-            } else {
-                addDecField("ask", last, event);
-                addDecField("bid", other, event);
-            }
-            int quantity;
-            quantity = uniform(1, 200) * 500;
-            event.put("bid_quantity", Integer.toString(quantity));
-            quantity = uniform(1, 200) * 500;
-            event.put("ask_quantity", Integer.toString(quantity));
+        public QuoteRecord getCurrentQuote(boolean fullData) {
+            final QuoteRecord quote = new QuoteRecord(itemPos);
+            Random quantities = fullData ? snapshotRandom : random;
+
+            quote.time = System.currentTimeMillis();
+            quote.add(QuoteRecord.TIME);
+            quote.lastPrice = last;
+            quote.add(QuoteRecord.LAST_PRICE);
+            quote.ask = Math.max(last, other);
+            quote.add(QuoteRecord.ASK);
+            quote.bid = Math.min(last, other);
+            quote.add(QuoteRecord.BID);
+            quote.bidQuantity = uniform(quantities, 1, 200) * 500;
+            quote.add(QuoteRecord.BID_QUANTITY);
+            quote.askQuantity = uniform(quantities, 1, 200) * 500;
+            quote.add(QuoteRecord.ASK_QUANTITY);
             double var = (last - ref) / (double) ref * 100;
-            addDecField("pct_change", (int) (var * 100), event);
+            quote.pctChange = (int) (var * 100);
+            quote.add(QuoteRecord.PCT_CHANGE);
             if ((last == min) || fullData) {
-                addDecField("min", min, event);
+                quote.min = min;
+                quote.add(QuoteRecord.MIN);
             }
             if ((last == max) || fullData) {
-                addDecField("max", max, event);
+                quote.max = max;
+                quote.add(QuoteRecord.MAX);
             }
             if (fullData) {
-                event.put("stock_name", stockName);
-                addDecField("ref_price", ref, event);
-                addDecField("open_price", open, event);
-                event.put("item_status","active");
+                quote.stockName = stockName;
+                quote.add(QuoteRecord.STOCK_NAME);
+                quote.refPrice = ref;
+                quote.add(QuoteRecord.REF_PRICE);
+                quote.openPrice = open;
+                quote.add(QuoteRecord.OPEN_PRICE);
+                quote.active = true;
+                quote.add(QuoteRecord.ITEM_STATUS);
             }
-            return event;
+            return quote;
         }
     }
 
-    private void addDecField(String fld, int val100, HashMap<String,String> target) {
-        double val = (((double) val100) / 100);
-        String buf = Double.toString(val);
-        target.put(fld, buf);
-    }
-
-    private double gaussian(double mean, double stddev) {
-        double base = random.nextGaussian();
-        return base * stddev + mean;
+    /**
+     * A Poisson distributed number with the given mean (approximated by a
+     * normal distribution for the large means).
+     */
+    private static long poisson(Random random, double mean) {
+        if (mean <= 0) {
+            return 0;
+        }
+        if (mean > 30) {
+            return Math.max(0, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+        }
+        double limit = Math.exp(-mean);
+        double product = random.nextDouble();
+        long count = 0;
+        while (product > limit) {
+            product *= random.nextDouble();
+            count++;
+        }
+        return count;
     }
 
-    private int uniform(int min, int max) {
+    private static int uniform(Random random, int min, int max) {
         int base = random.nextInt(max + 1 - min);
         return base + min;
     }
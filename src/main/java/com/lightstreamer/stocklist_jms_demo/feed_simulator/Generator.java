@@ -21,6 +21,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Properties;
 import java.util.Random;
@@ -33,11 +34,15 @@ import javax.naming.NamingException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import stocklist_jms_demo.common.Activities;
 import stocklist_jms_demo.common.ConnectionLoop;
 import stocklist_jms_demo.common.ExtendedMessageListener;
+import stocklist_jms_demo.common.FeedEvents;
 import stocklist_jms_demo.common.FeedMessage;
+import stocklist_jms_demo.common.FieldSchema;
 import stocklist_jms_demo.common.HeartbeatMessage;
 import stocklist_jms_demo.common.JMSHandler;
+import stocklist_jms_demo.common.QuoteRecord;
 import stocklist_jms_demo.common.SubscribedItemAttributes;
 
 
@@ -75,15 +80,81 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
 
         logger.info("Stock generator is starting. Loading configuration...");
 
+        //how our background activities are run: platform, virtual or pooled threads
+        Activities.configure(getParam(params,"threadMode",false,Activities.PLATFORM));
+        ExternalFeed feed;
+        String replayJournal = params.getProperty("replayJournal");
+        if (replayJournal != null) {
+            //republish the updates recorded by an adapter, in place of the simulated ones
+            try {
+                feed = new JournalFeed(new File(replayJournal),
+                        getParam(params,"replaySpeedup",false,1),
+                        !"false".equalsIgnoreCase(getParam(params,"replayPreserveGaps",false,"true")),
+                        getParam(params,"replayDelayMillis",false,5000));
+            } catch (IOException e) {
+                logger.error("Can't read the journal " + replayJournal + ": " + e.getMessage());
+                return;
+            }
+        } else {
+            ExternalFeedSimulator simulator = new ExternalFeedSimulator(getParam(params,"simulatorSpeedup",false,1));
+            //limit the snapshots sent after a reset of the adapter (0 means no limit)
+            simulator.setSnapshotsPerSecond(getParam(params,"snapshotsPerSecond",false,0));
+            //only simulate the subscribed stocks, bringing the others up to date when subscribed
+            simulator.setLazy("true".equalsIgnoreCase(getParam(params,"lazySimulation",false,"false")));
+            //when the stocks are updated and, for repeatable runs, the seed of the random values
+            try {
+                simulator.setLoadProfile(LoadProfile.fromProperties(params));
+                String seed = params.getProperty("simulatorSeed");
+                if (seed != null) {
+                    simulator.setSeed(Long.parseLong(seed.trim()));
+                }
+            } catch (IllegalArgumentException e) {
+                //NumberFormatException included
+                logger.error("Invalid load profile: " + e.getMessage());
+                return;
+            }
+            feed = simulator;
+        }
+        //where our state is saved, to resume it on a quick restart (if anywhere)
+        GeneratorCheckpoint checkpoint = null;
+        String checkpointFile = params.getProperty("checkpointFile");
+        if (checkpointFile != null && replayJournal == null) {
+            checkpoint = new GeneratorCheckpoint(new File(checkpointFile),
+                    getParam(params,"checkpointMillis",false,1000),
+                    getParam(params,"checkpointMaxAgeMillis",false,10000));
+        }
+
         //create our Generator class passing read parameters.
-        new Generator(getParam(params,"jmsUrl",true,null),
+        final Generator generator = new Generator(getParam(params,"jmsUrl",true,null),
+                      params.getProperty("standbyJmsUrl"),
                       getParam(params,"initialContextFactory",true,null),
                       getParam(params,"topicConnectionFactory",true,null),
                       getParam(params,"queueConnectionFactory",true,null),
                       getParam(params,"topicName",true,null),
                       getParam(params,"queueName",true,null),
                       getParam(params,"msgPoolSize",false,15),
-                      getParam(params,"recoveryPauseMillis",false,2000));
+                      getParam(params,"recoveryPauseMillis",false,2000),
+                      feed,
+                      checkpoint);
+        //compress the messages that would be larger than this (0 means never)
+        generator.setCompressionThreshold(getParam(params,"compressionThreshold",false,0));
+        //quotes are only worth something while fresh: by default they are not persisted,
+        //and they expire in the broker after timeToLiveMillis (0 means never)
+        generator.setDeliveryOptions("true".equalsIgnoreCase(getParam(params,"persistentDelivery",false,"false")),
+                getParam(params,"timeToLiveMillis",false,0));
+        //the heartbeats can travel on a topic of their own, not to queue behind the updates
+        String heartbeatTopic = params.getProperty("heartbeatTopicName");
+        if (heartbeatTopic != null) {
+            generator.setHeartbeatTopicName(heartbeatTopic);
+        }
+
+        //stop our activities cleanly on exit, with a last checkpoint
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                generator.saveCheckpoint();
+                Activities.shutdown();
+            }
+        });
 
         logger.info("Generator ready.");
     }
@@ -92,7 +163,14 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
      * This object handles comunications with JMS.
      * Hides the use of Session, Connections, Publishers etc..
      */
-    private JMSHandler jmsHandler;
+    private volatile JMSHandler jmsHandler;
+
+    /**
+     * An optional handler towards a secondary JMS provider, kept connected
+     * (with its TopicPublisher but without any QueueReceiver) while the
+     * primary one is in use. Swapped with jmsHandler on failover.
+     */
+    private volatile JMSHandler standbyHandler;
 
     /**
      * This Map contains info about the subscribed items.
@@ -100,9 +178,10 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
     private HashMap<String,SubscribedItemAttributes> subscribedItems = new HashMap<String,SubscribedItemAttributes>();
 
     /**
-     * This is the Simulator of the classic StockListDemo.
+     * This is the Simulator of the classic StockListDemo (or the replay
+     * of a journal).
      */
-    private ExternalFeedSimulator myFeed;
+    private ExternalFeed myFeed;
 
     private int msgPoolSize;
     private int recoveryPause;
@@ -117,10 +196,59 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
      */
     private int random = -1;
 
+    /**
+     * The minimum time between two updates of the same item, as requested
+     * by the adapter when it can't keep up; 0 means no conflation.
+     * In between, the values are merged and only the latest ones sent.
+     */
+    private volatile long conflationMillis = 0;
+
+    /**
+     * The FieldSchema version agreed with the adapter, used to send field
+     * ids in place of the field names; NONE until the adapter asks for it.
+     */
+    private volatile int schemaVersion = FieldSchema.NONE;
+
+    /**
+     * Where our state is saved (null if nowhere) and the items restored
+     * from it, whose snapshots are due once connected.
+     */
+    private final GeneratorCheckpoint checkpoint;
+    private ArrayList<String> resumedItems = null;
+
     public Generator(String providerURL, String initialContextFactory, String topicConnectionFactory, String queueConnectionFactory, String topic, String queue, int msgPoolSize, int recoveryPause) {
+        this(providerURL, initialContextFactory, topicConnectionFactory, queueConnectionFactory, topic, queue, msgPoolSize, recoveryPause, new ExternalFeedSimulator());
+    }
+
+    /**
+     * Uses the supplied (not yet started) feed, e.g. a sped up simulator.
+     */
+    public Generator(String providerURL, String initialContextFactory, String topicConnectionFactory, String queueConnectionFactory, String topic, String queue, int msgPoolSize, int recoveryPause, ExternalFeed feed) {
+        this(providerURL, null, initialContextFactory, topicConnectionFactory, queueConnectionFactory, topic, queue, msgPoolSize, recoveryPause, feed);
+    }
+
+    /**
+     * Also keeps a standby connection towards a secondary provider
+     * (if standbyProviderURL is not null), to switch to on failure.
+     */
+    public Generator(String providerURL, String standbyProviderURL, String initialContextFactory, String topicConnectionFactory, String queueConnectionFactory, String topic, String queue, int msgPoolSize, int recoveryPause, ExternalFeed feed) {
+        this(providerURL, standbyProviderURL, initialContextFactory, topicConnectionFactory, queueConnectionFactory, topic, queue, msgPoolSize, recoveryPause, feed, null);
+    }
+
+    /**
+     * Also saves its state through checkpoint (if not null) and, if a
+     * recent one is there, resumes it: same life, same subscriptions,
+     * same prices. Only the state of an ExternalFeedSimulator can be
+     * saved.
+     */
+    public Generator(String providerURL, String standbyProviderURL, String initialContextFactory, String topicConnectionFactory, String queueConnectionFactory, String topic, String queue, int msgPoolSize, int recoveryPause, ExternalFeed feed, GeneratorCheckpoint checkpoint) {
         this.msgPoolSize = msgPoolSize;
         this.recoveryPause = recoveryPause;
+        this.checkpoint = feed instanceof ExternalFeedSimulator ? checkpoint : null;
 
+        if (this.checkpoint != null) {
+            resume((ExternalFeedSimulator) feed);
+        }
         while (random == -1) {
             //-1 is a reserved value on the adapter
             random = randomGen.nextInt(1000);
@@ -128,23 +256,146 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
 
         //instantiate a JMSHandler
         jmsHandler = new JMSHandler(logger,initialContextFactory, providerURL,queueConnectionFactory, queue, topicConnectionFactory, topic);
-        //This Generator will be the JMS listener
-        jmsHandler.setListener(this);
+        if (standbyProviderURL == null) {
+            //This Generator will be the JMS listener
+            jmsHandler.setListener(this);
+        } else {
+            logger.info("Standby JMS provider: " + standbyProviderURL);
+            standbyHandler = new JMSHandler(logger,initialContextFactory, standbyProviderURL,queueConnectionFactory, queue, topicConnectionFactory, topic);
+            //each handler gets its own listener, so that we know which provider failed
+            jmsHandler.setListener(new ProviderListener(jmsHandler));
+            standbyHandler.setListener(new ProviderListener(standbyHandler));
+        }
 
         //instantiate and start the simulator. This is the object that "produce" data
-        myFeed = new ExternalFeedSimulator();
+        myFeed = feed;
+        if (resumedItems != null) {
+            for (String itemName : resumedItems) {
+                myFeed.setInterested(itemName, true);
+            }
+        }
         myFeed.start();
         //This Generator will be the listener
         myFeed.setFeedListener(this);
 
         //start the loop that tries to connect to JMS
-        new ConnectionLoopTPQR(jmsHandler, recoveryPause, logger).start();
+        Activities.start(new ConnectionLoopTPQR(jmsHandler, false));
+        if (standbyHandler != null) {
+            //this one just prepares the standby connections
+            Activities.start(new ConnectionLoopTPQR(standbyHandler, true));
+        }
+
+        Activities.start(new HeartbeatThread());
 
-        new HeartbeatThread().start();
+        Activities.start(new ConflationThread());
+
+        if (this.checkpoint != null) {
+            Activities.start(new CheckpointThread());
+        }
 
         logger.debug("Generator ready");
     }
 
+    private void resume(ExternalFeedSimulator feed) {
+        try {
+            if (!checkpoint.restore(feed)) {
+                return;
+            }
+        } catch (IOException e) {
+            logger.warn("Can't resume from " + checkpoint.getFile() + ": " + e.getMessage());
+            return;
+        }
+        random = checkpoint.random;
+        schemaVersion = FieldSchema.negotiate(checkpoint.schemaVersion);
+        conflationMillis = checkpoint.conflationMillis;
+        resumedItems = new ArrayList<String>();
+        for (String[] subscription : checkpoint.subscriptions) {
+            //the sequence numbers start over with the snapshots, which tells the adapter
+            //to forget the numbers of our previous run
+            subscribedItems.put(subscription[0], new SubscribedItemAttributes(subscription[0], subscription[1]));
+            resumedItems.add(subscription[0]);
+        }
+        logger.info("Resuming life " + random + " with " + resumedItems.size() + " subscribed items");
+    }
+
+    /**
+     * Asks the feed for the snapshots of the resumed items, now that they
+     * can be published.
+     */
+    private void resumeItems() {
+        ArrayList<String> items;
+        synchronized (subscribedItems) {
+            items = resumedItems;
+            resumedItems = null;
+        }
+        if (items == null) {
+            return;
+        }
+        for (String itemName : items) {
+            myFeed.sendCurrentValues(itemName);
+        }
+    }
+
+    /**
+     * Saves our state now, if a checkpoint was configured.
+     */
+    public void saveCheckpoint() {
+        if (checkpoint == null) {
+            return;
+        }
+        ArrayList<String[]> subscriptions = new ArrayList<String[]>();
+        synchronized (subscribedItems) {
+            for (SubscribedItemAttributes sia : subscribedItems.values()) {
+                subscriptions.add(new String[] { sia.itemName, sia.handleId });
+            }
+        }
+        //the periodic saves and the one on exit must not overlap
+        synchronized (checkpoint) {
+            try {
+                checkpoint.save(random, schemaVersion, conflationMillis, subscriptions, (ExternalFeedSimulator) myFeed);
+            } catch (IOException e) {
+                logger.error("Can't write the checkpoint " + checkpoint.getFile() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Published objects whose serialized form is at least threshold bytes
+     * long are compressed; 0 disables the compression.
+     */
+    public void setCompressionThreshold(int threshold) {
+        jmsHandler.setCompressionThreshold(threshold);
+        JMSHandler standby = standbyHandler;
+        if (standby != null) {
+            standby.setCompressionThreshold(threshold);
+        }
+    }
+
+    /**
+     * Sets how our updates and heartbeats are delivered (see
+     * JMSHandler.setDeliveryOptions).
+     */
+    public void setDeliveryOptions(boolean persistent, long timeToLiveMillis) {
+        jmsHandler.setDeliveryOptions(persistent, timeToLiveMillis);
+        JMSHandler standby = standbyHandler;
+        if (standby != null) {
+            standby.setDeliveryOptions(persistent, timeToLiveMillis);
+        }
+    }
+
+    /**
+     * Publishes the heartbeats on their own topic (see
+     * JMSHandler.setPriorityTopic), which the Adapter must listen to as
+     * well; null to publish them along with the updates.
+     */
+    public void setHeartbeatTopicName(String topicName) {
+        jmsHandler.setPriorityTopic(topicName, null);
+        JMSHandler standby = standbyHandler;
+        if (standby != null) {
+            standby.setPriorityTopic(topicName, null);
+        }
+    }
+
     /////// MessageListener
 
     private static final String messageNoComp = "Message received was not compatible with this process. Maybe someone else sending messages? ";
@@ -163,6 +414,9 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
             TextMessage textMessage = (TextMessage) message;
             feedMsg = textMessage.getText();
             logger.debug("Message:TextMessage received: " + feedMsg);
+            if (FeedEvents.CONTROL_MESSAGE.isEnabled()) {
+                FeedEvents.CONTROL_MESSAGE.emit(feedMsg, "received");
+            }
         } catch (ClassCastException cce) {
             //if message isn't a TextMessage then this update is not "correct"
             logger.warn(messageNoComp + "(ClassCastException)");
@@ -178,7 +432,16 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
             logger.debug("Recived message: " + feedMsg);
             if (feedMsg.equals("reset")) {
                 reset();
-            } if (feedMsg.indexOf("subscribe") == 0) {
+                return;
+            } else if (feedMsg.indexOf("throttle") == 0) {
+                //this is a flow control message
+                setConflation(feedMsg.substring(8));
+                return;
+            } else if (feedMsg.indexOf("schema") == 0) {
+                //the adapter tells us the latest field schema it knows
+                setSchema(feedMsg.substring(6));
+                return;
+            } else if (feedMsg.indexOf("subscribe") == 0) {
                 //this is a subscribe message
                 itemName = feedMsg.substring(9,feedMsg.indexOf("_"));
                 handleId = feedMsg.substring(feedMsg.indexOf("_")+1);
@@ -198,9 +461,40 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
     }
 
     private void reset() {
+        HashMap<String,SubscribedItemAttributes> oldItems;
         synchronized (subscribedItems) {
+            oldItems = subscribedItems;
             subscribedItems = new HashMap<String,SubscribedItemAttributes>();
         }
+        //not under the lock: the feed takes it, through onEvent, from within its own
+        for (String itemName : oldItems.keySet()) {
+            myFeed.setInterested(itemName, false);
+        }
+        //a new adapter life: it will tell us if it needs conflation
+        conflationMillis = 0;
+        //and if it knows the field ids
+        schemaVersion = FieldSchema.NONE;
+    }
+
+    private void setSchema(String version) {
+        try {
+            schemaVersion = FieldSchema.negotiate(Integer.parseInt(version));
+            logger.info("Using field schema version " + schemaVersion + " (adapter knows up to " + version + ")");
+        } catch (NumberFormatException nfe) {
+            logger.warn(messageNoComp + "Message: schema" + version);
+        }
+    }
+
+    private void setConflation(String millis) {
+        try {
+            long newConflation = Math.max(0, Long.parseLong(millis));
+            if (newConflation != conflationMillis) {
+                logger.info("Conflation interval set to " + newConflation + "ms");
+            }
+            conflationMillis = newConflation;
+        } catch (NumberFormatException nfe) {
+            logger.warn(messageNoComp + "Message: throttle" + millis);
+        }
     }
 
     private void subscribe(String itemName, String handleId) {
@@ -230,6 +524,9 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
             SubscribedItemAttributes attr = new SubscribedItemAttributes(itemName,handleId);
             subscribedItems.put(itemName, attr);
         }
+         // a feed that stopped producing values for this item must
+         // resume them (and bring them up to date) before the snapshot
+         myFeed.setInterested(itemName, true);
          // now we ask the feed for the snapshot; our feed will insert
          // an event with snapshot information into the normal updates flow
          myFeed.sendCurrentValues(itemName);
@@ -239,6 +536,7 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
 
     private void unsubscribe(String itemName, String handleId) {
         logger.debug("Unsubscribing " + itemName + "(" + handleId + ")");
+        boolean removed = true;
         synchronized (subscribedItems) {
             if (!subscribedItems.containsKey(itemName)) {
                 //here checks are useless, just try to get the item from the
@@ -248,27 +546,84 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
             }
 
             SubscribedItemAttributes sia = subscribedItems.get(itemName);
-            if (sia.handleId == handleId) {
+            if (sia.handleId.equals(handleId)) {
                 //remove the item from the subscribedItems map.
                 subscribedItems.remove(itemName);
             } else {
                 logger.warn(unsubUnexHandle + itemName + "(" + handleId + ")");
+                removed = false;
             }
 
         }
+        if (removed) {
+            //not under the lock: the feed takes it, through onEvent, from within its own
+            myFeed.setInterested(itemName, false);
+        }
         logger.info("Unsubscribed " + itemName + "(" + handleId + ")");
     }
 
     public void onException(JMSException arg0) {
+        onException(jmsHandler, arg0);
+    }
+
+    private synchronized void onException(JMSHandler source, JMSException arg0) {
+        if (source == standbyHandler) {
+            //nothing changes for the adapters, we just have to prepare the standby again
+            logger.warn("Standby JMS provider lost");
+            Activities.start(new ConnectionLoopTPQR(source, true));
+            return;
+        } else if (source != jmsHandler) {
+            //an old notification
+            return;
+        }
+
+        if (!jmsHandler.isTopicReady() && failover()) {
+            //the subscriptions are kept and the heartbeats go on with the same random,
+            //so adapters that switch to the same provider don't see any interruption;
+            //the failed provider becomes the standby one
+            Activities.start(new ConnectionLoopTPQR(standbyHandler, true));
+            return;
+        }
+
         //we have lost the connection to JMS
-        synchronized (subscribedItems) {
-            //empty the subscribedItems map; this way, once reconnected
-            //we are able to re-send snapshots
-            subscribedItems = new HashMap<String, SubscribedItemAttributes>();
+        if (!jmsHandler.isTopicReady()) {
+            synchronized (subscribedItems) {
+                //empty the subscribedItems map; this way, once reconnected
+                //we are able to re-send snapshots
+                subscribedItems = new HashMap<String, SubscribedItemAttributes>();
+            }
         }
+        //else only the queue was lost: the adapter still gets our updates and heartbeats,
+        //so we keep on serving the current subscriptions
         //and loop to try to reconnect
-        new ConnectionLoopTPQR(jmsHandler, recoveryPause, logger).start();
+        Activities.start(new ConnectionLoopTPQR(jmsHandler, false));
+
+    }
 
+    /**
+     * Switches to the standby provider, if it is ready.
+     */
+    private boolean failover() {
+        JMSHandler failed = jmsHandler;
+        JMSHandler standby = standbyHandler;
+        if (standby == null || !standby.isTopicReady() || !standby.isQueueReady()) {
+            return false;
+        }
+        try {
+            //the sessions and the publisher are already there: this just
+            //creates the receiver and starts the connection
+            standby.initQueueReceiver();
+        } catch (Exception e) {
+            logger.error("Failover to the standby JMS provider failed: " + e.getMessage());
+            return false;
+        }
+        jmsHandler = standby;
+        standbyHandler = failed;
+        //close what survived on the failed provider (i.e. its QueueReceiver),
+        //it will be prepared again as standby
+        failed.reset();
+        logger.info("Switched to the standby JMS provider");
+        return true;
     }
 
     /////////////// ExternalFeedListener
@@ -276,7 +631,7 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
     /**
      * Receive update from the simulator.
      */
-    public void onEvent(String itemName, HashMap currentValues, boolean isSnapshot) {
+    public void onEvent(String itemName, QuoteRecord quote, boolean isSnapshot) {
         SubscribedItemAttributes sia = null;
         synchronized (subscribedItems) {
             if (!subscribedItems.containsKey(itemName)) {
@@ -307,15 +662,54 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
             }
         }
 
-        //prepare the object to send through JMS
-        FeedMessage toSend = new FeedMessage(itemName,currentValues,isSnapshot,sia.handleId,this.random);
+        //the sequence number is stamped and the message published under the item's lock,
+        //so that the adapter receives the updates of each handle in sequence
+        synchronized (sia) {
+            long conflation = conflationMillis;
+            long now = System.currentTimeMillis();
+            if (isSnapshot) {
+                //the snapshot carries everything held back
+                sia.pendingQuote = null;
+            } else if (conflation > 0 && now - sia.lastPublishTime < conflation) {
+                //too early: keep the latest values, the ConflationThread will send them
+                if (sia.pendingQuote == null) {
+                    sia.pendingQuote = quote.copy();
+                } else {
+                    sia.pendingQuote.mergeFrom(quote);
+                }
+                return;
+            } else if (sia.pendingQuote != null) {
+                //older values not overwritten by this update are still to be sent
+                sia.pendingQuote.mergeFrom(quote);
+                quote = sia.pendingQuote;
+                sia.pendingQuote = null;
+            }
+            sia.lastPublishTime = now;
+            publish(sia, quote, isSnapshot);
+        }
+
+    }
+
+    /**
+     * Must be called while holding the lock of the item.
+     */
+    private void publish(SubscribedItemAttributes sia, QuoteRecord quote, boolean isSnapshot) {
+        //prepare the object to send through JMS: the record itself,
+        //or the strings if the adapter doesn't know the records
+        FeedMessage toSend;
+        int version = schemaVersion;
+        if (version >= FieldSchema.QUOTES) {
+            toSend = new FeedMessage(sia.itemName,quote,isSnapshot,sia.handleId,this.random,++sia.lastSeq);
+        } else {
+            toSend = new FeedMessage(sia.itemName,quote.toMap(),isSnapshot,sia.handleId,this.random,++sia.lastSeq);
+            toSend.schemaVersion = version;
+        }
         try {
             //publish the update to JMS
             jmsHandler.publishMessage(toSend);
         } catch (JMSException je) {
             logger.error("Unable to send message - JMSException:" + je.getMessage());
         }
-
     }
 
     ///////////// Utils
@@ -326,7 +720,8 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
     private static String noLog = "Log configuration fails. Check you configuration files\nProcess exits";
     private static String isNaN = " must be a number but it isn't. Using default.";
 
-    private static Logger logger;
+    //also set here, so that a Generator can be embedded (e.g. by the benchmarks) without going through main
+    private static Logger logger = LogManager.getLogger("SLGenerator");
 
     private static int getParam(Properties params, String toGet, boolean required, int def) {
         int resInt;
@@ -401,23 +796,123 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
 
     private class ConnectionLoopTPQR extends ConnectionLoop {
 
-        public ConnectionLoopTPQR(JMSHandler jmsHandler, int recoveryPause, Logger logger) {
-            super(jmsHandler, recoveryPause, logger);
+        private JMSHandler handler;
+        private boolean standby;
+
+        public ConnectionLoopTPQR(JMSHandler handler, boolean standby) {
+            super(handler, recoveryPause, logger);
+            this.handler = handler;
+            this.standby = standby;
         }
 
         protected void onConnectionCall() {
-            //nothing to do
+            if (standby) {
+                logger.info("Standby JMS provider ready");
+            } else {
+                resumeItems();
+            }
             return;
         }
 
         protected void connectionCall() throws JMSException, NamingException {
             //initialize TopicPublisher and QueueReceiver
-            jmsHandler.initTopicPublisher(msgPoolSize);
-            jmsHandler.initQueueReceiver();
+            handler.initTopicPublisher(msgPoolSize);
+            if (!standby) {
+                //a QueueReceiver on the standby provider would consume
+                //requests not meant for us
+                handler.initQueueReceiver();
+            }
+        }
+
+    }
+
+    /**
+     * Forwards the events of one of the two handlers, when a standby
+     * provider is configured.
+     */
+    private class ProviderListener implements ExtendedMessageListener {
+
+        private JMSHandler handler;
+
+        public ProviderListener(JMSHandler handler) {
+            this.handler = handler;
+        }
+
+        public void onMessage(Message message) {
+            Generator.this.onMessage(message);
+        }
+
+        public void onException(JMSException je) {
+            Generator.this.onException(handler, je);
         }
 
     }
 
+    ////////////////////// ConflationThread
+
+    /**
+     * Sends the values held back by the conflation, once their item's
+     * interval has elapsed (or at once, if conflation was turned off).
+     */
+    private class ConflationThread extends Thread {
+
+        public ConflationThread() {
+            setDaemon(true);
+        }
+
+        public void run() {
+            ArrayList<SubscribedItemAttributes> items = new ArrayList<SubscribedItemAttributes>();
+            while (true) {
+                long conflation = conflationMillis;
+                try {
+                    //check a few times per interval, so that no update is late by more than a fraction of it
+                    Thread.sleep(conflation > 0 ? Math.max(10, conflation / 4) : 100);
+                } catch (InterruptedException e) {
+                    //shutting down
+                    return;
+                }
+
+                items.clear();
+                synchronized (subscribedItems) {
+                    items.addAll(subscribedItems.values());
+                }
+                long now = System.currentTimeMillis();
+                conflation = conflationMillis;
+                for (SubscribedItemAttributes sia : items) {
+                    synchronized (sia) {
+                        if (sia.pendingQuote != null && now - sia.lastPublishTime >= conflation) {
+                            QuoteRecord quote = sia.pendingQuote;
+                            sia.pendingQuote = null;
+                            sia.lastPublishTime = now;
+                            publish(sia, quote, false);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    ////////////////////// CheckpointThread
+
+    private class CheckpointThread extends Thread {
+
+        public CheckpointThread() {
+            setDaemon(true);
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    Thread.sleep(checkpoint.getIntervalMillis());
+                } catch (InterruptedException e) {
+                    //shutting down
+                    return;
+                }
+                saveCheckpoint();
+            }
+        }
+    }
+
     ////////////////////// HeartbeatThread
 
     private class HeartbeatThread extends Thread {
@@ -428,7 +923,10 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
             while (true) {
                 try {
                     //publish the update to JMS
-                    jmsHandler.publishMessage(fixedMessage);
+                    jmsHandler.publishPriorityMessage(fixedMessage);
+                    if (FeedEvents.HEARTBEAT.isEnabled()) {
+                        FeedEvents.HEARTBEAT.emit(fixedMessage.random, "sent");
+                    }
                 } catch (JMSException je) {
                     logger.error("Unable to send message - JMSException:" + je.getMessage());
                 }
@@ -437,6 +935,8 @@ public class Generator implements ExtendedMessageListener, ExternalFeedListener
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException e) {
+                    //shutting down
+                    return;
                 }
             }
         }
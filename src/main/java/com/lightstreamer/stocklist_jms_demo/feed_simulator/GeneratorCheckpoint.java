@@ -0,0 +1,152 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.feed_simulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * The on-disk image of a Generator: its life id, what it agreed with the
+ * adapter, the subscribed items and the prices of the simulator.
+ * A Generator restarted from a recent enough image goes on with the same
+ * life and the same prices, so that the adapters, which only look at the
+ * heartbeats, don't notice the restart.
+ * The image is rewritten as a whole (through a temporary file and a
+ * rename) and ends with a CRC32, so a half-written one is never taken.
+ */
+public class GeneratorCheckpoint {
+
+    private static final int MAGIC = 0x47434B31; //"GCK1"
+
+    private final File file;
+    private final int intervalMillis;
+    private final long maxAgeMillis;
+
+    //as read by restore
+    int random;
+    int schemaVersion;
+    long conflationMillis;
+    //item name and handle id of each subscription
+    final ArrayList<String[]> subscriptions = new ArrayList<String[]>();
+
+    /**
+     * The image is written every intervalMillis; an image older than
+     * maxAgeMillis is not restored, as the adapters have given up on that
+     * life anyway.
+     */
+    public GeneratorCheckpoint(File file, int intervalMillis, long maxAgeMillis) {
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Writes a new image.
+     */
+    void save(int random, int schemaVersion, long conflationMillis, ArrayList<String[]> subscriptions, ExternalFeedSimulator feed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(random);
+        out.writeInt(schemaVersion);
+        out.writeLong(conflationMillis);
+        out.writeInt(subscriptions.size());
+        for (String[] subscription : subscriptions) {
+            out.writeUTF(subscription[0]);
+            out.writeUTF(subscription[1]);
+        }
+        feed.writeState(out);
+        out.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the image, if there is a valid and recent one, restoring the
+     * simulator prices (the simulator must not be started yet) and filling
+     * the fields; returns false, leaving everything untouched, otherwise.
+     */
+    boolean restore(ExternalFeedSimulator feed) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        byte[] image = Files.readAllBytes(file.toPath());
+        if (image.length < 8) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(image, 0, image.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(image));
+        in.skipBytes(image.length - 8);
+        if (in.readLong() != crc.getValue()) {
+            throw new IOException("corrupted checkpoint");
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(image, 0, image.length - 8));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a checkpoint");
+        }
+        long age = System.currentTimeMillis() - in.readLong();
+        if (age > maxAgeMillis) {
+            return false;
+        }
+        random = in.readInt();
+        schemaVersion = in.readInt();
+        conflationMillis = in.readLong();
+        int count = in.readInt();
+        subscriptions.clear();
+        for (int i = 0; i < count; i++) {
+            subscriptions.add(new String[] { in.readUTF(), in.readUTF() });
+        }
+        //last, as it changes the simulator
+        feed.readState(in);
+        return true;
+    }
+
+}
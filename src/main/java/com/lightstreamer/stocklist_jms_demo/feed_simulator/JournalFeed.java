@@ -0,0 +1,209 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.feed_simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import stocklist_jms_demo.common.Activities;
+import stocklist_jms_demo.common.FeedJournal;
+import stocklist_jms_demo.common.FeedJournalReader;
+import stocklist_jms_demo.common.FeedMessage;
+import stocklist_jms_demo.common.QuoteRecord;
+
+/**
+ * Replays the updates recorded by an adapter in a FeedJournal, in place
+ * of the simulator: the Generator then republishes them to its adapter
+ * as if they came from the original feed.
+ * The updates are sent with the original gaps between them, divided by
+ * the speed-up (0 means as fast as possible), or, if the gaps are not
+ * preserved, evenly spaced at the same average rate (the same volume
+ * without the bursts).
+ * The recorded heartbeats and the updates not carrying a QuoteRecord
+ * (i.e. received with an older field schema) are skipped.
+ * The snapshots are made of the values replayed so far, or, for an item
+ * not reached yet, of its first snapshot in the journal.
+ */
+public class JournalFeed implements ExternalFeed {
+
+    private static Logger logger = LogManager.getLogger("SLGenerator");
+
+    private final File dir;
+    private final double speedup;
+    private final boolean preserveGaps;
+    private final long startDelayMillis;
+
+    //from the first reading
+    private long updates = 0;
+    private long firstNanos = -1;
+    private long lastNanos = -1;
+
+    /**
+     * The current complete values of each item; also the lock under which
+     * the events are sent, so that a snapshot never misses an update sent
+     * before it.
+     */
+    private final HashMap<String,QuoteRecord> currentValues = new HashMap<String,QuoteRecord>();
+
+    private volatile ExternalFeedListener listener;
+
+    /**
+     * Reads the journal in dir once, to know its time span and the initial
+     * values of the items; the replay begins startDelayMillis after start,
+     * to give the adapter the time to subscribe.
+     */
+    public JournalFeed(File dir, double speedup, boolean preserveGaps, long startDelayMillis) throws IOException {
+        this.dir = dir;
+        this.speedup = Math.max(0, speedup);
+        this.preserveGaps = preserveGaps;
+        this.startDelayMillis = startDelayMillis;
+
+        FeedJournalReader reader = new FeedJournalReader(dir);
+        try {
+            while (reader.next()) {
+                FeedMessage message = replayable(reader);
+                if (message == null) {
+                    continue;
+                }
+                if (firstNanos == -1) {
+                    firstNanos = reader.getArrivalNanos();
+                }
+                lastNanos = reader.getArrivalNanos();
+                updates++;
+                if (message.isSnapshot && !currentValues.containsKey(message.itemName)) {
+                    currentValues.put(message.itemName, message.quote);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        logger.info("Journal " + dir + ": " + updates + " updates over " + ((lastNanos - firstNanos) / 1000000) + "ms");
+    }
+
+    public void start() {
+        Activities.start(new ReplayThread());
+    }
+
+    public void setFeedListener(ExternalFeedListener listener) {
+        this.listener = listener;
+    }
+
+    public void sendCurrentValues(String itemName) {
+        synchronized (currentValues) {
+            QuoteRecord values = currentValues.get(itemName);
+            if (values == null) {
+                //never seen in the journal
+                values = new QuoteRecord(Integer.parseInt(itemName.substring(4)) - 1);
+                values.add(QuoteRecord.ITEM_STATUS);
+                values.active = false;
+                currentValues.put(itemName, values);
+            }
+            ExternalFeedListener current = listener;
+            if (current != null) {
+                current.onEvent(itemName, values.copy(), true);
+            }
+        }
+    }
+
+    public void setInterested(String itemName, boolean interested) {
+        //the whole journal is replayed anyway, to keep the original volume
+    }
+
+    private void replay(FeedMessage message) {
+        synchronized (currentValues) {
+            QuoteRecord values = currentValues.get(message.itemName);
+            if (message.isSnapshot || values == null) {
+                currentValues.put(message.itemName, message.quote.copy());
+            } else {
+                values.mergeFrom(message.quote);
+            }
+            ExternalFeedListener current = listener;
+            if (current != null) {
+                current.onEvent(message.itemName, message.quote, message.isSnapshot);
+            }
+        }
+    }
+
+    /**
+     * The current record, if it is an update to be replayed.
+     */
+    private static FeedMessage replayable(FeedJournalReader reader) {
+        if (reader.getType() != FeedJournal.FEED) {
+            return null;
+        }
+        FeedMessage message = (FeedMessage) reader.getPayload();
+        if (message.quote == null || message.itemName.length() == 0) {
+            return null;
+        }
+        return message;
+    }
+
+    /**
+     * Sends the updates of the journal at their (scaled) times.
+     */
+    private class ReplayThread extends Thread {
+
+        public void run() {
+            try {
+                Thread.sleep(startDelayMillis);
+                long start = System.nanoTime();
+                long sent = runReplay(start);
+                long elapsed = Math.max(1, (System.nanoTime() - start) / 1000000);
+                logger.info("Journal replay completed: " + sent + " updates in " + elapsed + "ms (" + (sent * 1000 / elapsed) + " updates/s)");
+            } catch (InterruptedException e) {
+                //shutting down
+            } catch (IOException e) {
+                logger.error("Journal replay failed: " + e.getMessage());
+            }
+        }
+
+        private long runReplay(long start) throws IOException, InterruptedException {
+            //the average gap, when the original ones are not preserved
+            double meanGap = updates > 1 ? (double) (lastNanos - firstNanos) / (updates - 1) : 0;
+            long sent = 0;
+            FeedJournalReader reader = new FeedJournalReader(dir);
+            try {
+                while (reader.next()) {
+                    FeedMessage message = replayable(reader);
+                    if (message == null) {
+                        continue;
+                    }
+                    if (speedup > 0) {
+                        double offset = preserveGaps ? reader.getArrivalNanos() - firstNanos : sent * meanGap;
+                        long wait = start + (long) (offset / speedup) - System.nanoTime();
+                        //the updates due within a millisecond go out together
+                        if (wait >= 1000000) {
+                            Thread.sleep(wait / 1000000);
+                        }
+                    }
+                    replay(message);
+                    sent++;
+                }
+            } finally {
+                reader.close();
+            }
+            return sent;
+        }
+
+    }
+
+}
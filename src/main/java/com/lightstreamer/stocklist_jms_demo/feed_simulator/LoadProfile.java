@@ -0,0 +1,249 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.feed_simulator;
+
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Decides when the simulated stocks are updated.
+ * The "classic" profile keeps the original per-stock timings (gaussian
+ * gaps with fixed means and deviations); the "rate" profile targets an
+ * aggregate rate of updates per second, split among the stocks with Zipf
+ * weights (item1 the hottest; exponent 0 means an even split), each stock
+ * updated at random (Poisson) times.
+ * The rate can change over time, counting from the start of the
+ * simulator: a linear ramp towards another rate, steps of a fixed
+ * increment (for step tests) and bursts, where the rate is multiplied by
+ * a factor for a while (e.g. a market open). The bursts also apply to the
+ * classic profile.
+ * The gaps are drawn from the Random passed in, so a seeded simulator
+ * always produces the same timings.
+ */
+public class LoadProfile {
+
+    public static final String CLASSIC = "classic";
+    public static final String RATE = "rate";
+
+    private static final int MAX_SLICES = 1000;
+
+    private final String type;
+    private final double targetRate;
+    private final double zipfExponent;
+
+    private double rampToRate = 0;
+    private double rampSeconds = 0;
+    private double stepRate = 0;
+    private double stepSeconds = 0;
+    //start, duration (both in seconds) and factor of each burst
+    private final ArrayList<double[]> bursts = new ArrayList<double[]>();
+
+    //the normalized Zipf weights, per number of stocks
+    private double[] weights = new double[0];
+
+    /**
+     * The original timings.
+     */
+    public LoadProfile() {
+        this(CLASSIC, 0, 0);
+    }
+
+    /**
+     * targetRate and zipfExponent only matter to the rate profile.
+     */
+    public LoadProfile(String type, double targetRate, double zipfExponent) {
+        if (!CLASSIC.equals(type) && !RATE.equals(type)) {
+            throw new IllegalArgumentException("Unknown load profile: " + type);
+        }
+        this.type = type;
+        this.targetRate = Math.max(0, targetRate);
+        this.zipfExponent = Math.max(0, zipfExponent);
+    }
+
+    /**
+     * Takes the profile from the configuration (see the README for the
+     * parameter names); the classic profile if none is configured.
+     */
+    public static LoadProfile fromProperties(Properties params) {
+        LoadProfile profile = new LoadProfile(params.getProperty("loadProfile", CLASSIC).trim(),
+                getDouble(params, "targetRate", 100), getDouble(params, "zipfExponent", 0));
+        profile.setRamp(getDouble(params, "rampToRate", 0), getDouble(params, "rampSeconds", 0));
+        profile.setSteps(getDouble(params, "stepRate", 0), getDouble(params, "stepSeconds", 0));
+        String bursts = params.getProperty("bursts");
+        if (bursts != null) {
+            //start:duration:factor, separated by semicolons
+            for (String burst : bursts.split(";")) {
+                if (burst.trim().length() == 0) {
+                    continue;
+                }
+                String[] parts = burst.split(":");
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("bursts must be a list of start:duration:factor, not " + burst);
+                }
+                profile.addBurst(parseDouble("bursts", parts[0]), parseDouble("bursts", parts[1]), parseDouble("bursts", parts[2]));
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Moves the target rate linearly to toRate in the first seconds, then
+     * keeps it there (rate profile only).
+     */
+    public void setRamp(double toRate, double seconds) {
+        this.rampToRate = Math.max(0, toRate);
+        this.rampSeconds = Math.max(0, seconds);
+    }
+
+    /**
+     * Adds increment to the target rate every seconds (rate profile only).
+     */
+    public void setSteps(double increment, double seconds) {
+        this.stepRate = increment;
+        this.stepSeconds = Math.max(0, seconds);
+    }
+
+    /**
+     * Multiplies the rates by factor from startSeconds for seconds.
+     */
+    public void addBurst(double startSeconds, double seconds, double factor) {
+        if (factor <= 0) {
+            throw new IllegalArgumentException("The factor of a burst must be positive");
+        }
+        bursts.add(new double[] { startSeconds, seconds, factor });
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * The aggregate rate targeted at the given time since the start (rate
+     * profile only), bursts included.
+     */
+    public double getRate(double seconds) {
+        double rate = targetRate;
+        if (rampSeconds > 0) {
+            rate += (rampToRate - targetRate) * Math.min(1, seconds / rampSeconds);
+        }
+        if (stepSeconds > 0) {
+            rate += stepRate * Math.floor(seconds / stepSeconds);
+        }
+        return Math.max(0, rate) * getBurstFactor(seconds);
+    }
+
+    public double getBurstFactor(double seconds) {
+        double factor = 1;
+        for (double[] burst : bursts) {
+            if (seconds >= burst[0] && seconds < burst[0] + burst[1]) {
+                factor *= burst[2];
+            }
+        }
+        return factor;
+    }
+
+    /**
+     * The nanoseconds until the next update of a stock, given when the
+     * current one is due (in seconds since the start); meanMillis and
+     * stdDevMillis are the classic timings of the stock and speedup
+     * divides them (the rate profile has its rates set explicitly).
+     */
+    public long nextGap(int itemPos, int items, double seconds, double meanMillis, double stdDevMillis, double speedup, Random random) {
+        double millis;
+        if (CLASSIC.equals(type)) {
+            do {
+                millis = random.nextGaussian() * stdDevMillis + meanMillis;
+            } while (millis <= 0);
+            millis /= getBurstFactor(seconds) * speedup;
+        } else {
+            double rate = getRate(seconds) * getWeight(itemPos, items);
+            if (rate <= 0) {
+                //paused for now: look again in a while
+                millis = 100;
+            } else {
+                //exponential gaps, i.e. Poisson arrivals
+                millis = -Math.log(1 - random.nextDouble()) / rate * 1000;
+            }
+        }
+        return Math.max(1, (long) (millis * 1000000));
+    }
+
+    /**
+     * The expected number of updates of a stock between two times (in
+     * seconds since the start), as nextGap would space them; used to
+     * bring up to date a stock that was not updated meanwhile.
+     */
+    public double expectedUpdates(int itemPos, int items, double fromSeconds, double toSeconds, double meanMillis, double speedup) {
+        if (toSeconds <= fromSeconds) {
+            return 0;
+        }
+        //the rates only change at the ramp, step and burst boundaries:
+        //slices of a second (or more, for very long spans) are enough
+        int slices = (int) Math.min(MAX_SLICES, Math.ceil(toSeconds - fromSeconds));
+        double slice = (toSeconds - fromSeconds) / slices;
+        double updates = 0;
+        for (int i = 0; i < slices; i++) {
+            double seconds = fromSeconds + (i + 0.5) * slice;
+            double rate;
+            if (CLASSIC.equals(type)) {
+                rate = 1000 / meanMillis * getBurstFactor(seconds) * speedup;
+            } else {
+                rate = getRate(seconds) * getWeight(itemPos, items);
+            }
+            updates += rate * slice;
+        }
+        return updates;
+    }
+
+    /**
+     * The share of the aggregate rate of a stock.
+     */
+    public synchronized double getWeight(int itemPos, int items) {
+        if (weights.length != items) {
+            double[] computed = new double[items];
+            double total = 0;
+            for (int i = 0; i < items; i++) {
+                computed[i] = 1 / Math.pow(i + 1, zipfExponent);
+                total += computed[i];
+            }
+            for (int i = 0; i < items; i++) {
+                computed[i] /= total;
+            }
+            weights = computed;
+        }
+        return weights[itemPos];
+    }
+
+    private static double getDouble(Properties params, String name, double def) {
+        String value = params.getProperty(name);
+        if (value == null) {
+            return def;
+        }
+        return parseDouble(name, value);
+    }
+
+    private static double parseDouble(String name, String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException(name + " must be a number but it isn't: " + value);
+        }
+    }
+
+}
@@ -0,0 +1,298 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+/**
+ * A JMS "broker" living inside the JVM, for running the Generator and
+ * the Adapter without any network (benchmarks, tests, load tests).
+ * Brokers are identified by the providerURL, in the form
+ *   invm://name[?latencyMillis=N&failureRate=F]
+ * where latencyMillis is a delay injected on each delivery and
+ * failureRate is the probability (0..1) that a send/publish fails
+ * with a JMSException. Both can also be changed at runtime.
+ * Messages are never serialized: consumers receive the very same
+ * payload objects that were sent (only the message envelope is copied).
+ */
+public class InVMBroker {
+
+    public static final String URL_PREFIX = "invm://";
+
+    private static final ConcurrentHashMap<String,InVMBroker> brokers = new ConcurrentHashMap<String,InVMBroker>();
+
+    /**
+     * Gets (or creates) the broker addressed by an invm:// URL.
+     * Options in the URL, if any, are applied to the broker.
+     */
+    public static InVMBroker forURL(String providerURL) {
+        String name = providerURL == null ? "" : providerURL;
+        if (name.startsWith(URL_PREFIX)) {
+            name = name.substring(URL_PREFIX.length());
+        }
+        String options = null;
+        int q = name.indexOf('?');
+        if (q > -1) {
+            options = name.substring(q + 1);
+            name = name.substring(0, q);
+        }
+        if (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+
+        InVMBroker broker = get(name);
+        if (options != null) {
+            broker.configure(options);
+        }
+        return broker;
+    }
+
+    /**
+     * Gets (or creates) a broker by name.
+     */
+    public static InVMBroker get(String name) {
+        InVMBroker broker = brokers.get(name);
+        if (broker == null) {
+            InVMBroker newBroker = new InVMBroker(name);
+            broker = brokers.putIfAbsent(name, newBroker);
+            if (broker == null) {
+                broker = newBroker;
+            }
+        }
+        return broker;
+    }
+
+    private final String name;
+
+    private final HashMap<String,InVMTopic> topics = new HashMap<String,InVMTopic>();
+    private final HashMap<String,InVMQueue> queues = new HashMap<String,InVMQueue>();
+    private final ArrayList<InVMConnection> connections = new ArrayList<InVMConnection>();
+
+    //objects bound through the JNDI context, shared by all the contexts of this broker
+    final ConcurrentHashMap<String,Object> bindings = new ConcurrentHashMap<String,Object>();
+
+    private volatile long latencyMillis = 0;
+    private volatile double failureRate = 0;
+    private volatile boolean available = true;
+
+    //statistics
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong delivered = new AtomicLong();
+    final AtomicLong expired = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong nextMessageId = new AtomicLong();
+
+    private volatile SendObserver sendObserver;
+
+    /**
+     * Taps every message sent through the broker, e.g. to timestamp it
+     * for latency measurements.
+     */
+    public interface SendObserver {
+
+        /**
+         * Called by the sending thread, before the message is routed.
+         */
+        void onSend(Destination destination, Message message);
+
+    }
+
+    private InVMBroker(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private void configure(String options) {
+        String[] pairs = options.split("&");
+        for (int i = 0; i < pairs.length; i++) {
+            int eq = pairs[i].indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String key = pairs[i].substring(0, eq);
+            String value = pairs[i].substring(eq + 1);
+            try {
+                if (key.equals("latencyMillis")) {
+                    setLatencyMillis(Long.parseLong(value));
+                } else if (key.equals("failureRate")) {
+                    setFailureRate(Double.parseDouble(value));
+                }
+            } catch (NumberFormatException nfe) {
+                //ignore the option
+            }
+        }
+    }
+
+    /**
+     * Sets the delay added to each delivery.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = Math.max(0, latencyMillis);
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    /**
+     * Sets the probability (0..1) that a send/publish fails.
+     */
+    public void setFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+    }
+
+    public double getFailureRate() {
+        return failureRate;
+    }
+
+    /**
+     * Simulates a broker crash: every open connection is closed and its
+     * ExceptionListener notified; new connections are refused until
+     * setAvailable(true) is called.
+     */
+    public void crash() {
+        setAvailable(false);
+        failConnections();
+    }
+
+    /**
+     * Simulates a network failure: every open connection is closed and
+     * its ExceptionListener notified, but new connections are accepted.
+     */
+    public void failConnections() {
+        InVMConnection[] toFail;
+        synchronized (connections) {
+            toFail = connections.toArray(new InVMConnection[connections.size()]);
+        }
+        for (int i = 0; i < toFail.length; i++) {
+            toFail[i].fail(new JMSException("InVM broker " + name + ": connection lost"));
+        }
+    }
+
+    public void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+    public void setSendObserver(SendObserver sendObserver) {
+        this.sendObserver = sendObserver;
+    }
+
+    SendObserver getSendObserver() {
+        return sendObserver;
+    }
+
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Gets (or creates) a topic.
+     */
+    public InVMTopic getTopic(String topicName) {
+        synchronized (topics) {
+            InVMTopic topic = topics.get(topicName);
+            if (topic == null) {
+                topic = new InVMTopic(this, topicName);
+                topics.put(topicName, topic);
+            }
+            return topic;
+        }
+    }
+
+    /**
+     * Gets (or creates) a queue.
+     */
+    public InVMQueue getQueue(String queueName) {
+        synchronized (queues) {
+            InVMQueue queue = queues.get(queueName);
+            if (queue == null) {
+                queue = new InVMQueue(this, queueName);
+                queues.put(queueName, queue);
+            }
+            return queue;
+        }
+    }
+
+    InVMConnection connect() throws JMSException {
+        if (!available) {
+            throw new JMSException("InVM broker " + name + " is not available");
+        }
+        InVMConnection connection = new InVMConnection(this);
+        synchronized (connections) {
+            connections.add(connection);
+        }
+        return connection;
+    }
+
+    void disconnected(InVMConnection connection) {
+        synchronized (connections) {
+            connections.remove(connection);
+        }
+    }
+
+    /**
+     * Called on each send/publish, before the delivery.
+     */
+    void checkSend() throws JMSException {
+        if (!available) {
+            throw new JMSException("InVM broker " + name + " is not available");
+        }
+        double rate = failureRate;
+        if (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate) {
+            failed.incrementAndGet();
+            throw new JMSException("InVM broker " + name + ": injected failure");
+        }
+    }
+
+    String nextMessageId() {
+        return "ID:invm-" + name + "-" + nextMessageId.incrementAndGet();
+    }
+
+    public String toString() {
+        return URL_PREFIX + name;
+    }
+
+}
@@ -0,0 +1,344 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.MessageEOFException;
+import javax.jms.MessageFormatException;
+import javax.jms.MessageNotReadableException;
+import javax.jms.MessageNotWriteableException;
+
+/**
+ * A BytesMessage: written by the sender, then delivered in read-only
+ * mode (the bytes written so far are shared by all the copies).
+ */
+class InVMBytesMessage extends InVMMessage implements BytesMessage {
+
+    //write mode
+    private ByteArrayOutputStream bytesOut;
+    private DataOutputStream out;
+
+    //read mode
+    private byte[] body;
+    private DataInputStream in;
+
+    public InVMBytesMessage() {
+        clearBody();
+    }
+
+    public void clearBody() {
+        bytesOut = new ByteArrayOutputStream();
+        out = new DataOutputStream(bytesOut);
+        body = null;
+        in = null;
+    }
+
+    /**
+     * Switches to read mode, from the start of the body.
+     */
+    public void reset() {
+        if (out != null) {
+            body = bytesOut.toByteArray();
+            bytesOut = null;
+            out = null;
+        }
+        in = new DataInputStream(new ByteArrayInputStream(body));
+    }
+
+    public long getBodyLength() throws JMSException {
+        checkReadable();
+        return body.length;
+    }
+
+    protected InVMMessage newInstance() {
+        return new InVMBytesMessage();
+    }
+
+    protected void copyTo(InVMMessage copy) {
+        super.copyTo(copy);
+        InVMBytesMessage bytesCopy = (InVMBytesMessage) copy;
+        bytesCopy.body = out != null ? bytesOut.toByteArray() : body;
+        bytesCopy.bytesOut = null;
+        bytesCopy.out = null;
+        bytesCopy.reset();
+    }
+
+    private void checkReadable() throws JMSException {
+        if (in == null) {
+            throw new MessageNotReadableException("Message is in write-only mode");
+        }
+    }
+
+    private void checkWriteable() throws JMSException {
+        if (out == null) {
+            throw new MessageNotWriteableException("Message is in read-only mode");
+        }
+    }
+
+    private static JMSException readError(IOException e) {
+        if (e instanceof EOFException) {
+            return new MessageEOFException("End of message body");
+        }
+        return new JMSException(e.getMessage());
+    }
+
+    ///////////////// Reading
+
+    public boolean readBoolean() throws JMSException {
+        checkReadable();
+        try {
+            return in.readBoolean();
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    public byte readByte() throws JMSException {
+        checkReadable();
+        try {
+            return in.readByte();
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    public int readUnsignedByte() throws JMSException {
+        checkReadable();
+        try {
+            return in.readUnsignedByte();
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    public short readShort() throws JMSException {
+        checkReadable();
+        try {
+            return in.readShort();
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    public int readUnsignedShort() throws JMSException {
+        checkReadable();
+        try {
+            return in.readUnsignedShort();
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    public char readChar() throws JMSException {
+        checkReadable();
+        try {
+            return in.readChar();
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    public int readInt() throws JMSException {
+        checkReadable();
+        try {
+            return in.readInt();
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    public long readLong() throws JMSException {
+        checkReadable();
+        try {
+            return in.readLong();
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    public float readFloat() throws JMSException {
+        checkReadable();
+        try {
+            return in.readFloat();
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    public double readDouble() throws JMSException {
+        checkReadable();
+        try {
+            return in.readDouble();
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    public String readUTF() throws JMSException {
+        checkReadable();
+        try {
+            return in.readUTF();
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    public int readBytes(byte[] value) throws JMSException {
+        return readBytes(value, value.length);
+    }
+
+    public int readBytes(byte[] value, int length) throws JMSException {
+        checkReadable();
+        try {
+            return in.read(value, 0, length);
+        } catch (IOException e) {
+            throw readError(e);
+        }
+    }
+
+    ///////////////// Writing
+
+    public void writeBoolean(boolean value) throws JMSException {
+        checkWriteable();
+        try {
+            out.writeBoolean(value);
+        } catch (IOException e) {
+            throw new JMSException(e.getMessage());
+        }
+    }
+
+    public void writeByte(byte value) throws JMSException {
+        checkWriteable();
+        try {
+            out.writeByte(value);
+        } catch (IOException e) {
+            throw new JMSException(e.getMessage());
+        }
+    }
+
+    public void writeShort(short value) throws JMSException {
+        checkWriteable();
+        try {
+            out.writeShort(value);
+        } catch (IOException e) {
+            throw new JMSException(e.getMessage());
+        }
+    }
+
+    public void writeChar(char value) throws JMSException {
+        checkWriteable();
+        try {
+            out.writeChar(value);
+        } catch (IOException e) {
+            throw new JMSException(e.getMessage());
+        }
+    }
+
+    public void writeInt(int value) throws JMSException {
+        checkWriteable();
+        try {
+            out.writeInt(value);
+        } catch (IOException e) {
+            throw new JMSException(e.getMessage());
+        }
+    }
+
+    public void writeLong(long value) throws JMSException {
+        checkWriteable();
+        try {
+            out.writeLong(value);
+        } catch (IOException e) {
+            throw new JMSException(e.getMessage());
+        }
+    }
+
+    public void writeFloat(float value) throws JMSException {
+        checkWriteable();
+        try {
+            out.writeFloat(value);
+        } catch (IOException e) {
+            throw new JMSException(e.getMessage());
+        }
+    }
+
+    public void writeDouble(double value) throws JMSException {
+        checkWriteable();
+        try {
+            out.writeDouble(value);
+        } catch (IOException e) {
+            throw new JMSException(e.getMessage());
+        }
+    }
+
+    public void writeUTF(String value) throws JMSException {
+        checkWriteable();
+        try {
+            out.writeUTF(value);
+        } catch (IOException e) {
+            throw new JMSException(e.getMessage());
+        }
+    }
+
+    public void writeBytes(byte[] value) throws JMSException {
+        writeBytes(value, 0, value.length);
+    }
+
+    public void writeBytes(byte[] value, int offset, int length) throws JMSException {
+        checkWriteable();
+        try {
+            out.write(value, offset, length);
+        } catch (IOException e) {
+            throw new JMSException(e.getMessage());
+        }
+    }
+
+    public void writeObject(Object value) throws JMSException {
+        if (value instanceof Boolean) {
+            writeBoolean((Boolean) value);
+        } else if (value instanceof Byte) {
+            writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            writeShort((Short) value);
+        } else if (value instanceof Character) {
+            writeChar((Character) value);
+        } else if (value instanceof Integer) {
+            writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            writeLong((Long) value);
+        } else if (value instanceof Float) {
+            writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            writeDouble((Double) value);
+        } else if (value instanceof String) {
+            writeUTF((String) value);
+        } else if (value instanceof byte[]) {
+            writeBytes((byte[]) value);
+        } else {
+            throw new MessageFormatException("Unsupported type: " + (value == null ? "null" : value.getClass().getName()));
+        }
+    }
+
+}
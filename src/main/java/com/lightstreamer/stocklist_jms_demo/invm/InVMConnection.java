@@ -0,0 +1,186 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import java.util.ArrayList;
+
+import javax.jms.ConnectionConsumer;
+import javax.jms.ConnectionMetaData;
+import javax.jms.Destination;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.Queue;
+import javax.jms.QueueConnection;
+import javax.jms.QueueSession;
+import javax.jms.ServerSessionPool;
+import javax.jms.Session;
+import javax.jms.Topic;
+import javax.jms.TopicConnection;
+import javax.jms.TopicSession;
+
+/**
+ * A connection to an in-VM broker, usable for both topics and queues.
+ */
+class InVMConnection implements TopicConnection, QueueConnection {
+
+    final InVMBroker broker;
+
+    private final ArrayList<InVMSession> sessions = new ArrayList<InVMSession>();
+    private volatile ExceptionListener exceptionListener;
+    private String clientId;
+
+    private boolean started = false;
+    private volatile boolean closed = false;
+
+    InVMConnection(InVMBroker broker) {
+        this.broker = broker;
+    }
+
+    private void checkOpen() throws JMSException {
+        if (closed) {
+            throw new javax.jms.IllegalStateException("Connection closed");
+        }
+    }
+
+    public Session createSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        checkOpen();
+        if (transacted) {
+            throw new JMSException("Transacted sessions not supported");
+        }
+        InVMSession session = new InVMSession(this);
+        synchronized (sessions) {
+            sessions.add(session);
+        }
+        return session;
+    }
+
+    public TopicSession createTopicSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        return (TopicSession) createSession(transacted, acknowledgeMode);
+    }
+
+    public QueueSession createQueueSession(boolean transacted, int acknowledgeMode) throws JMSException {
+        return (QueueSession) createSession(transacted, acknowledgeMode);
+    }
+
+    void sessionClosed(InVMSession session) {
+        synchronized (sessions) {
+            sessions.remove(session);
+        }
+    }
+
+    public String getClientID() {
+        return clientId;
+    }
+
+    public void setClientID(String clientId) {
+        this.clientId = clientId;
+    }
+
+    public ConnectionMetaData getMetaData() throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public ExceptionListener getExceptionListener() {
+        return exceptionListener;
+    }
+
+    public void setExceptionListener(ExceptionListener listener) {
+        this.exceptionListener = listener;
+    }
+
+    public synchronized void start() throws JMSException {
+        checkOpen();
+        started = true;
+        notifyAll();
+    }
+
+    public synchronized void stop() throws JMSException {
+        checkOpen();
+        started = false;
+    }
+
+    /**
+     * Called by the session dispatchers: deliveries are held while the
+     * connection is stopped.
+     */
+    synchronized void awaitStarted() throws InterruptedException {
+        while (!started && !closed) {
+            wait();
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        InVMSession[] toClose;
+        synchronized (sessions) {
+            toClose = sessions.toArray(new InVMSession[sessions.size()]);
+        }
+        for (int i = 0; i < toClose.length; i++) {
+            toClose[i].close();
+        }
+        broker.disconnected(this);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the connection and notifies the ExceptionListener (from a
+     * different thread, as a real provider would do).
+     */
+    void fail(final JMSException cause) {
+        if (closed) {
+            return;
+        }
+        close();
+        final ExceptionListener listener = exceptionListener;
+        if (listener != null) {
+            Thread notifier = new Thread("InVM exception notifier") {
+                public void run() {
+                    listener.onException(cause);
+                }
+            };
+            notifier.setDaemon(true);
+            notifier.start();
+        }
+    }
+
+    public ConnectionConsumer createConnectionConsumer(Destination destination, String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public ConnectionConsumer createConnectionConsumer(Topic topic, String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public ConnectionConsumer createConnectionConsumer(Queue queue, String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public ConnectionConsumer createDurableConnectionConsumer(Topic topic, String subscriptionName, String messageSelector, ServerSessionPool sessionPool, int maxMessages) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+}
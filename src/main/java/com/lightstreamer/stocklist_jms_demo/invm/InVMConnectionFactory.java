@@ -0,0 +1,62 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.QueueConnection;
+import javax.jms.QueueConnectionFactory;
+import javax.jms.TopicConnection;
+import javax.jms.TopicConnectionFactory;
+
+/**
+ * Connection factory for both topics and queues of an in-VM broker.
+ */
+public class InVMConnectionFactory implements TopicConnectionFactory, QueueConnectionFactory {
+
+    private final InVMBroker broker;
+
+    public InVMConnectionFactory(InVMBroker broker) {
+        this.broker = broker;
+    }
+
+    public Connection createConnection() throws JMSException {
+        return broker.connect();
+    }
+
+    public Connection createConnection(String userName, String password) throws JMSException {
+        return broker.connect();
+    }
+
+    public TopicConnection createTopicConnection() throws JMSException {
+        return broker.connect();
+    }
+
+    public TopicConnection createTopicConnection(String userName, String password) throws JMSException {
+        return broker.connect();
+    }
+
+    public QueueConnection createQueueConnection() throws JMSException {
+        return broker.connect();
+    }
+
+    public QueueConnection createQueueConnection(String userName, String password) throws JMSException {
+        return broker.connect();
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import java.util.Hashtable;
+
+import javax.naming.Binding;
+import javax.naming.CompositeName;
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameClassPair;
+import javax.naming.NameNotFoundException;
+import javax.naming.NameParser;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+
+/**
+ * A flat JNDI context resolving the names of an in-VM broker
+ * (see InVMInitialContextFactory for the supported names).
+ */
+class InVMContext implements Context {
+
+    private static final String DEFAULT_CONNECTION_FACTORY_NAMES = "ConnectionFactory,QueueConnectionFactory,TopicConnectionFactory,connectionFactory";
+
+    private final InVMBroker broker;
+    private final Hashtable<Object,Object> environment;
+    private final InVMConnectionFactory connectionFactory;
+
+    InVMContext(InVMBroker broker, Hashtable<?,?> environment) {
+        this.broker = broker;
+        this.environment = new Hashtable<Object,Object>(environment);
+        this.connectionFactory = new InVMConnectionFactory(broker);
+    }
+
+    public Object lookup(String name) throws NamingException {
+        if (name == null || name.length() == 0) {
+            return this;
+        }
+        Object bound = broker.bindings.get(name);
+        if (bound != null) {
+            return bound;
+        }
+
+        if (name.startsWith("dynamicTopics/")) {
+            return broker.getTopic(name.substring("dynamicTopics/".length()));
+        } else if (name.startsWith("dynamicQueues/")) {
+            return broker.getQueue(name.substring("dynamicQueues/".length()));
+        }
+
+        Object topicName = environment.get("topic." + name);
+        if (topicName != null) {
+            return broker.getTopic(topicName.toString());
+        }
+        Object queueName = environment.get("queue." + name);
+        if (queueName != null) {
+            return broker.getQueue(queueName.toString());
+        }
+
+        Object factoryNames = environment.get("connectionFactoryNames");
+        String[] names = (factoryNames == null ? DEFAULT_CONNECTION_FACTORY_NAMES : factoryNames.toString()).split(",");
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].trim().equals(name)) {
+                return connectionFactory;
+            }
+        }
+
+        throw new NameNotFoundException(name + " not found in " + broker);
+    }
+
+    public Object lookup(Name name) throws NamingException {
+        return lookup(name.toString());
+    }
+
+    public void bind(String name, Object obj) throws NamingException {
+        if (broker.bindings.putIfAbsent(name, obj) != null) {
+            throw new javax.naming.NameAlreadyBoundException(name);
+        }
+    }
+
+    public void bind(Name name, Object obj) throws NamingException {
+        bind(name.toString(), obj);
+    }
+
+    public void rebind(String name, Object obj) {
+        broker.bindings.put(name, obj);
+    }
+
+    public void rebind(Name name, Object obj) {
+        rebind(name.toString(), obj);
+    }
+
+    public void unbind(String name) {
+        broker.bindings.remove(name);
+    }
+
+    public void unbind(Name name) {
+        unbind(name.toString());
+    }
+
+    public void rename(String oldName, String newName) throws NamingException {
+        Object obj = lookup(oldName);
+        bind(newName, obj);
+        unbind(oldName);
+    }
+
+    public void rename(Name oldName, Name newName) throws NamingException {
+        rename(oldName.toString(), newName.toString());
+    }
+
+    public NamingEnumeration<NameClassPair> list(String name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    public NamingEnumeration<NameClassPair> list(Name name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    public NamingEnumeration<Binding> listBindings(String name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    public NamingEnumeration<Binding> listBindings(Name name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    public void destroySubcontext(String name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    public void destroySubcontext(Name name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    public Context createSubcontext(String name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    public Context createSubcontext(Name name) throws NamingException {
+        throw new OperationNotSupportedException();
+    }
+
+    public Object lookupLink(String name) throws NamingException {
+        return lookup(name);
+    }
+
+    public Object lookupLink(Name name) throws NamingException {
+        return lookup(name);
+    }
+
+    public NameParser getNameParser(String name) {
+        return new NameParser() {
+            public Name parse(String name) throws NamingException {
+                return new CompositeName(name);
+            }
+        };
+    }
+
+    public NameParser getNameParser(Name name) {
+        return getNameParser(name.toString());
+    }
+
+    public String composeName(String name, String prefix) {
+        return prefix == null || prefix.length() == 0 ? name : prefix + "/" + name;
+    }
+
+    public Name composeName(Name name, Name prefix) throws NamingException {
+        return new CompositeName(composeName(name.toString(), prefix.toString()));
+    }
+
+    public Object addToEnvironment(String propName, Object propVal) {
+        return environment.put(propName, propVal);
+    }
+
+    public Object removeFromEnvironment(String propName) {
+        return environment.remove(propName);
+    }
+
+    public Hashtable<?,?> getEnvironment() {
+        return new Hashtable<Object,Object>(environment);
+    }
+
+    public void close() {
+    }
+
+    public String getNameInNamespace() {
+        return "";
+    }
+
+}
@@ -0,0 +1,44 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import javax.jms.Destination;
+
+/**
+ * Base class for the in-VM topics and queues.
+ */
+abstract class InVMDestination implements Destination {
+
+    protected final InVMBroker broker;
+    protected final String name;
+
+    InVMDestination(InVMBroker broker, String name) {
+        this.broker = broker;
+        this.name = name;
+    }
+
+    /**
+     * Hands a message (already copied for delivery) to the consumers.
+     */
+    abstract void route(InVMMessage message, InVMConnection from);
+
+    abstract void addConsumer(InVMMessageConsumer consumer);
+
+    abstract void removeConsumer(InVMMessageConsumer consumer);
+
+}
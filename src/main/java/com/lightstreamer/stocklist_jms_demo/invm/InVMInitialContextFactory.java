@@ -0,0 +1,46 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import java.util.Hashtable;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * The InitialContextFactory of the in-VM provider; configure it as
+ *   initialContextFactory = stocklist_jms_demo.invm.InVMInitialContextFactory
+ *   jmsUrl = invm://stocks
+ * The naming follows the ActiveMQ conventions, so that the same names
+ * can be used in the configuration of both the Adapter and the Generator:
+ * - ConnectionFactory, QueueConnectionFactory, TopicConnectionFactory and
+ *   connectionFactory (or the names listed in the "connectionFactoryNames"
+ *   environment property) return the connection factory;
+ * - dynamicTopics/NAME and dynamicQueues/NAME return the topic or queue NAME;
+ * - a "topic.JNDINAME=NAME" ("queue.JNDINAME=NAME") environment property,
+ *   e.g. in jndi.properties, maps JNDINAME to the topic (queue) NAME.
+ */
+public class InVMInitialContextFactory implements InitialContextFactory {
+
+    public Context getInitialContext(Hashtable<?,?> environment) throws NamingException {
+        Object url = environment.get(Context.PROVIDER_URL);
+        return new InVMContext(InVMBroker.forURL(url == null ? null : url.toString()), environment);
+    }
+
+}
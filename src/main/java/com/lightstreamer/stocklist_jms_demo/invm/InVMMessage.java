@@ -0,0 +1,303 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageFormatException;
+
+/**
+ * A message of the in-VM provider. Properties are kept as objects and
+ * converted on access; the body is handled by subclasses.
+ */
+class InVMMessage implements Message {
+
+    private String messageId;
+    private long timestamp;
+    private String correlationId;
+    private Destination replyTo;
+    private Destination destination;
+    private int deliveryMode = DeliveryMode.PERSISTENT;
+    private boolean redelivered;
+    private String type;
+    private long expiration;
+    private int priority = DEFAULT_PRIORITY;
+    private HashMap<String,Object> properties;
+
+    /**
+     * Copies the envelope for delivery; the body is shared, not copied,
+     * so that the sender can reuse this message right after the send
+     * (as JMSHandler's pools do) while the payload travels by reference.
+     */
+    InVMMessage copy() {
+        InVMMessage copy = newInstance();
+        copyTo(copy);
+        return copy;
+    }
+
+    protected InVMMessage newInstance() {
+        return new InVMMessage();
+    }
+
+    protected void copyTo(InVMMessage copy) {
+        copy.messageId = messageId;
+        copy.timestamp = timestamp;
+        copy.correlationId = correlationId;
+        copy.replyTo = replyTo;
+        copy.destination = destination;
+        copy.deliveryMode = deliveryMode;
+        copy.redelivered = redelivered;
+        copy.type = type;
+        copy.expiration = expiration;
+        copy.priority = priority;
+        if (properties != null) {
+            copy.properties = new HashMap<String,Object>(properties);
+        }
+    }
+
+    public String getJMSMessageID() {
+        return messageId;
+    }
+
+    public void setJMSMessageID(String id) {
+        this.messageId = id;
+    }
+
+    public long getJMSTimestamp() {
+        return timestamp;
+    }
+
+    public void setJMSTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public byte[] getJMSCorrelationIDAsBytes() {
+        return correlationId == null ? null : correlationId.getBytes();
+    }
+
+    public void setJMSCorrelationIDAsBytes(byte[] correlationId) {
+        this.correlationId = correlationId == null ? null : new String(correlationId);
+    }
+
+    public void setJMSCorrelationID(String correlationId) {
+        this.correlationId = correlationId;
+    }
+
+    public String getJMSCorrelationID() {
+        return correlationId;
+    }
+
+    public Destination getJMSReplyTo() {
+        return replyTo;
+    }
+
+    public void setJMSReplyTo(Destination replyTo) {
+        this.replyTo = replyTo;
+    }
+
+    public Destination getJMSDestination() {
+        return destination;
+    }
+
+    public void setJMSDestination(Destination destination) {
+        this.destination = destination;
+    }
+
+    public int getJMSDeliveryMode() {
+        return deliveryMode;
+    }
+
+    public void setJMSDeliveryMode(int deliveryMode) {
+        this.deliveryMode = deliveryMode;
+    }
+
+    public boolean getJMSRedelivered() {
+        return redelivered;
+    }
+
+    public void setJMSRedelivered(boolean redelivered) {
+        this.redelivered = redelivered;
+    }
+
+    public String getJMSType() {
+        return type;
+    }
+
+    public void setJMSType(String type) {
+        this.type = type;
+    }
+
+    public long getJMSExpiration() {
+        return expiration;
+    }
+
+    public void setJMSExpiration(long expiration) {
+        this.expiration = expiration;
+    }
+
+    public int getJMSPriority() {
+        return priority;
+    }
+
+    public void setJMSPriority(int priority) {
+        this.priority = priority;
+    }
+
+    ///////////////// Properties
+
+    public void clearProperties() {
+        properties = null;
+    }
+
+    public boolean propertyExists(String name) {
+        return properties != null && properties.containsKey(name);
+    }
+
+    public Object getObjectProperty(String name) {
+        return properties == null ? null : properties.get(name);
+    }
+
+    public boolean getBooleanProperty(String name) throws JMSException {
+        Object value = getObjectProperty(name);
+        if (value == null || value instanceof String) {
+            return Boolean.valueOf((String) value).booleanValue();
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value).booleanValue();
+        }
+        throw new MessageFormatException("Property " + name + " is not a boolean");
+    }
+
+    public byte getByteProperty(String name) throws JMSException {
+        return (byte) getIntegral(name, Byte.class);
+    }
+
+    public short getShortProperty(String name) throws JMSException {
+        return (short) getIntegral(name, Short.class);
+    }
+
+    public int getIntProperty(String name) throws JMSException {
+        return (int) getIntegral(name, Integer.class);
+    }
+
+    public long getLongProperty(String name) throws JMSException {
+        return getIntegral(name, Long.class);
+    }
+
+    public float getFloatProperty(String name) throws JMSException {
+        Object value = getObjectProperty(name);
+        if (value instanceof Float) {
+            return ((Float) value).floatValue();
+        } else if (value instanceof String) {
+            return Float.parseFloat((String) value);
+        }
+        throw new MessageFormatException("Property " + name + " is not a float");
+    }
+
+    public double getDoubleProperty(String name) throws JMSException {
+        Object value = getObjectProperty(name);
+        if (value instanceof Float || value instanceof Double) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof String) {
+            return Double.parseDouble((String) value);
+        }
+        throw new MessageFormatException("Property " + name + " is not a double");
+    }
+
+    public String getStringProperty(String name) {
+        Object value = getObjectProperty(name);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Integral conversions allowed by JMS: from narrower integral types or from String.
+     */
+    private long getIntegral(String name, Class<?> type) throws JMSException {
+        Object value = getObjectProperty(name);
+        if (value instanceof String) {
+            return Long.parseLong((String) value);
+        } else if (value instanceof Byte
+                || (value instanceof Short && type != Byte.class)
+                || (value instanceof Integer && (type == Integer.class || type == Long.class))
+                || (value instanceof Long && type == Long.class)) {
+            return ((Number) value).longValue();
+        } else if (value == null) {
+            throw new NumberFormatException("Property " + name + " not found");
+        }
+        throw new MessageFormatException("Property " + name + " is not a " + type.getSimpleName());
+    }
+
+    public Enumeration getPropertyNames() {
+        if (properties == null) {
+            return Collections.enumeration(Collections.<String>emptyList());
+        }
+        return Collections.enumeration(properties.keySet());
+    }
+
+    public void setBooleanProperty(String name, boolean value) {
+        setObjectProperty(name, Boolean.valueOf(value));
+    }
+
+    public void setByteProperty(String name, byte value) {
+        setObjectProperty(name, Byte.valueOf(value));
+    }
+
+    public void setShortProperty(String name, short value) {
+        setObjectProperty(name, Short.valueOf(value));
+    }
+
+    public void setIntProperty(String name, int value) {
+        setObjectProperty(name, Integer.valueOf(value));
+    }
+
+    public void setLongProperty(String name, long value) {
+        setObjectProperty(name, Long.valueOf(value));
+    }
+
+    public void setFloatProperty(String name, float value) {
+        setObjectProperty(name, Float.valueOf(value));
+    }
+
+    public void setDoubleProperty(String name, double value) {
+        setObjectProperty(name, Double.valueOf(value));
+    }
+
+    public void setStringProperty(String name, String value) {
+        setObjectProperty(name, value);
+    }
+
+    public void setObjectProperty(String name, Object value) {
+        if (properties == null) {
+            properties = new HashMap<String,Object>();
+        }
+        properties.put(name, value);
+    }
+
+    public void acknowledge() {
+        //AUTO_ACKNOWLEDGE only
+    }
+
+    public void clearBody() {
+    }
+
+}
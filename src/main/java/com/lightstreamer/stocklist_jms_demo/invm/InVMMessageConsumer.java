@@ -0,0 +1,143 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.Queue;
+import javax.jms.QueueReceiver;
+import javax.jms.Topic;
+import javax.jms.TopicSubscriber;
+
+/**
+ * A consumer of the in-VM provider, usable as both TopicSubscriber and
+ * QueueReceiver. Messages are pushed to the MessageListener, if set,
+ * otherwise they are kept for receive().
+ */
+class InVMMessageConsumer implements TopicSubscriber, QueueReceiver {
+
+    final InVMSession session;
+    final InVMDestination destination;
+    final boolean noLocal;
+
+    private final LinkedBlockingQueue<Message> received = new LinkedBlockingQueue<Message>();
+    private volatile MessageListener listener;
+    private volatile boolean closed = false;
+
+    InVMMessageConsumer(InVMSession session, InVMDestination destination, boolean noLocal) {
+        this.session = session;
+        this.destination = destination;
+        this.noLocal = noLocal;
+    }
+
+    private void checkOpen() throws JMSException {
+        if (closed) {
+            throw new javax.jms.IllegalStateException("Consumer closed");
+        }
+    }
+
+    /**
+     * Called by the destination.
+     */
+    void enqueue(InVMMessage message) {
+        if (!closed) {
+            session.enqueue(this, message);
+        }
+    }
+
+    /**
+     * Called by the session dispatcher.
+     */
+    boolean deliver(InVMMessage message) {
+        if (closed) {
+            return false;
+        }
+        MessageListener current = listener;
+        if (current != null) {
+            current.onMessage(message);
+        } else {
+            received.offer(message);
+        }
+        return true;
+    }
+
+    public String getMessageSelector() {
+        return null;
+    }
+
+    public MessageListener getMessageListener() {
+        return listener;
+    }
+
+    public void setMessageListener(MessageListener listener) throws JMSException {
+        checkOpen();
+        this.listener = listener;
+    }
+
+    public Message receive() throws JMSException {
+        checkOpen();
+        try {
+            return received.take();
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    public Message receive(long timeout) throws JMSException {
+        if (timeout == 0) {
+            return receive();
+        }
+        checkOpen();
+        try {
+            return received.poll(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    public Message receiveNoWait() throws JMSException {
+        checkOpen();
+        return received.poll();
+    }
+
+    public Topic getTopic() {
+        return (Topic) destination;
+    }
+
+    public boolean getNoLocal() {
+        return noLocal;
+    }
+
+    public Queue getQueue() {
+        return (Queue) destination;
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        destination.removeConsumer(this);
+        session.consumerClosed(this);
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Queue;
+import javax.jms.QueueSender;
+import javax.jms.Topic;
+import javax.jms.TopicPublisher;
+
+/**
+ * A producer of the in-VM provider, usable as both TopicPublisher and QueueSender.
+ */
+class InVMMessageProducer implements TopicPublisher, QueueSender {
+
+    private final InVMSession session;
+    private final InVMDestination destination;
+
+    private boolean disableMessageId = false;
+    private boolean disableTimestamp = false;
+    private int deliveryMode = DeliveryMode.PERSISTENT;
+    private int priority = Message.DEFAULT_PRIORITY;
+    private long timeToLive = Message.DEFAULT_TIME_TO_LIVE;
+    private volatile boolean closed = false;
+
+    InVMMessageProducer(InVMSession session, InVMDestination destination) {
+        this.session = session;
+        this.destination = destination;
+    }
+
+    private void checkOpen() throws JMSException {
+        if (closed) {
+            throw new javax.jms.IllegalStateException("Producer closed");
+        }
+    }
+
+    public void setDisableMessageID(boolean value) {
+        this.disableMessageId = value;
+    }
+
+    public boolean getDisableMessageID() {
+        return disableMessageId;
+    }
+
+    public void setDisableMessageTimestamp(boolean value) {
+        this.disableTimestamp = value;
+    }
+
+    public boolean getDisableMessageTimestamp() {
+        return disableTimestamp;
+    }
+
+    public void setDeliveryMode(int deliveryMode) {
+        this.deliveryMode = deliveryMode;
+    }
+
+    public int getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public Destination getDestination() {
+        return destination;
+    }
+
+    public Topic getTopic() {
+        return (Topic) destination;
+    }
+
+    public Queue getQueue() {
+        return (Queue) destination;
+    }
+
+    public void close() {
+        closed = true;
+    }
+
+    public void send(Message message) throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Destination destination, Message message) throws JMSException {
+        send(destination, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        checkOpen();
+        session.send(destination, message, deliveryMode, priority, timeToLive, disableMessageId, disableTimestamp);
+    }
+
+    public void send(Queue queue, Message message) throws JMSException {
+        send((Destination) queue, message);
+    }
+
+    public void send(Queue queue, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send((Destination) queue, message, deliveryMode, priority, timeToLive);
+    }
+
+    public void publish(Message message) throws JMSException {
+        send(message);
+    }
+
+    public void publish(Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send(message, deliveryMode, priority, timeToLive);
+    }
+
+    public void publish(Topic topic, Message message) throws JMSException {
+        send((Destination) topic, message);
+    }
+
+    public void publish(Topic topic, Message message, int deliveryMode, int priority, long timeToLive) throws JMSException {
+        send((Destination) topic, message, deliveryMode, priority, timeToLive);
+    }
+
+}
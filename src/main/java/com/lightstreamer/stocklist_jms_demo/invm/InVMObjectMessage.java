@@ -0,0 +1,53 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import java.io.Serializable;
+
+import javax.jms.ObjectMessage;
+
+/**
+ * An ObjectMessage whose object travels by reference (zero-copy):
+ * senders must not modify an object after sending it.
+ */
+class InVMObjectMessage extends InVMMessage implements ObjectMessage {
+
+    private Serializable object;
+
+    public void setObject(Serializable object) {
+        this.object = object;
+    }
+
+    public Serializable getObject() {
+        return object;
+    }
+
+    public void clearBody() {
+        object = null;
+    }
+
+    protected InVMMessage newInstance() {
+        return new InVMObjectMessage();
+    }
+
+    protected void copyTo(InVMMessage copy) {
+        super.copyTo(copy);
+        ((InVMObjectMessage) copy).object = object;
+    }
+
+}
@@ -0,0 +1,68 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import javax.jms.Queue;
+
+/**
+ * An in-VM queue: each message is delivered to one receiver (round
+ * robin); messages sent while no receiver is available are kept
+ * until one shows up.
+ */
+public class InVMQueue extends InVMDestination implements Queue {
+
+    private final ArrayList<InVMMessageConsumer> receivers = new ArrayList<InVMMessageConsumer>();
+    private final LinkedList<InVMMessage> pending = new LinkedList<InVMMessage>();
+    private int next = 0;
+
+    InVMQueue(InVMBroker broker, String name) {
+        super(broker, name);
+    }
+
+    public String getQueueName() {
+        return name;
+    }
+
+    synchronized void route(InVMMessage message, InVMConnection from) {
+        if (receivers.isEmpty()) {
+            pending.add(message);
+            return;
+        }
+        next = (next + 1) % receivers.size();
+        receivers.get(next).enqueue(message);
+    }
+
+    synchronized void addConsumer(InVMMessageConsumer consumer) {
+        receivers.add(consumer);
+        while (!pending.isEmpty()) {
+            consumer.enqueue(pending.removeFirst());
+        }
+    }
+
+    synchronized void removeConsumer(InVMMessageConsumer consumer) {
+        receivers.remove(consumer);
+    }
+
+    public String toString() {
+        return "queue://" + name;
+    }
+
+}
@@ -0,0 +1,377 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import java.io.Serializable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Queue;
+import javax.jms.QueueBrowser;
+import javax.jms.QueueReceiver;
+import javax.jms.QueueSender;
+import javax.jms.QueueSession;
+import javax.jms.StreamMessage;
+import javax.jms.TemporaryQueue;
+import javax.jms.TemporaryTopic;
+import javax.jms.TextMessage;
+import javax.jms.Topic;
+import javax.jms.TopicPublisher;
+import javax.jms.TopicSession;
+import javax.jms.TopicSubscriber;
+
+/**
+ * A non-transacted, auto-acknowledge session of the in-VM provider.
+ * As mandated by JMS, the messages for all the consumers of a session
+ * are delivered serially, by a dispatcher thread owned by the session.
+ */
+class InVMSession implements TopicSession, QueueSession {
+
+    final InVMConnection connection;
+
+    private final CopyOnWriteArrayList<InVMMessageConsumer> consumers = new CopyOnWriteArrayList<InVMMessageConsumer>();
+    private final LinkedBlockingQueue<Delivery> deliveries = new LinkedBlockingQueue<Delivery>();
+    private final Dispatcher dispatcher;
+
+    private volatile boolean closed = false;
+
+    InVMSession(InVMConnection connection) {
+        this.connection = connection;
+        this.dispatcher = new Dispatcher();
+        this.dispatcher.start();
+    }
+
+    void checkOpen() throws JMSException {
+        if (closed) {
+            throw new javax.jms.IllegalStateException("Session closed");
+        }
+    }
+
+    ///////////////// Messages
+
+    public Message createMessage() throws JMSException {
+        checkOpen();
+        return new InVMMessage();
+    }
+
+    public ObjectMessage createObjectMessage() throws JMSException {
+        checkOpen();
+        return new InVMObjectMessage();
+    }
+
+    public ObjectMessage createObjectMessage(Serializable object) throws JMSException {
+        ObjectMessage message = createObjectMessage();
+        message.setObject(object);
+        return message;
+    }
+
+    public TextMessage createTextMessage() throws JMSException {
+        checkOpen();
+        return new InVMTextMessage();
+    }
+
+    public TextMessage createTextMessage(String text) throws JMSException {
+        TextMessage message = createTextMessage();
+        message.setText(text);
+        return message;
+    }
+
+    public BytesMessage createBytesMessage() throws JMSException {
+        checkOpen();
+        return new InVMBytesMessage();
+    }
+
+    public MapMessage createMapMessage() throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public StreamMessage createStreamMessage() throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    ///////////////// Destinations
+
+    public Topic createTopic(String topicName) throws JMSException {
+        checkOpen();
+        return connection.broker.getTopic(topicName);
+    }
+
+    public Queue createQueue(String queueName) throws JMSException {
+        checkOpen();
+        return connection.broker.getQueue(queueName);
+    }
+
+    public TemporaryTopic createTemporaryTopic() throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public TemporaryQueue createTemporaryQueue() throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    private InVMDestination toDestination(Destination destination) throws JMSException {
+        if (destination == null) {
+            return null;
+        } else if (!(destination instanceof InVMDestination) || ((InVMDestination) destination).broker != connection.broker) {
+            throw new javax.jms.InvalidDestinationException("Not a destination of this broker: " + destination);
+        }
+        return (InVMDestination) destination;
+    }
+
+    ///////////////// Producers
+
+    public MessageProducer createProducer(Destination destination) throws JMSException {
+        checkOpen();
+        return new InVMMessageProducer(this, toDestination(destination));
+    }
+
+    public TopicPublisher createPublisher(Topic topic) throws JMSException {
+        return (TopicPublisher) createProducer(topic);
+    }
+
+    public QueueSender createSender(Queue queue) throws JMSException {
+        return (QueueSender) createProducer(queue);
+    }
+
+    /**
+     * Called by the producers: the message is handed to the destination
+     * by reference, only its envelope is copied.
+     */
+    void send(Destination destination, Message message, int deliveryMode, int priority, long timeToLive, boolean disableMessageId, boolean disableTimestamp) throws JMSException {
+        checkOpen();
+        InVMDestination target = toDestination(destination);
+        if (target == null) {
+            throw new javax.jms.InvalidDestinationException("No destination specified");
+        }
+        if (!(message instanceof InVMMessage)) {
+            throw new javax.jms.MessageFormatException("Only messages created by an InVM session can be sent");
+        }
+        InVMBroker broker = connection.broker;
+        broker.checkSend();
+
+        long now = System.currentTimeMillis();
+        InVMMessage inVMMessage = (InVMMessage) message;
+        inVMMessage.setJMSDestination(target);
+        inVMMessage.setJMSDeliveryMode(deliveryMode);
+        inVMMessage.setJMSPriority(priority);
+        inVMMessage.setJMSExpiration(timeToLive > 0 ? now + timeToLive : 0);
+        inVMMessage.setJMSTimestamp(disableTimestamp ? 0 : now);
+        inVMMessage.setJMSMessageID(disableMessageId ? null : broker.nextMessageId());
+
+        InVMBroker.SendObserver observer = broker.getSendObserver();
+        if (observer != null) {
+            observer.onSend(target, inVMMessage);
+        }
+        target.route(inVMMessage.copy(), connection);
+        broker.sent.incrementAndGet();
+    }
+
+    ///////////////// Consumers
+
+    public MessageConsumer createConsumer(Destination destination) throws JMSException {
+        return createConsumer(destination, null, false);
+    }
+
+    public MessageConsumer createConsumer(Destination destination, String messageSelector) throws JMSException {
+        return createConsumer(destination, messageSelector, false);
+    }
+
+    public MessageConsumer createConsumer(Destination destination, String messageSelector, boolean noLocal) throws JMSException {
+        checkOpen();
+        if (messageSelector != null && messageSelector.trim().length() > 0) {
+            throw new javax.jms.InvalidSelectorException("Message selectors not supported");
+        }
+        InVMDestination source = toDestination(destination);
+        if (source == null) {
+            throw new javax.jms.InvalidDestinationException("No destination specified");
+        }
+        InVMMessageConsumer consumer = new InVMMessageConsumer(this, source, noLocal);
+        consumers.add(consumer);
+        source.addConsumer(consumer);
+        return consumer;
+    }
+
+    public TopicSubscriber createSubscriber(Topic topic) throws JMSException {
+        return (TopicSubscriber) createConsumer(topic, null, false);
+    }
+
+    public TopicSubscriber createSubscriber(Topic topic, String messageSelector, boolean noLocal) throws JMSException {
+        return (TopicSubscriber) createConsumer(topic, messageSelector, noLocal);
+    }
+
+    public QueueReceiver createReceiver(Queue queue) throws JMSException {
+        return (QueueReceiver) createConsumer(queue, null, false);
+    }
+
+    public QueueReceiver createReceiver(Queue queue, String messageSelector) throws JMSException {
+        return (QueueReceiver) createConsumer(queue, messageSelector, false);
+    }
+
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name) throws JMSException {
+        throw new JMSException("Durable subscriptions not supported");
+    }
+
+    public TopicSubscriber createDurableSubscriber(Topic topic, String name, String messageSelector, boolean noLocal) throws JMSException {
+        throw new JMSException("Durable subscriptions not supported");
+    }
+
+    public void unsubscribe(String name) throws JMSException {
+        throw new JMSException("Durable subscriptions not supported");
+    }
+
+    public QueueBrowser createBrowser(Queue queue) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public QueueBrowser createBrowser(Queue queue, String messageSelector) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    void consumerClosed(InVMMessageConsumer consumer) {
+        consumers.remove(consumer);
+    }
+
+    /**
+     * Called by the destinations: schedules the delivery of a message
+     * to a consumer of this session, applying the broker latency.
+     */
+    void enqueue(InVMMessageConsumer consumer, InVMMessage message) {
+        if (closed) {
+            return;
+        }
+        long latency = connection.broker.getLatencyMillis();
+        long deliverAt = latency > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(latency) : 0;
+        deliveries.offer(new Delivery(consumer, message, deliverAt));
+    }
+
+    ///////////////// Session
+
+    public boolean getTransacted() {
+        return false;
+    }
+
+    public int getAcknowledgeMode() {
+        return AUTO_ACKNOWLEDGE;
+    }
+
+    public void commit() throws JMSException {
+        throw new javax.jms.IllegalStateException("Session not transacted");
+    }
+
+    public void rollback() throws JMSException {
+        throw new javax.jms.IllegalStateException("Session not transacted");
+    }
+
+    public void recover() throws JMSException {
+        checkOpen();
+    }
+
+    public MessageListener getMessageListener() throws JMSException {
+        return null;
+    }
+
+    public void setMessageListener(MessageListener listener) throws JMSException {
+        throw new JMSException("Not supported");
+    }
+
+    public void run() {
+    }
+
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (InVMMessageConsumer consumer : consumers) {
+            consumer.close();
+        }
+        dispatcher.interrupt();
+        deliveries.clear();
+        connection.sessionClosed(this);
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    private static class Delivery {
+
+        final InVMMessageConsumer consumer;
+        final InVMMessage message;
+        final long deliverAt;
+
+        Delivery(InVMMessageConsumer consumer, InVMMessage message, long deliverAt) {
+            this.consumer = consumer;
+            this.message = message;
+            this.deliverAt = deliverAt;
+        }
+
+    }
+
+    private class Dispatcher extends Thread {
+
+        Dispatcher() {
+            super("InVM session dispatcher");
+            setDaemon(true);
+        }
+
+        public void run() {
+            InVMBroker broker = connection.broker;
+            while (!closed) {
+                try {
+                    Delivery delivery = deliveries.take();
+                    connection.awaitStarted();
+
+                    //all deliveries share the same latency, so they stay in order
+                    long wait = delivery.deliverAt - System.nanoTime();
+                    if (delivery.deliverAt != 0 && wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    if (closed) {
+                        return;
+                    }
+
+                    long expiration = delivery.message.getJMSExpiration();
+                    if (expiration != 0 && expiration < System.currentTimeMillis()) {
+                        broker.expired.incrementAndGet();
+                        continue;
+                    }
+                    if (delivery.consumer.deliver(delivery.message)) {
+                        broker.delivered.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    //closing
+                } catch (RuntimeException e) {
+                    //a misbehaving listener must not stop the session
+                }
+            }
+        }
+
+    }
+
+}
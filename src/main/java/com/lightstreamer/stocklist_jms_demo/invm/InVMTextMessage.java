@@ -0,0 +1,47 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import javax.jms.TextMessage;
+
+class InVMTextMessage extends InVMMessage implements TextMessage {
+
+    private String text;
+
+    public void setText(String text) {
+        this.text = text;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void clearBody() {
+        text = null;
+    }
+
+    protected InVMMessage newInstance() {
+        return new InVMTextMessage();
+    }
+
+    protected void copyTo(InVMMessage copy) {
+        super.copyTo(copy);
+        ((InVMTextMessage) copy).text = text;
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.invm;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.Topic;
+
+/**
+ * An in-VM topic: each message is delivered to every current
+ * subscriber (non-durable subscriptions only).
+ */
+public class InVMTopic extends InVMDestination implements Topic {
+
+    private final CopyOnWriteArrayList<InVMMessageConsumer> subscribers = new CopyOnWriteArrayList<InVMMessageConsumer>();
+
+    InVMTopic(InVMBroker broker, String name) {
+        super(broker, name);
+    }
+
+    public String getTopicName() {
+        return name;
+    }
+
+    void route(InVMMessage message, InVMConnection from) {
+        boolean first = true;
+        for (InVMMessageConsumer subscriber : subscribers) {
+            if (subscriber.noLocal && subscriber.session.connection == from) {
+                continue;
+            }
+            //each subscriber needs its own envelope (e.g. a BytesMessage
+            //has its own read position); the body is still shared
+            subscriber.enqueue(first ? message : message.copy());
+            first = false;
+        }
+    }
+
+    void addConsumer(InVMMessageConsumer consumer) {
+        subscribers.add(consumer);
+    }
+
+    void removeConsumer(InVMMessageConsumer consumer) {
+        subscribers.remove(consumer);
+    }
+
+    public String toString() {
+        return "topic://" + name;
+    }
+
+}
@@ -0,0 +1,443 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.load_test;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import stocklist_jms_demo.adapters.HotItemTracker;
+import stocklist_jms_demo.adapters.StockQuotesJMSDataAdapter;
+import stocklist_jms_demo.common.Activities;
+import stocklist_jms_demo.feed_simulator.ExternalFeedSimulator;
+import stocklist_jms_demo.feed_simulator.Generator;
+import stocklist_jms_demo.feed_simulator.LoadProfile;
+import stocklist_jms_demo.invm.InVMBroker;
+import stocklist_jms_demo.invm.InVMInitialContextFactory;
+
+import com.lightstreamer.interfaces.data.DataProviderException;
+import com.lightstreamer.interfaces.data.FailureException;
+import com.lightstreamer.interfaces.data.SubscriptionException;
+
+/**
+ * End-to-end load test: runs Generators and StockQuotesJMSDataAdapters
+ * in this JVM over the in-VM JMS provider, with a RecordingListener in
+ * place of the Lightstreamer Kernel, and reports throughput, lost and
+ * out-of-order updates and latency percentiles.
+ * Since the Generator serves one adapter only, each adapter gets its own
+ * Generator and in-VM broker (a "pipeline").
+ *
+ * Usage: LoadTest [configuration file]; all parameters are optional:
+ *   adapters              number of pipelines (1)
+ *   items                 subscribed items per adapter, 1..30 (30)
+ *   pattern               "all" (subscribe once) or "churn" (keep
+ *                         unsubscribing and resubscribing random items) (all)
+ *   churnMillis           pause between churn operations (100)
+ *   simulatorSpeedup      speed-up of the classic update rates (10)
+ *   brokerLatencyMillis   latency injected by the in-VM broker (0)
+ *   snapshotsPerSecond    snapshot pacing of the Generators, 0 = none (0)
+ *   lazySimulation        as for the Generator, true to only simulate the
+ *                         subscribed items (false)
+ *   warmupSeconds         time before measuring (5)
+ *   durationSeconds       measurement time (30)
+ *   msgPoolSize           as for the Adapter and the Generator (15)
+ *   threadMode            as for the Adapter and the Generator (platform)
+ *   compressionThreshold  as for the Generator, 0 = no compression (0)
+ *   timeToLiveMillis      as for the Generator, 0 = never expire (0)
+ *   maxLagMillis          as for the Adapter, 0 = no flow control (0)
+ *   maxAgeMillis          as for the Adapter, 0 = no freshness check (0)
+ *   staleUpdates          as for the Adapter, "conflate" or "drop" (conflate)
+ *   coalesceWindowMillis  as for the Adapter, 0 = no coalescing (0)
+ *   kernelDelayMicros     time taken by each update in the kernel, to
+ *                         simulate a slow one (0)
+ *   heartbeatLane         true to send the heartbeats on a topic of their
+ *                         own (see heartbeatTopicName) (false)
+ *   dispatchRingSize      as for the Adapter, 0 = no dispatch ring (0)
+ *   dispatchWait          as for the Adapter, "spin", "yield" or "park" (park)
+ *   hotItemsTop           as for the Adapter, the hottest items reported
+ *                         (summed over the pipelines), 0 = none (0)
+ *   simulatorSeed         seed of the simulators, for repeatable runs; each
+ *                         pipeline gets seed + its index (none)
+ *   loadProfile and its parameters (targetRate, zipfExponent, rampToRate,
+ *   rampSeconds, stepRate, stepSeconds, bursts), as for the Generator
+ *   (the classic timings)
+ */
+public class LoadTest {
+
+    private static final String FACTORY = InVMInitialContextFactory.class.getName();
+    private static final String HEARTBEAT_TOPIC = "dynamicTopics/stocksHeartbeats";
+    private static final int MAX_ITEMS = 30;
+    private static final long DRAIN_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        Properties params = new Properties();
+        if (args != null && args.length > 0 && args[0] != null) {
+            try {
+                params.load(new FileInputStream(args[0]));
+            } catch (IOException e) {
+                System.out.println("Can't read configuration file " + args[0] + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        LoadTest test = new LoadTest(params);
+        test.run();
+        System.exit(0);
+    }
+
+    private final int adapters;
+    private final int items;
+    private final boolean churn;
+    private final int churnMillis;
+    private final int simulatorSpeedup;
+    private final int brokerLatencyMillis;
+    private final int snapshotsPerSecond;
+    private final boolean lazySimulation;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+    private final int msgPoolSize;
+    private final String threadMode;
+    private final int compressionThreshold;
+    private final int timeToLiveMillis;
+    private final int maxLagMillis;
+    private final int maxAgeMillis;
+    private final String staleUpdates;
+    private final int coalesceWindowMillis;
+    private final int kernelDelayMicros;
+    private final boolean heartbeatLane;
+    private final int dispatchRingSize;
+    private final String dispatchWait;
+    private final int hotItemsTop;
+    private final LoadProfile profile;
+    private final Long seed;
+
+    private final ArrayList<Pipeline> pipelines = new ArrayList<Pipeline>();
+    private volatile boolean churning = false;
+
+    public LoadTest(Properties params) {
+        adapters = Math.max(1, getParam(params, "adapters", 1));
+        int requestedItems = getParam(params, "items", MAX_ITEMS);
+        if (requestedItems > MAX_ITEMS || requestedItems < 1) {
+            System.out.println("items must be in 1.." + MAX_ITEMS + ", the items known to the Generator. Using " + MAX_ITEMS);
+            requestedItems = MAX_ITEMS;
+        }
+        items = requestedItems;
+        churn = "churn".equals(params.getProperty("pattern", "all"));
+        churnMillis = getParam(params, "churnMillis", 100);
+        simulatorSpeedup = getParam(params, "simulatorSpeedup", 10);
+        brokerLatencyMillis = getParam(params, "brokerLatencyMillis", 0);
+        snapshotsPerSecond = getParam(params, "snapshotsPerSecond", 0);
+        lazySimulation = "true".equalsIgnoreCase(params.getProperty("lazySimulation", "false"));
+        warmupSeconds = getParam(params, "warmupSeconds", 5);
+        durationSeconds = getParam(params, "durationSeconds", 30);
+        msgPoolSize = getParam(params, "msgPoolSize", 15);
+        threadMode = params.getProperty("threadMode", Activities.PLATFORM);
+        compressionThreshold = getParam(params, "compressionThreshold", 0);
+        timeToLiveMillis = getParam(params, "timeToLiveMillis", 0);
+        maxLagMillis = getParam(params, "maxLagMillis", 0);
+        maxAgeMillis = getParam(params, "maxAgeMillis", 0);
+        staleUpdates = params.getProperty("staleUpdates", "conflate");
+        coalesceWindowMillis = getParam(params, "coalesceWindowMillis", 0);
+        kernelDelayMicros = getParam(params, "kernelDelayMicros", 0);
+        heartbeatLane = "true".equalsIgnoreCase(params.getProperty("heartbeatLane", "false"));
+        dispatchRingSize = getParam(params, "dispatchRingSize", 0);
+        dispatchWait = params.getProperty("dispatchWait", "park");
+        hotItemsTop = getParam(params, "hotItemsTop", 0);
+        profile = LoadProfile.fromProperties(params);
+        String seedParam = params.getProperty("simulatorSeed");
+        seed = seedParam == null ? null : Long.valueOf(seedParam.trim());
+    }
+
+    public void run() throws Exception {
+        System.out.println("Starting " + adapters + " pipeline(s) with " + items + " item(s) each, pattern " + (churn ? "churn" : "all")
+                + ", " + profile.getType() + " load profile, simulator speed-up " + simulatorSpeedup + ", broker latency " + brokerLatencyMillis + "ms"
+                + (seed != null ? ", seed " + seed : ""));
+        //before the Generators are started (the adapters configure it too)
+        Activities.configure(threadMode);
+        for (int i = 0; i < adapters; i++) {
+            Pipeline pipeline = new Pipeline(i);
+            pipeline.start();
+            pipelines.add(pipeline);
+        }
+
+        ArrayList<Thread> churners = new ArrayList<Thread>();
+        if (churn) {
+            churning = true;
+            for (Pipeline pipeline : pipelines) {
+                Thread churner = new ChurnThread(pipeline);
+                churner.start();
+                churners.add(churner);
+            }
+        }
+
+        System.out.println("Warming up for " + warmupSeconds + "s...");
+        Thread.sleep(warmupSeconds * 1000L);
+        for (Pipeline pipeline : pipelines) {
+            pipeline.recorder.startMeasuring();
+        }
+        System.out.println("Measuring for " + durationSeconds + "s...");
+        long start = System.nanoTime();
+        Thread.sleep(durationSeconds * 1000L);
+        long end = System.nanoTime();
+        for (Pipeline pipeline : pipelines) {
+            pipeline.recorder.stopMeasuring();
+        }
+
+        churning = false;
+        for (Thread churner : churners) {
+            churner.join();
+        }
+        //let the updates in flight arrive
+        Thread.sleep(DRAIN_MILLIS);
+
+        report((end - start) / 1e9, end);
+    }
+
+    private void report(double seconds, long endNanos) {
+        long published = 0;
+        long delivered = 0;
+        long snapshots = 0;
+        long statusUpdates = 0;
+        long outOfOrder = 0;
+        long gaps = 0;
+        long undelivered = 0;
+        long brokerSent = 0;
+        long expired = 0;
+        long staleDropped = 0;
+        long staleConflated = 0;
+        long ringPeak = 0;
+        long feedLosses = 0;
+        long coalesced = 0;
+        long ringWaits = 0;
+        long simulated = 0;
+        int parked = 0;
+        LatencyHistogram latencies = new LatencyHistogram();
+        for (Pipeline pipeline : pipelines) {
+            RecordingListener recorder = pipeline.recorder;
+            published += recorder.getPublished();
+            delivered += recorder.getDelivered();
+            snapshots += recorder.getSnapshots();
+            statusUpdates += recorder.getStatusUpdates();
+            outOfOrder += recorder.getOutOfOrder();
+            gaps += recorder.getGaps();
+            undelivered += recorder.getUndelivered(endNanos);
+            recorder.addLatenciesTo(latencies);
+            brokerSent += pipeline.broker.getSentCount();
+            expired += pipeline.broker.getExpiredCount();
+            staleDropped += pipeline.adapter.getStaleDropped();
+            staleConflated += pipeline.adapter.getStaleConflated();
+            feedLosses += pipeline.adapter.getFeedLossCount();
+            coalesced += pipeline.adapter.getCoalescedRequests();
+            ringPeak = Math.max(ringPeak, pipeline.adapter.getDispatchPeakDepth());
+            ringWaits += pipeline.adapter.getDispatchProducerWaits();
+            simulated += pipeline.feed.getSentEvents();
+            parked += pipeline.feed.getParkedCount();
+        }
+
+        System.out.println();
+        System.out.println("==== Load test results ====");
+        System.out.println(String.format(Locale.ROOT, "measured time:        %.1f s", seconds));
+        System.out.println(String.format(Locale.ROOT, "published updates:    %d (%.0f msg/s)", published, published / seconds));
+        System.out.println(String.format(Locale.ROOT, "delivered updates:    %d (%.0f msg/s)", delivered, delivered / seconds));
+        System.out.println("  of which snapshots: " + snapshots);
+        System.out.println("status updates:       " + statusUpdates);
+        System.out.println("out-of-order:         " + outOfOrder);
+        System.out.println("lost (gaps):          " + gaps);
+        System.out.println("never delivered:      " + undelivered);
+        System.out.println("simulated updates:    " + simulated + " (since the start" + (lazySimulation ? ", " + parked + " stock(s) parked now)" : ")"));
+        System.out.println("broker messages:      " + brokerSent + " (including heartbeats and requests)");
+        System.out.println("expired in broker:    " + expired);
+        System.out.println("feed losses:          " + feedLosses);
+        if (coalesceWindowMillis > 0) {
+            System.out.println("coalesced requests:   " + coalesced + " (not sent to the Generators)");
+        }
+        System.out.println("stale at adapter:     " + staleDropped + " dropped, " + staleConflated + " conflated");
+        if (dispatchRingSize > 0) {
+            System.out.println("dispatch ring:        peak depth " + ringPeak + ", full " + ringWaits + " times");
+        }
+        System.out.println(String.format(Locale.ROOT, "latency (us):         mean %.0f, p50 %d, p90 %d, p99 %d, p99.9 %d, max %d",
+                latencies.getMean(), latencies.getPercentile(50), latencies.getPercentile(90),
+                latencies.getPercentile(99), latencies.getPercentile(99.9), latencies.getMax()));
+        if (hotItemsTop > 0) {
+            printHotItems(HotItemTracker.UPDATES, "msg/s");
+            printHotItems(HotItemTracker.BYTES, "bytes/s");
+            printHotItems(HotItemTracker.DISCARDS, "discarded/s");
+        }
+    }
+
+    private void printHotItems(int metric, String unit) {
+        //the items are the same in all the pipelines
+        final HashMap<String,Double> rates = new HashMap<String,Double>();
+        for (Pipeline pipeline : pipelines) {
+            for (HotItemTracker.HotItem hot : pipeline.adapter.getHotItems(metric, hotItemsTop)) {
+                Double rate = rates.get(hot.item);
+                rates.put(hot.item, (rate == null ? 0 : rate.doubleValue()) + hot.rate);
+            }
+        }
+        ArrayList<String> hottest = new ArrayList<String>(rates.keySet());
+        Collections.sort(hottest, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return Double.compare(rates.get(b), rates.get(a));
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < hottest.size() && i < hotItemsTop; i++) {
+            sb.append(i == 0 ? "" : ", ").append(hottest.get(i)).append(String.format(Locale.ROOT, " %.1f", rates.get(hottest.get(i))));
+        }
+        System.out.println(String.format(Locale.ROOT, "hot items by %-10s %s (%s)", HotItemTracker.getMetricName(metric) + ":",
+                hottest.isEmpty() ? "none" : sb.toString(), unit));
+    }
+
+    /**
+     * A Generator, an in-VM broker and an adapter, with its recorder.
+     */
+    private class Pipeline {
+
+        final int index;
+        final String url;
+        final InVMBroker broker;
+        final RecordingListener recorder = new RecordingListener();
+        final StockQuotesJMSDataAdapter adapter = new StockQuotesJMSDataAdapter();
+        final HashMap<String,Boolean> subscribed = new HashMap<String,Boolean>();
+        ExternalFeedSimulator feed;
+
+        Pipeline(int index) {
+            this.index = index;
+            url = InVMBroker.URL_PREFIX + "loadtest-" + index;
+            broker = InVMBroker.forURL(url);
+            broker.setLatencyMillis(brokerLatencyMillis);
+            broker.setSendObserver(recorder);
+        }
+
+        void start() throws DataProviderException, SubscriptionException, FailureException {
+            feed = new ExternalFeedSimulator(simulatorSpeedup);
+            feed.setSnapshotsPerSecond(snapshotsPerSecond);
+            feed.setLazy(lazySimulation);
+            feed.setLoadProfile(profile);
+            if (seed != null) {
+                feed.setSeed(seed.longValue() + index);
+            }
+            Generator generator = new Generator(url, FACTORY, "ConnectionFactory", "ConnectionFactory", "dynamicTopics/stocksTopic", "dynamicQueues/stocksQueue",
+                    msgPoolSize, 1000, feed);
+            generator.setCompressionThreshold(compressionThreshold);
+            generator.setDeliveryOptions(false, timeToLiveMillis);
+            if (heartbeatLane) {
+                generator.setHeartbeatTopicName(HEARTBEAT_TOPIC);
+            }
+
+            Map<String,String> adapterParams = new HashMap<String,String>();
+            adapterParams.put("jmsUrl", url);
+            adapterParams.put("initialContextFactory", FACTORY);
+            adapterParams.put("topicConnectionFactory", "ConnectionFactory");
+            adapterParams.put("queueConnectionFactory", "ConnectionFactory");
+            adapterParams.put("topicName", "dynamicTopics/stocksTopic");
+            adapterParams.put("queueName", "dynamicQueues/stocksQueue");
+            adapterParams.put("msgPoolSize", String.valueOf(msgPoolSize));
+            adapterParams.put("recoveryPauseMillis", "1000");
+            adapterParams.put("threadMode", threadMode);
+            adapterParams.put("maxLagMillis", String.valueOf(maxLagMillis));
+            adapterParams.put("maxAgeMillis", String.valueOf(maxAgeMillis));
+            adapterParams.put("staleUpdates", staleUpdates);
+            adapterParams.put("coalesceWindowMillis", String.valueOf(coalesceWindowMillis));
+            if (heartbeatLane) {
+                adapterParams.put("heartbeatTopicName", HEARTBEAT_TOPIC);
+            }
+            adapterParams.put("dispatchRingSize", String.valueOf(dispatchRingSize));
+            adapterParams.put("dispatchWait", dispatchWait);
+            adapterParams.put("hotItemsTop", String.valueOf(hotItemsTop));
+            adapterParams.put("hotItemsLogSeconds", "0");
+            adapter.init(adapterParams, null);
+            recorder.setDelayMicros(kernelDelayMicros);
+            adapter.setListener(recorder);
+
+            for (int i = 1; i <= items; i++) {
+                subscribe("item" + i);
+            }
+        }
+
+        synchronized void subscribe(String itemName) throws SubscriptionException, FailureException {
+            recorder.track(itemName);
+            adapter.subscribe(itemName, url + "/" + itemName, false);
+            subscribed.put(itemName, Boolean.TRUE);
+        }
+
+        synchronized void unsubscribe(String itemName) throws SubscriptionException, FailureException {
+            recorder.untrack(itemName);
+            adapter.unsubscribe(itemName);
+            subscribed.put(itemName, Boolean.FALSE);
+        }
+
+        synchronized boolean isSubscribed(String itemName) {
+            return Boolean.TRUE.equals(subscribed.get(itemName));
+        }
+
+    }
+
+    /**
+     * Keeps on flipping the subscription of random items.
+     */
+    private class ChurnThread extends Thread {
+
+        private final Pipeline pipeline;
+        private final Random random = new Random();
+
+        ChurnThread(Pipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+
+        public void run() {
+            while (churning) {
+                String itemName = "item" + (random.nextInt(items) + 1);
+                try {
+                    if (pipeline.isSubscribed(itemName)) {
+                        pipeline.unsubscribe(itemName);
+                    } else {
+                        pipeline.subscribe(itemName);
+                    }
+                    Thread.sleep(churnMillis);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    System.out.println("Churn error on " + itemName + ": " + e.getMessage());
+                }
+            }
+        }
+
+    }
+
+    private static int getParam(Properties params, String toGet, int def) {
+        String res = params.getProperty(toGet);
+        if (res == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(res.trim());
+        } catch (NumberFormatException nfe) {
+            System.out.println(toGet + " must be a number but it isn't. Using default.");
+            return def;
+        }
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.load_test;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.BytesMessage;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.ObjectMessage;
+
+import stocklist_jms_demo.adapters.QuoteItemEvent;
+import stocklist_jms_demo.common.FeedMessage;
+import stocklist_jms_demo.common.PayloadCodec;
+import stocklist_jms_demo.common.QuoteRecord;
+import stocklist_jms_demo.invm.InVMBroker;
+
+import com.lightstreamer.interfaces.data.IndexedItemEvent;
+import com.lightstreamer.interfaces.data.ItemEvent;
+import com.lightstreamer.interfaces.data.ItemEventListener;
+import com.lightstreamer.interfaces.data.OldItemEvent;
+
+/**
+ * Plays the Lightstreamer Kernel for one adapter of the load test.
+ * It also taps the in-VM broker: since the in-VM provider delivers
+ * payloads by reference, the QuoteRecord (or values map) published by
+ * the Generator is the very same object received by smartUpdate, which lets us
+ * match each update with its publication time and sequence number.
+ * Compressed messages are the exception, as smartUpdate receives a
+ * decompressed copy: those updates are matched by item and values.
+ */
+public class RecordingListener implements ItemEventListener, InVMBroker.SendObserver {
+
+    /**
+     * What we know about a published update.
+     */
+    private static class Sent {
+        final String itemName;
+        final long seq;
+        final long nanos;
+
+        Sent(String itemName, long seq, long nanos) {
+            this.itemName = itemName;
+            this.seq = seq;
+            this.nanos = nanos;
+        }
+    }
+
+    //the published and not yet delivered updates, keyed by identity of their values map
+    private final IdentityHashMap<Object,Sent> pending = new IdentityHashMap<Object,Sent>();
+    //the same for the compressed updates, keyed by item name and values
+    private final HashMap<Object,Sent> pendingCopies = new HashMap<Object,Sent>();
+    //decodes the compressed messages, under its own lock
+    private final PayloadCodec codec = new PayloadCodec();
+    //per item: the sequence number of the last published update
+    private final HashMap<String,Long> publishedSeq = new HashMap<String,Long>();
+    //per item: the sequence number of the last delivered update (absent if not subscribed)
+    private final HashMap<String,Long> deliveredSeq = new HashMap<String,Long>();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private boolean measuring = false;
+    private long published = 0;
+    private long delivered = 0;
+    private long snapshots = 0;
+    private long statusUpdates = 0;
+    private long outOfOrder = 0;
+    private long gaps = 0;
+
+    //each update takes at least this long, as with a slow kernel
+    private volatile long delayNanos = 0;
+
+    /**
+     * Makes each update take at least delayMicros, as with a slow kernel.
+     */
+    public void setDelayMicros(long delayMicros) {
+        this.delayNanos = Math.max(0, delayMicros) * 1000;
+    }
+
+    /**
+     * Starts tracking an item; call before subscribing it.
+     */
+    public synchronized void track(String itemName) {
+        deliveredSeq.put(itemName, Long.valueOf(-1));
+    }
+
+    /**
+     * Stops tracking an item; call before unsubscribing it.
+     * Updates still in flight for it won't count as undelivered.
+     */
+    public synchronized void untrack(String itemName) {
+        deliveredSeq.remove(itemName);
+        untrack(pending.values().iterator(), itemName);
+        untrack(pendingCopies.values().iterator(), itemName);
+    }
+
+    private static void untrack(Iterator<Sent> it, String itemName) {
+        while (it.hasNext()) {
+            if (it.next().itemName.equals(itemName)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Starts (or restarts, after the warm-up) the measurement.
+     */
+    public synchronized void startMeasuring() {
+        measuring = true;
+        published = 0;
+        delivered = 0;
+        snapshots = 0;
+        statusUpdates = 0;
+        outOfOrder = 0;
+        gaps = 0;
+        latencies.reset();
+    }
+
+    public synchronized void stopMeasuring() {
+        measuring = false;
+    }
+
+    ///////////////// SendObserver
+
+    public void onSend(Destination destination, Message message) {
+        boolean encoded;
+        try {
+            encoded = message.propertyExists(PayloadCodec.CODEC_PROPERTY);
+        } catch (JMSException e) {
+            return;
+        }
+        if (!encoded && !(message instanceof ObjectMessage)) {
+            return;
+        }
+        Object obj;
+        try {
+            if (encoded) {
+                //still in write mode: the broker routes copies of it anyway
+                ((BytesMessage) message).reset();
+                synchronized (codec) {
+                    obj = codec.decode(message);
+                }
+            } else {
+                obj = ((ObjectMessage) message).getObject();
+            }
+        } catch (JMSException e) {
+            return;
+        }
+        if (!(obj instanceof FeedMessage)) {
+            //heartbeats
+            return;
+        }
+        FeedMessage feedMsg = (FeedMessage) obj;
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (!deliveredSeq.containsKey(feedMsg.itemName)) {
+                return;
+            }
+            Long last = publishedSeq.get(feedMsg.itemName);
+            long seq = last == null ? 0 : last.longValue() + 1;
+            publishedSeq.put(feedMsg.itemName, Long.valueOf(seq));
+            Sent sent = new Sent(feedMsg.itemName, seq, now);
+            if (encoded) {
+                //decoded lazily on the adapter side, but we need the values now
+                Map values;
+                if (feedMsg.quote != null) {
+                    values = feedMsg.quote.toMap();
+                } else if (feedMsg.encodedValues != null) {
+                    values = feedMsg.encodedValues.toMap();
+                } else {
+                    values = feedMsg.currentValues;
+                }
+                pendingCopies.put(copyKey(feedMsg.itemName, values), sent);
+            } else {
+                pending.put(feedMsg.quote != null ? feedMsg.quote : feedMsg.currentValues, sent);
+            }
+            if (measuring) {
+                published++;
+            }
+        }
+    }
+
+    ///////////////// ItemEventListener
+
+    public void smartUpdate(Object itemHandle, Map itemEvent, boolean isSnapshot) {
+        record(itemHandle, itemEvent, itemEvent, isSnapshot);
+    }
+
+    /**
+     * The key is the object published by the Generator, if the adapter
+     * forwarded it as is (or a view on it).
+     */
+    private void record(Object itemHandle, Object key, Map itemEvent, boolean isSnapshot) {
+        long now = System.nanoTime();
+        if (delayNanos > 0) {
+            LockSupport.parkNanos(delayNanos);
+        }
+        synchronized (this) {
+            Sent sent = key == null ? null : pending.remove(key);
+            if (sent == null && !pendingCopies.isEmpty()) {
+                if (itemEvent == null) {
+                    itemEvent = ((QuoteRecord) key).toMap();
+                }
+                //the handles used by the load test are "<url>/<item name>"
+                String handle = String.valueOf(itemHandle);
+                sent = pendingCopies.remove(copyKey(handle.substring(handle.lastIndexOf('/') + 1), itemEvent));
+            }
+            if (sent == null) {
+                //generated by the adapter itself (e.g. the inactive status)
+                if (measuring) {
+                    statusUpdates++;
+                }
+                return;
+            }
+            Long last = deliveredSeq.get(sent.itemName);
+            if (last != null) {
+                if (sent.seq <= last.longValue()) {
+                    if (measuring) {
+                        outOfOrder++;
+                    }
+                } else {
+                    if (measuring && last.longValue() >= 0) {
+                        gaps += sent.seq - last.longValue() - 1;
+                    }
+                    deliveredSeq.put(sent.itemName, Long.valueOf(sent.seq));
+                }
+            }
+            if (measuring) {
+                delivered++;
+                if (isSnapshot) {
+                    snapshots++;
+                }
+                latencies.record((now - sent.nanos) / 1000);
+            }
+        }
+    }
+
+    public void smartUpdate(Object itemHandle, ItemEvent itemEvent, boolean isSnapshot) {
+    }
+
+    public void smartUpdate(Object itemHandle, OldItemEvent itemEvent, boolean isSnapshot) {
+    }
+
+    public void smartUpdate(Object itemHandle, IndexedItemEvent itemEvent, boolean isSnapshot) {
+        if (itemEvent instanceof QuoteItemEvent) {
+            //the values are only built if needed
+            record(itemHandle, ((QuoteItemEvent) itemEvent).getQuote(), null, isSnapshot);
+            return;
+        }
+        //only received from the compressed messages, matched by values
+        HashMap<String,Object> values = new HashMap<String,Object>();
+        for (int i = 0; i <= itemEvent.getMaximumIndex(); i++) {
+            values.put(itemEvent.getName(i), itemEvent.getValue(i));
+        }
+        record(itemHandle, null, values, isSnapshot);
+    }
+
+    public void update(String itemName, ItemEvent itemEvent, boolean isSnapshot) {
+    }
+
+    public void update(String itemName, OldItemEvent itemEvent, boolean isSnapshot) {
+    }
+
+    public void update(String itemName, Map itemEvent, boolean isSnapshot) {
+    }
+
+    public void update(String itemName, IndexedItemEvent itemEvent, boolean isSnapshot) {
+    }
+
+    public void endOfSnapshot(String itemName) {
+    }
+
+    public void smartEndOfSnapshot(Object itemHandle) {
+    }
+
+    public void clearSnapshot(String itemName) {
+    }
+
+    public void smartClearSnapshot(Object itemHandle) {
+    }
+
+    public void failure(Throwable e) {
+        System.out.println("Adapter failure: " + e);
+    }
+
+    ///////////////// Results
+
+    /**
+     * Number of updates published before the given time and never delivered.
+     */
+    public synchronized long getUndelivered(long beforeNanos) {
+        long count = 0;
+        for (Sent sent : pending.values()) {
+            if (sent.nanos - beforeNanos < 0) {
+                count++;
+            }
+        }
+        for (Sent sent : pendingCopies.values()) {
+            if (sent.nanos - beforeNanos < 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Object copyKey(String itemName, Map<?,?> values) {
+        return new AbstractMap.SimpleImmutableEntry<String,Map<?,?>>(itemName, values);
+    }
+
+    public synchronized long getPublished() {
+        return published;
+    }
+
+    public synchronized long getDelivered() {
+        return delivered;
+    }
+
+    public synchronized long getSnapshots() {
+        return snapshots;
+    }
+
+    public synchronized long getStatusUpdates() {
+        return statusUpdates;
+    }
+
+    public synchronized long getOutOfOrder() {
+        return outOfOrder;
+    }
+
+    public synchronized long getGaps() {
+        return gaps;
+    }
+
+    /**
+     * Adds the latencies recorded here to the given histogram.
+     */
+    public synchronized void addLatenciesTo(LatencyHistogram target) {
+        target.add(latencies);
+    }
+
+}
@@ -0,0 +1,182 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.adapters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jms.Message;
+
+import org.junit.Test;
+
+/**
+ * Ordering and wrap-around of the DispatchRing; the arrival time of each
+ * message stands for its sequence, the messages themselves are null.
+ */
+public class DispatchRingTest {
+
+    private static final String[] STRATEGIES = { DispatchRing.PARK, DispatchRing.YIELD, DispatchRing.SPIN };
+
+    private static class Recorder implements DispatchRing.Handler {
+
+        final List<Long> arrivals = new ArrayList<Long>();
+
+        public void onMessage(Message message, long arrivalNanos) {
+            arrivals.add(arrivalNanos);
+        }
+    }
+
+    private static class Producer extends Thread {
+
+        private final DispatchRing ring;
+        private final long from;
+        private final long count;
+        volatile boolean result = true;
+
+        Producer(DispatchRing ring, long from, long count) {
+            this.ring = ring;
+            this.from = from;
+            this.count = count;
+        }
+
+        @Override
+        public void run() {
+            for (long i = from; i < from + count && result; i++) {
+                result = ring.publish(null, i);
+            }
+        }
+    }
+
+    @Test
+    public void testSizeIsRoundedUp() {
+        assertEquals(4, new DispatchRing(3, DispatchRing.PARK).getSize());
+        assertEquals(4, new DispatchRing(4, DispatchRing.PARK).getSize());
+        assertEquals(DispatchRing.PARK, new DispatchRing(4, "unknown").getWaitStrategy());
+    }
+
+    @Test
+    public void testFullRingWaitsAndWrapsAround() throws InterruptedException {
+        for (String strategy : STRATEGIES) {
+            DispatchRing ring = new DispatchRing(4, strategy);
+            for (long i = 0; i < 4; i++) {
+                assertTrue(ring.publish(null, i));
+            }
+            assertEquals(4, ring.getDepth());
+
+            //the fifth message goes in the first slot, once it is free
+            Producer producer = new Producer(ring, 4, 1);
+            producer.start();
+            waitForProducer(ring, 1);
+            assertTrue(producer.isAlive());
+            assertEquals(4, ring.getDepth());
+
+            Recorder recorder = new Recorder();
+            assertEquals(4, ring.consume(recorder));
+            producer.join(5000);
+            assertFalse(strategy, producer.isAlive());
+            assertTrue(producer.result);
+            assertEquals(1, ring.consume(recorder));
+            assertEquals(0, ring.consume(recorder));
+
+            assertEquals(5, recorder.arrivals.size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals(strategy, i, recorder.arrivals.get(i).longValue());
+            }
+            assertEquals(0, ring.getDepth());
+            assertEquals(4, ring.getPeakDepth());
+        }
+    }
+
+    @Test
+    public void testCloseReleasesWaitingProducer() throws InterruptedException {
+        for (String strategy : STRATEGIES) {
+            DispatchRing ring = new DispatchRing(2, strategy);
+            assertTrue(ring.publish(null, 0));
+            assertTrue(ring.publish(null, 1));
+
+            Producer producer = new Producer(ring, 2, 1);
+            producer.start();
+            waitForProducer(ring, 1);
+            ring.close();
+            producer.join(5000);
+            assertFalse(strategy, producer.isAlive());
+            assertFalse(strategy, producer.result);
+
+            //what was stored before the close is still there
+            Recorder recorder = new Recorder();
+            assertEquals(2, ring.consume(recorder));
+            assertEquals(1, recorder.arrivals.get(1).longValue());
+        }
+    }
+
+    @Test
+    public void testNoPublishAfterClose() {
+        for (String strategy : STRATEGIES) {
+            DispatchRing ring = new DispatchRing(4, strategy);
+            assertTrue(ring.publish(null, 0));
+            ring.close();
+            //the ring has room, but nobody would take the message
+            assertFalse(strategy, ring.publish(null, 1));
+            assertEquals(1, ring.getDepth());
+        }
+    }
+
+    @Test
+    public void testOrderAcrossManyWraps() throws InterruptedException {
+        final long count = 200000;
+        for (String strategy : STRATEGIES) {
+            if (DispatchRing.SPIN.equals(strategy) && Runtime.getRuntime().availableProcessors() < 2) {
+                //two spinning threads on one core only advance at each time slice
+                continue;
+            }
+            DispatchRing ring = new DispatchRing(8, strategy);
+            Producer producer = new Producer(ring, 0, count);
+            producer.start();
+
+            final long[] next = { 0 };
+            DispatchRing.Handler checker = new DispatchRing.Handler() {
+                public void onMessage(Message message, long arrivalNanos) {
+                    assertEquals(next[0], arrivalNanos);
+                    next[0]++;
+                }
+            };
+            while (next[0] < count) {
+                ring.await();
+                ring.consume(checker);
+            }
+            producer.join(5000);
+            assertTrue(producer.result);
+            assertEquals(0, ring.getDepth());
+            assertTrue(strategy, ring.getPeakDepth() <= 8);
+        }
+    }
+
+    //waits until the producer has found the ring full the given number of times
+    private static void waitForProducer(DispatchRing ring, long waits) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (ring.getProducerWaits() < waits) {
+            assertTrue("the producer never waited", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.adapters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import stocklist_jms_demo.adapters.HotItemTracker.HotItem;
+
+/**
+ * Window expiry and ranking of the HotItemTracker; the counts are added
+ * at times ahead of the clock, so that the slices expire without waiting
+ * (getTop, which reads the clock, then finds nothing to expire).
+ */
+public class HotItemTrackerTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void testSlicesExpireWithTheWindow() {
+        //6 slices of a second
+        HotItemTracker tracker = new HotItemTracker(6, 64, 4);
+        long now = System.nanoTime();
+        tracker.add(HotItemTracker.UPDATES, "item1", 100, now);
+        tracker.add(HotItemTracker.UPDATES, "item2", 10, now + 3 * SECOND);
+        assertEquals(100, count(tracker, "item1"));
+        assertEquals(10, count(tracker, "item2"));
+
+        //the slice of item1 is the oldest one of the window, then expires
+        tracker.add(HotItemTracker.UPDATES, "item2", 1, now + 5 * SECOND + SECOND / 2);
+        assertEquals(100, count(tracker, "item1"));
+        tracker.add(HotItemTracker.UPDATES, "item2", 1, now + 6 * SECOND + SECOND / 2);
+        assertEquals(0, count(tracker, "item1"));
+        assertEquals(12, count(tracker, "item2"));
+
+        tracker.add(HotItemTracker.UPDATES, "item3", 1, now + 9 * SECOND + SECOND / 2);
+        assertEquals(2, count(tracker, "item2"));
+        assertEquals(1, count(tracker, "item3"));
+    }
+
+    @Test
+    public void testLongSilenceClearsEverything() {
+        HotItemTracker tracker = new HotItemTracker(6, 64, 4);
+        long now = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            tracker.addUpdate("item1", 50, now + i * SECOND);
+        }
+        assertEquals(6, count(tracker, "item1"));
+        assertEquals(300, tracker.getTop(HotItemTracker.BYTES, 1).get(0).count);
+
+        tracker.add(HotItemTracker.DISCARDS, "item2", 1, now + 100 * SECOND);
+        assertTrue(tracker.getTop(HotItemTracker.UPDATES, 4).isEmpty());
+        assertTrue(tracker.getTop(HotItemTracker.BYTES, 4).isEmpty());
+        assertEquals("item2", tracker.getTop(HotItemTracker.DISCARDS, 4).get(0).item);
+    }
+
+    @Test
+    public void testHottestItemsAreKept() {
+        //room for 3 candidates among 20 items, item1 the hottest
+        HotItemTracker tracker = new HotItemTracker(60, 1024, 3);
+        long now = System.nanoTime();
+        for (int round = 0; round < 20; round++) {
+            for (int i = 1; i <= 20; i++) {
+                if (round < 21 - i) {
+                    tracker.add(HotItemTracker.UPDATES, "item" + i, 1, now);
+                }
+            }
+        }
+        List<HotItem> top = tracker.getTop(HotItemTracker.UPDATES, 3);
+        assertEquals(3, top.size());
+        assertEquals("item1", top.get(0).item);
+        assertEquals("item2", top.get(1).item);
+        assertEquals("item3", top.get(2).item);
+        //the sketch can only overestimate
+        assertTrue(top.get(0).count >= 20);
+        assertEquals(2, tracker.getTop(HotItemTracker.UPDATES, 2).size());
+    }
+
+    //the estimated updates of the item in the window, 0 if it is not reported
+    private static long count(HotItemTracker tracker, String item) {
+        HashMap<String,Long> counts = new HashMap<String,Long>();
+        for (HotItem hot : tracker.getTop(HotItemTracker.UPDATES, 4)) {
+            counts.put(hot.item, hot.count);
+        }
+        Long count = counts.get(item);
+        return count == null ? 0 : count.longValue();
+    }
+
+}
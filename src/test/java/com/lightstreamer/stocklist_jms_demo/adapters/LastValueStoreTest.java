@@ -0,0 +1,139 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.adapters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import stocklist_jms_demo.common.QuoteRecord;
+
+/**
+ * The values kept by LastValueStore across reopenings of its file, and
+ * the slots or files it must not trust.
+ */
+public class LastValueStoreTest {
+
+    //as laid out by LastValueStore: a 64 bytes header, then the slots,
+    //each with 16 bytes of length, time and CRC before the record
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_HEADER_SIZE = 16;
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("last_values", ".dat");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void testValuesSurviveAReopening() throws IOException {
+        LastValueStore store = new LastValueStore(file, 4);
+        //only a snapshot makes a complete record
+        store.update(1, quote(2, 100, 99), false);
+        assertNull(store.get(1));
+        store.update(1, quote(2, 100, 99), true);
+        QuoteRecord update = new QuoteRecord(2);
+        update.lastPrice = 101;
+        update.add(QuoteRecord.LAST_PRICE);
+        store.update(1, update, false);
+        //out of range: ignored
+        store.update(4, quote(5, 1, 1), true);
+        assertFalse(store.isStale(1));
+        store.force();
+
+        store = new LastValueStore(file, 4);
+        QuoteRecord read = store.get(1);
+        assertEquals(101, read.lastPrice);
+        assertEquals(99, read.bid);
+        assertTrue(read.has(QuoteRecord.BID));
+        assertTrue(store.isStale(1));
+        assertNull(store.get(0));
+        assertFalse(store.isStale(0));
+
+        //live values are no longer stale
+        store.update(1, update, false);
+        assertFalse(store.isStale(1));
+    }
+
+    @Test
+    public void testCorruptedSlotIsIgnored() throws IOException {
+        LastValueStore store = new LastValueStore(file, 4);
+        store.update(0, quote(1, 100, 99), true);
+        store.update(1, quote(2, 200, 199), true);
+        store.force();
+
+        //as after a crash in the middle of a write
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long pos = HEADER_SIZE + SLOT_HEADER_SIZE + 2;
+        raf.seek(pos);
+        int b = raf.read();
+        raf.seek(pos);
+        raf.write(b ^ 0xFF);
+        raf.close();
+
+        store = new LastValueStore(file, 4);
+        assertNull(store.get(0));
+        assertEquals(200, store.get(1).lastPrice);
+    }
+
+    @Test
+    public void testOtherLayoutClearsTheFile() throws IOException {
+        LastValueStore store = new LastValueStore(file, 4);
+        store.update(0, quote(1, 100, 99), true);
+        store.force();
+
+        store = new LastValueStore(file, 8);
+        assertNull(store.get(0));
+        assertEquals(HEADER_SIZE + 8L * LastValueStore.SLOT_SIZE, file.length());
+        store.update(7, quote(8, 800, 799), true);
+        store.force();
+
+        //the new layout is kept
+        store = new LastValueStore(file, 8);
+        assertNull(store.get(0));
+        assertEquals(800, store.get(7).lastPrice);
+    }
+
+    private static QuoteRecord quote(int stockId, long lastPrice, long bid) {
+        QuoteRecord quote = new QuoteRecord(stockId);
+        quote.stockName = "item" + stockId;
+        quote.add(QuoteRecord.STOCK_NAME);
+        quote.lastPrice = lastPrice;
+        quote.add(QuoteRecord.LAST_PRICE);
+        quote.bid = bid;
+        quote.add(QuoteRecord.BID);
+        return quote;
+    }
+
+}
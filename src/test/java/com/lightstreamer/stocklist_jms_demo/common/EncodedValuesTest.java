@@ -0,0 +1,127 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.UTFDataFormatException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+/**
+ * Round trips of EncodedValues, with names known to the schema and not.
+ */
+public class EncodedValuesTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        HashMap<String,String> values = new HashMap<String,String>();
+        values.put("stock_name", "Anduct");
+        values.put("last_price", "3.04");
+        values.put("item_status", null);
+        values.put("custom_field", "\u20ac 12");
+
+        EncodedValues encoded = read(write(values, FieldSchema.CURRENT_VERSION), FieldSchema.CURRENT_VERSION);
+        assertEquals(4, encoded.size());
+        assertEquals(values, encoded.toMap());
+        assertEquals("3.04", encoded.getValue(encoded.indexOf("last_price")));
+        assertEquals("\u20ac 12", encoded.getValue(encoded.indexOf("custom_field")));
+        assertNull(encoded.getValue(encoded.indexOf("item_status")));
+        assertEquals(-1, encoded.indexOf("bid"));
+        assertEquals(-1, encoded.indexOf("other_field"));
+    }
+
+    @Test
+    public void testNamesOnlyWithoutSchema() throws IOException {
+        HashMap<String,String> values = new HashMap<String,String>();
+        values.put("stock_name", "Anduct");
+        values.put("bid", "3.02");
+
+        byte[] bytes = write(values, FieldSchema.NONE);
+        assertEquals(values, read(bytes, FieldSchema.NONE).toMap());
+        //known names are shorter
+        assertEquals(true, bytes.length > write(values, FieldSchema.CURRENT_VERSION).length);
+    }
+
+    @Test
+    public void testIdsUnknownToTheReaderAreRejected() throws IOException {
+        HashMap<String,String> values = new HashMap<String,String>();
+        values.put("stock_name", "Anduct");
+        try {
+            read(write(values, FieldSchema.CURRENT_VERSION), FieldSchema.NONE);
+            fail();
+        } catch (InvalidObjectException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testCorruptedLengthsAreRejected() throws IOException {
+        HashMap<String,String> values = new HashMap<String,String>();
+        values.put("custom_field", "value");
+        byte[] bytes = write(values, FieldSchema.CURRENT_VERSION);
+        //the length of the name (after the count, the size and the id) beyond the end
+        bytes[9] = 0x7F;
+        try {
+            read(bytes, FieldSchema.CURRENT_VERSION);
+            fail();
+        } catch (InvalidObjectException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testTooLongStringsAreRejected() throws IOException {
+        char[] chars = new char[Short.MAX_VALUE + 1];
+        Arrays.fill(chars, 'x');
+        HashMap<String,String> values = new HashMap<String,String>();
+        values.put("stock_name", new String(chars, 0, Short.MAX_VALUE));
+        assertEquals(Short.MAX_VALUE, read(write(values, FieldSchema.CURRENT_VERSION), FieldSchema.CURRENT_VERSION).getValue(0).length());
+
+        values.put("stock_name", new String(chars));
+        try {
+            write(values, FieldSchema.CURRENT_VERSION);
+            fail();
+        } catch (UTFDataFormatException e) {
+            //expected
+        }
+    }
+
+    private static byte[] write(HashMap<String,String> values, int schemaVersion) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        EncodedValues.write(out, values, schemaVersion);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static EncodedValues read(byte[] bytes, int schemaVersion) throws IOException {
+        return EncodedValues.read(new DataInputStream(new ByteArrayInputStream(bytes)), schemaVersion);
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Records written by FeedJournal and read back by FeedJournalReader,
+ * across segments.
+ */
+public class FeedJournalTest {
+
+    private static final long MILLI = 1000000L;
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("journal", "");
+        assertTrue(dir.delete());
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testRecordsComeBackInOrder() throws IOException {
+        long start = System.nanoTime();
+        FeedJournal journal = new FeedJournal(dir, 256);
+        journal.append(start, new HeartbeatMessage(7));
+        for (int i = 1; i <= 50; i++) {
+            journal.append(start + i * MILLI, new FeedMessage("item" + i, values(i), i == 1, "h" + i, 7, i));
+        }
+        //ignored
+        journal.append(start + 51 * MILLI, "not a feed payload");
+        assertEquals(51, journal.getRecords());
+        journal.close();
+        assertTrue(FeedJournal.listSegments(dir).length > 1);
+
+        FeedJournalReader reader = new FeedJournalReader(dir);
+        assertTrue(reader.next());
+        assertEquals(FeedJournal.HEARTBEAT, reader.getType());
+        assertEquals(7, ((HeartbeatMessage) reader.getPayload()).random);
+        long first = reader.getArrivalNanos();
+        for (int i = 1; i <= 50; i++) {
+            assertTrue(reader.next());
+            assertEquals(FeedJournal.FEED, reader.getType());
+            FeedMessage message = (FeedMessage) reader.getPayload();
+            assertEquals("item" + i, message.itemName);
+            assertEquals("h" + i, message.handleId);
+            assertEquals(i, message.seq);
+            assertEquals(i == 1, message.isSnapshot);
+            assertEquals(values(i), message.currentValues);
+            //the gaps are kept within a segment; a new one is aligned again to the wall clock
+            long gap = reader.getArrivalNanos() - first;
+            assertTrue(Math.abs(gap - i * MILLI) < 1000 * MILLI);
+        }
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void testTruncatedRecordEndsTheSegment() throws IOException {
+        long start = System.nanoTime();
+        FeedJournal journal = new FeedJournal(dir, 1024 * 1024);
+        for (int i = 1; i <= 3; i++) {
+            journal.append(start + i * MILLI, new FeedMessage("item" + i, values(i), false, "h", 7, i));
+        }
+        journal.close();
+
+        //as after a crash in the middle of a write
+        File segment = FeedJournal.listSegments(dir)[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        FeedJournalReader reader = new FeedJournalReader(dir);
+        assertTrue(reader.next());
+        assertTrue(reader.next());
+        assertEquals(2, ((FeedMessage) reader.getPayload()).seq);
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    private static HashMap<String,String> values(int i) {
+        HashMap<String,String> values = new HashMap<String,String>();
+        values.put("stock_name", "item" + i);
+        values.put("last_price", String.valueOf(i));
+        return values;
+    }
+
+}
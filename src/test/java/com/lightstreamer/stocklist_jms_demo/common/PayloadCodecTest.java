@@ -0,0 +1,151 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Session;
+import javax.jms.TopicConnection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import stocklist_jms_demo.invm.InVMBroker;
+import stocklist_jms_demo.invm.InVMConnectionFactory;
+
+/**
+ * Round trips through PayloadCodec, above and below the threshold, and
+ * the messages it must refuse; the messages come from the in-VM provider.
+ */
+public class PayloadCodecTest {
+
+    private TopicConnection connection;
+    private Session session;
+
+    @Before
+    public void openSession() throws JMSException {
+        connection = new InVMConnectionFactory(InVMBroker.get("PayloadCodecTest")).createTopicConnection();
+        session = connection.createTopicSession(false, Session.AUTO_ACKNOWLEDGE);
+    }
+
+    @After
+    public void closeSession() throws JMSException {
+        connection.close();
+    }
+
+    @Test
+    public void testRoundTripAboveThreshold() throws JMSException {
+        PayloadCodec codec = new PayloadCodec();
+        FeedMessage sent = new FeedMessage("item1", values(), true, "7", 42, 3);
+        BytesMessage message = codec.encode(session, sent, 1);
+        assertEquals(PayloadCodec.DEFLATE, message.getStringProperty(PayloadCodec.CODEC_PROPERTY));
+        message.reset();
+        //the dictionary should make the most of the message
+        assertTrue(message.getBodyLength() < message.getIntProperty(PayloadCodec.LENGTH_PROPERTY) / 2);
+
+        FeedMessage received = (FeedMessage) new PayloadCodec().decode(message);
+        assertEquals("item1", received.itemName);
+        assertEquals("7", received.handleId);
+        assertEquals(42, received.random);
+        assertEquals(3, received.seq);
+        assertEquals(true, received.isSnapshot);
+        assertEquals(values(), received.currentValues);
+    }
+
+    @Test
+    public void testRoundTripBelowThreshold() throws JMSException {
+        PayloadCodec codec = new PayloadCodec();
+        BytesMessage message = codec.encode(session, new HeartbeatMessage(42), 100000);
+        assertEquals(PayloadCodec.SERIALIZED, message.getStringProperty(PayloadCodec.CODEC_PROPERTY));
+        message.reset();
+        assertEquals(42, ((HeartbeatMessage) codec.decode(message)).random);
+    }
+
+    @Test
+    public void testBuffersAreReused() throws JMSException {
+        PayloadCodec codec = new PayloadCodec();
+        PayloadCodec decoder = new PayloadCodec();
+        for (int i = 0; i < 3; i++) {
+            //a long one, then shorter ones in the same buffers
+            HashMap<String,String> values = values();
+            values.put("notes", i == 0 ? new String(new char[5000]).replace('\0', 'x') : "short");
+            BytesMessage message = codec.encode(session, new FeedMessage("item" + i, values, false, "1", 0, i), 1);
+            message.reset();
+            assertEquals(values, ((FeedMessage) decoder.decode(message)).currentValues);
+        }
+    }
+
+    @Test
+    public void testOtherDictionaryIsRejected() throws JMSException {
+        BytesMessage message = new PayloadCodec().encode(session, new HeartbeatMessage(42), 1);
+        //as sent by a peer with different classes
+        message.setStringProperty(PayloadCodec.CODEC_PROPERTY, "deflate-0");
+        message.reset();
+        assertRejected(message);
+    }
+
+    @Test
+    public void testWrongLengthsAreRejected() throws JMSException {
+        for (int length : new int[] { -1, PayloadCodec.MAX_LENGTH + 1, 10 }) {
+            BytesMessage message = new PayloadCodec().encode(session, new FeedMessage("item1", values(), false, "1", 0, 1), 1);
+            message.setIntProperty(PayloadCodec.LENGTH_PROPERTY, length);
+            message.reset();
+            assertRejected(message);
+        }
+
+        BytesMessage message = new PayloadCodec().encode(session, new FeedMessage("item1", values(), false, "1", 0, 1), 1);
+        message.setIntProperty(PayloadCodec.LENGTH_PROPERTY, message.getIntProperty(PayloadCodec.LENGTH_PROPERTY) + 1);
+        message.reset();
+        assertRejected(message);
+    }
+
+    @Test
+    public void testCorruptedBodyIsRejected() throws JMSException {
+        BytesMessage message = session.createBytesMessage();
+        message.setStringProperty(PayloadCodec.CODEC_PROPERTY, PayloadCodec.DEFLATE);
+        message.setIntProperty(PayloadCodec.LENGTH_PROPERTY, 100);
+        message.writeBytes(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        message.reset();
+        assertRejected(message);
+    }
+
+    private static void assertRejected(BytesMessage message) {
+        try {
+            new PayloadCodec().decode(message);
+            fail();
+        } catch (JMSException e) {
+            //expected
+        }
+    }
+
+    private static HashMap<String,String> values() {
+        HashMap<String,String> values = new HashMap<String,String>();
+        values.put("stock_name", "Anduct");
+        values.put("last_price", "3.04");
+        values.put("time", "12:00:00");
+        return values;
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.Test;
+
+/**
+ * The binary form of QuoteRecord (zig-zag variable length numbers and the
+ * present bitmask) and the merging of updates.
+ */
+public class QuoteRecordTest {
+
+    @Test
+    public void testVarLongRoundTrip() throws IOException {
+        long[] values = { 0, 1, -1, 63, -64, 64, -65, 8191, 8192, 123456789L, -123456789L,
+                Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+        for (long value : values) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            QuoteRecord.writeVarLong(new DataOutputStream(bytes), value);
+            assertEquals(String.valueOf(value), QuoteRecord.varLongSize(value), bytes.size());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            assertEquals(value, QuoteRecord.readVarLong(in));
+            assertEquals(-1, in.read());
+        }
+        //small numbers of either sign take a byte
+        assertEquals(1, QuoteRecord.varLongSize(-64));
+        assertEquals(1, QuoteRecord.varLongSize(63));
+        assertEquals(2, QuoteRecord.varLongSize(64));
+        assertEquals(10, QuoteRecord.varLongSize(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testMalformedVarLongIsRejected() throws IOException {
+        byte[] bytes = new byte[11];
+        Arrays.fill(bytes, (byte) 0x80);
+        try {
+            QuoteRecord.readVarLong(new DataInputStream(new ByteArrayInputStream(bytes)));
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testRoundTripOfThePresentFields() throws IOException {
+        QuoteRecord quote = new QuoteRecord(17);
+        quote.stockName = "Anduct";
+        quote.add(QuoteRecord.STOCK_NAME);
+        quote.lastPrice = 304;
+        quote.add(QuoteRecord.LAST_PRICE);
+        quote.pctChange = -125;
+        quote.add(QuoteRecord.PCT_CHANGE);
+        quote.bidQuantity = 5000;
+        quote.add(QuoteRecord.BID_QUANTITY);
+        quote.active = true;
+        quote.add(QuoteRecord.ITEM_STATUS);
+        //not present: not written
+        quote.ask = 999;
+
+        byte[] bytes = write(quote);
+        assertEquals(quote.encodedSize(), bytes.length);
+        QuoteRecord read = QuoteRecord.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+        assertEquals(17, read.stockId);
+        assertEquals(quote.present, read.present);
+        assertEquals("Anduct", read.stockName);
+        assertEquals(304, read.lastPrice);
+        assertEquals(-125, read.pctChange);
+        assertEquals(5000, read.bidQuantity);
+        assertTrue(read.active);
+        assertFalse(read.has(QuoteRecord.ASK));
+        assertEquals(0, read.ask);
+
+        assertEquals("3.04", read.format(QuoteRecord.LAST_PRICE));
+        assertEquals("5000", read.format(QuoteRecord.BID_QUANTITY));
+        assertEquals("active", read.format(QuoteRecord.ITEM_STATUS));
+        assertNull(read.format(QuoteRecord.ASK));
+        HashMap<String,String> map = read.toMap();
+        assertEquals(5, map.size());
+        assertEquals("Anduct", map.get("stock_name"));
+        assertEquals("3.04", map.get("last_price"));
+    }
+
+    @Test
+    public void testUnknownFieldsAreRejected() throws IOException {
+        QuoteRecord quote = new QuoteRecord(1);
+        quote.present = 1 << QuoteRecord.FIELDS;
+        try {
+            QuoteRecord.readFrom(new DataInputStream(new ByteArrayInputStream(write(quote))));
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testMergeOverwritesOnlyTheCarriedFields() {
+        QuoteRecord snapshot = new QuoteRecord(3);
+        snapshot.lastPrice = 100;
+        snapshot.add(QuoteRecord.LAST_PRICE);
+        snapshot.bid = 99;
+        snapshot.add(QuoteRecord.BID);
+
+        QuoteRecord update = new QuoteRecord(3);
+        update.lastPrice = 101;
+        update.add(QuoteRecord.LAST_PRICE);
+        update.ask = 102;
+        update.add(QuoteRecord.ASK);
+        //not carried: must not overwrite
+        update.bid = 1;
+
+        snapshot.mergeFrom(update);
+        assertEquals(101, snapshot.lastPrice);
+        assertEquals(102, snapshot.ask);
+        assertEquals(99, snapshot.bid);
+        assertTrue(snapshot.has(QuoteRecord.LAST_PRICE) && snapshot.has(QuoteRecord.ASK) && snapshot.has(QuoteRecord.BID));
+        assertFalse(snapshot.has(QuoteRecord.MIN));
+
+        QuoteRecord copy = snapshot.copy();
+        assertEquals(snapshot.present, copy.present);
+        assertEquals(snapshot.toMap(), copy.toMap());
+    }
+
+    private static byte[] write(QuoteRecord quote) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        quote.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ *
+ * Copyright (c) Lightstreamer Srl
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package stocklist_jms_demo.feed_simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The images written by GeneratorCheckpoint, and those it must not
+ * restore: corrupted, too old or not matching the simulator.
+ */
+public class GeneratorCheckpointTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("generator", ".ckp");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        ExternalFeedSimulator saved = simulator(30);
+        GeneratorCheckpoint checkpoint = new GeneratorCheckpoint(file, 1000, 10000);
+        assertFalse(checkpoint.restore(new ExternalFeedSimulator()));
+        checkpoint.save(1234, 2, 500, subscriptions(), saved);
+
+        GeneratorCheckpoint restored = new GeneratorCheckpoint(file, 1000, 10000);
+        ExternalFeedSimulator feed = new ExternalFeedSimulator();
+        assertTrue(restored.restore(feed));
+        assertEquals(1234, restored.random);
+        assertEquals(2, restored.schemaVersion);
+        assertEquals(500, restored.conflationMillis);
+        assertEquals(2, restored.subscriptions.size());
+        assertEquals("item3", restored.subscriptions.get(1)[0]);
+        assertEquals("h7", restored.subscriptions.get(1)[1]);
+        assertTrue(Arrays.equals(state(saved), state(feed)));
+    }
+
+    @Test
+    public void testCorruptedImageIsRejected() throws IOException {
+        new GeneratorCheckpoint(file, 1000, 10000).save(1234, 2, 0, subscriptions(), simulator(30));
+        byte[] image = Files.readAllBytes(file.toPath());
+        image[20] ^= 0xFF;
+        Files.write(file.toPath(), image);
+
+        ExternalFeedSimulator feed = new ExternalFeedSimulator();
+        try {
+            new GeneratorCheckpoint(file, 1000, 10000).restore(feed);
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+        //untouched
+        assertEquals(0, new DataInputStream(new ByteArrayInputStream(state(feed))).readInt());
+    }
+
+    @Test
+    public void testOldImageIsNotRestored() throws IOException {
+        new GeneratorCheckpoint(file, 1000, 10000).save(1234, 2, 0, subscriptions(), simulator(30));
+        //saved a minute ago, with a valid CRC
+        byte[] image = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(image);
+        buffer.putLong(4, buffer.getLong(4) - 60000);
+        CRC32 crc = new CRC32();
+        crc.update(image, 0, image.length - 8);
+        buffer.putLong(image.length - 8, crc.getValue());
+        Files.write(file.toPath(), image);
+
+        GeneratorCheckpoint checkpoint = new GeneratorCheckpoint(file, 1000, 10000);
+        assertFalse(checkpoint.restore(new ExternalFeedSimulator()));
+        assertEquals(0, checkpoint.subscriptions.size());
+        assertTrue(new GeneratorCheckpoint(file, 1000, 120000).restore(new ExternalFeedSimulator()));
+    }
+
+    @Test
+    public void testOtherNumberOfStocksIsRejected() throws IOException {
+        new GeneratorCheckpoint(file, 1000, 10000).save(1234, 2, 0, subscriptions(), simulator(29));
+        try {
+            new GeneratorCheckpoint(file, 1000, 10000).restore(new ExternalFeedSimulator());
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    //a simulator with recognizable prices, as if it had that many stocks
+    private static ExternalFeedSimulator simulator(final int stocks) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(30);
+        for (int i = 0; i < 30 * 6; i++) {
+            out.writeInt(1000 + i);
+        }
+        ExternalFeedSimulator feed = new ExternalFeedSimulator() {
+            @Override
+            public void writeState(DataOutput out) throws IOException {
+                if (stocks == 30) {
+                    super.writeState(out);
+                } else {
+                    out.writeInt(stocks);
+                    for (int i = 0; i < stocks * 6; i++) {
+                        out.writeInt(0);
+                    }
+                }
+            }
+        };
+        feed.readState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        return feed;
+    }
+
+    private static byte[] state(ExternalFeedSimulator feed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        feed.writeState(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static ArrayList<String[]> subscriptions() {
+        ArrayList<String[]> subscriptions = new ArrayList<String[]>();
+        subscriptions.add(new String[] { "item1", "h1" });
+        subscriptions.add(new String[] { "item3", "h7" });
+        return subscriptions;
+    }
+
+}